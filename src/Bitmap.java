@@ -0,0 +1,300 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Bitmap implements Filesystem {
+    /* free block bitmap
+     *
+     * The bitmap blocks (sb.bmapstart ...) are scanned as 64-bit
+     * little-endian words: bit j of word w is the bit for block w * 64 + j.
+     * A bitmap block holds BSIZE / 8 = 64 words, so one summary word
+     * covers exactly one bitmap block:
+     *
+     *   summary[k] bit i == 1  <=>  word k * 64 + i has a free bit
+     *
+     * Bits for blocks outside the data region [dstart, size) are never
+     * handed out, so a bit-level scan is only needed inside one word.
+     * Allocation looks from a block hint on (Groups picks it), or from a
+     * next-fit cursor for callers without one.
+     *
+     * Bitmap words are updated with compare-and-set on the image, so
+     * threads allocate and free blocks without a lock. A summary bit may
+     * be stale in the "has free bits" direction only: it is cleared with
+     * the word re-checked afterwards, and set after bits are freed. A run
+     * (alloc_run) is claimed a word at a time and given back whole if one
+     * of its blocks was taken in the meantime.
+     */
+
+    private static final VarHandle WORD =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle SUMMARY = MethodHandles.arrayElementVarHandle(long[].class);
+
+    static final int WPB = BSIZE / 8; // # of bitmap words per block
+    static final int SCAN = 1024;     // max # of words alloc_run looks at (64K blocks)
+
+    // a run of len contiguous blocks starting at start
+    static class extent {
+        final int start;
+        final int len;
+
+        extent(int start, int len) {
+            this.start = start;
+            this.len = len;
+        }
+    }
+
+    final Blockdev img;
+    private final long bmapoff;    // byte offset of the 1st bitmap block
+    private final int dstart;      // 1st data block number
+    private final int size;        // # of blocks in the image
+    private final int nwords;      // # of bitmap words covering the image
+    private final long[] summary;  // words that still have free bits
+    private final AtomicInteger nfree = new AtomicInteger(); // # of free data blocks
+    private volatile int cursor;   // next-fit cursor (word index)
+
+    Bitmap(Blockdev img, Superblock sb) {
+        this.img = img;
+        this.bmapoff = (long)sb.bmapstart * BSIZE;
+        this.size = sb.size;
+        this.dstart = sb.datastart;
+        this.nwords = (size + 63) / 64;
+        this.summary = new long[(nwords + 63) / 64];
+        for (int w = 0; w < nwords; w++) {
+            long free = ~word(w) & usable(w);
+            if (free != 0) {
+                summary[w >>> 6] |= 1L << w;
+                nfree.addAndGet(Long.bitCount(free));
+            }
+        }
+        this.cursor = dstart / 64;
+    }
+
+    private long word(int w) {
+        long p = bmapoff + w * 8L;
+        return (long)WORD.getVolatile(img.buffer(p), img.index(p));
+    }
+
+    private boolean casword(int w, long v, long nv) {
+        long p = bmapoff + w * 8L;
+        if (!WORD.compareAndSet(img.wbuffer(p), img.index(p), v, nv))
+            return false;
+        Libfs.log_write(img, (int)(p / BSIZE));
+        return true;
+    }
+
+    private void set_summary(int w) {
+        SUMMARY.getAndBitwiseOr(summary, w >>> 6, 1L << w);
+    }
+
+    // clears the summary bit of a word that looked full
+    private void clear_summary(int w) {
+        SUMMARY.getAndBitwiseAnd(summary, w >>> 6, ~(1L << w));
+        if ((~word(w) & usable(w)) != 0)
+            set_summary(w); // freed in the meantime
+    }
+
+    // bits of word w that belong to the data region
+    private long usable(int w) {
+        long lo = (long)w * 64;
+        long m = -1L;
+        if (lo < dstart)
+            m = dstart - lo >= 64 ? 0 : m << (dstart - lo);
+        if (lo + 64 > size)
+            m &= size - lo <= 0 ? 0 : -1L >>> (64 - (size - lo));
+        return m;
+    }
+
+    // returns the first word index >= from that has free bits, or -1
+    private int nextfree(int from) {
+        if (from >= nwords)
+            return -1;
+        int k = from >>> 6;
+        long s = (long)SUMMARY.getVolatile(summary, k) & (-1L << from);
+        while (s == 0) {
+            if (++k >= summary.length)
+                return -1;
+            s = (long)SUMMARY.getVolatile(summary, k);
+        }
+        int w = (k << 6) + Long.numberOfTrailingZeros(s);
+        return w < nwords ? w : -1;
+    }
+
+    // # of free data blocks
+    int nfree() {
+        return nfree.get();
+    }
+
+    // # of free data blocks in [lo, hi)
+    int nfree(int lo, int hi) {
+        int n = 0;
+        for (int w = lo >>> 6; w < nwords && (long)w * 64 < hi; w++) {
+            long m = usable(w);
+            if ((long)w * 64 < lo)
+                m &= -1L << (lo & 63);
+            if ((long)w * 64 + 64 > hi)
+                m &= -1L >>> (64 - (hi & 63));
+            n += Long.bitCount(~word(w) & m);
+        }
+        return n;
+    }
+
+    // allocates a free block, the first one from the block hint on if
+    // there is one (0: from the cursor), and returns its number, or 0 if
+    // there is none
+    int alloc(int hint) {
+        while (nfree.get() > 0) {
+            int w = nextfree(hint > 0 ? hint >>> 6 : cursor);
+            if (w < 0)
+                w = nextfree(0);
+            if (w < 0)
+                break;
+            long v = word(w);
+            long free = ~v & usable(w);
+            if (free == 0) {
+                // stale summary bit
+                clear_summary(w);
+                continue;
+            }
+            long after = w == hint >>> 6 ? free & (-1L << hint) : 0;
+            long bit = after != 0 ? after & -after : free & -free;
+            if (!casword(w, v, v | bit))
+                continue; // lost a race, retry
+            if ((free & ~bit) == 0)
+                clear_summary(w);
+            nfree.decrementAndGet();
+            cursor = w;
+            return w * 64 + Long.numberOfTrailingZeros(bit);
+        }
+        return 0;
+    }
+
+    // allocates a run of max contiguous free blocks, the first one found
+    // in the SCAN words from the block hint (0: from the cursor) on, then
+    // from word 0; if there is none, the longest run seen there, so
+    // callers fall back to shorter runs; returns null if there is no free
+    // block
+    extent alloc_run(int max, int hint) {
+        for (int tries = 0; max > 1 && tries < 8 && nfree.get() > 0; tries++) {
+            extent e = find_run(max, hint > 0 ? hint : cursor << 6);
+            if (e == null)
+                break;
+            if (claim_run(e.start, e.len)) {
+                cursor = (e.start + e.len - 1) >>> 6;
+                return e;
+            }
+            // lost a race for a block of the run, look again
+        }
+        int b = alloc(hint);
+        return b != 0 ? new extent(b, 1) : null;
+    }
+
+    private extent find_run(int max, int lo) {
+        long[] best = new long[1]; // longest run seen: start << 32 | len
+        int c = lo >>> 6;
+        extent e = scan(c, Math.min(nwords, c + SCAN), max, best, lo);
+        if (e == null && c > 0)
+            e = scan(0, Math.min(c, SCAN), max, best, 0);
+        if (e == null && best[0] != 0)
+            e = new extent((int)(best[0] >>> 32), (int)best[0]);
+        return e;
+    }
+
+    // looks for a run of max free blocks from the block lo on
+    // in the words [from, to)
+    private extent scan(int from, int to, int max, long[] best, int lo) {
+        int rstart = 0, rlen = 0;  // run of free blocks being scanned
+        for (int w = nextfree(from), last = -1; w >= 0 && w < to; last = w, w = nextfree(w + 1)) {
+            if (w != last + 1)
+                rlen = 0;          // full words in between
+            long free = ~word(w) & usable(w);
+            if (w == lo >>> 6)
+                free &= -1L << lo;
+            for (int bit = 0; bit < 64; ) {
+                long rest = free >>> bit;
+                if ((rest & 1) == 0) {
+                    rlen = 0;
+                    bit += rest == 0 ? 64 - bit : Long.numberOfTrailingZeros(rest);
+                    continue;
+                }
+                int n = Long.numberOfTrailingZeros(~rest);
+                if (rlen == 0)
+                    rstart = w * 64 + bit;
+                rlen += n;
+                bit += n;
+                if (rlen >= max)
+                    return new extent(rstart, max);
+                if (rlen > (int)best[0])
+                    best[0] = (long)rstart << 32 | rlen;
+            }
+        }
+        return null;
+    }
+
+    // allocates the first run of len free blocks from the block lo on,
+    // then from the start (first fit, for defrag), if it ends before the
+    // block limit; null if there is none
+    extent alloc_first(int len, int lo, int limit) {
+        int to = Math.min(nwords, (limit + 63) / 64);
+        for (int tries = 0; tries < 8 && nfree.get() >= len; tries++) {
+            extent e = scan(lo >>> 6, to, len, new long[1], lo);
+            if (e == null && lo > 0)
+                e = scan(0, to, len, new long[1], 0);
+            if (e == null || e.start + e.len > limit)
+                break;
+            if (claim_run(e.start, e.len))
+                return e;
+        }
+        return null;
+    }
+
+    // marks the blocks [b, b + len) used if they are all free data blocks
+    private boolean claim_run(int b, int len) {
+        for (int i = b, end = b + len; i < end; ) {
+            int w = i >>> 6;
+            int n = Math.min(end - i, 64 - (i & 63));
+            long m = (n == 64 ? -1L : (1L << n) - 1) << (i & 63);
+            while (true) {
+                long v = word(w);
+                if ((~v & usable(w) & m) != m) {
+                    if (i > b)
+                        free(b, i - b); // give back the part claimed
+                    return false;
+                }
+                if (casword(w, v, v | m)) {
+                    if ((~(v | m) & usable(w)) == 0)
+                        clear_summary(w);
+                    nfree.addAndGet(-n);
+                    break;
+                }
+            }
+            i += n;
+        }
+        return true;
+    }
+
+    // frees n blocks starting at b; returns the # of blocks already freed
+    int free(int b, int n) {
+        int nwarn = 0;
+        for (int end = b + n; b < end; ) {
+            int w = b >>> 6;
+            int lo = b & 63;
+            int len = Math.min(end - b, 64 - lo);
+            long m = (len == 64 ? -1L : (1L << len) - 1) << lo;
+            long v;
+            do {
+                v = word(w);
+            } while (!casword(w, v, v & ~m));
+            long freed = m & ~v;
+            for (long f = freed; f != 0; f &= f - 1) {
+                Libfs.debug_message("WARNING", "bfree: %d: already freed block",
+                        w * 64 + Long.numberOfTrailingZeros(f));
+                nwarn++;
+            }
+            nfree.addAndGet(Long.bitCount(m & v & usable(w)));
+            set_summary(w);
+            b += len;
+        }
+        return nwarn;
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public interface Blockdev extends Filesystem {
+    /* storage of an image, addressed by long byte offsets
+     *
+     *   Mmapdev   the file mapped in windows of 1 GiB (default)
+     *   Chandev   positional FileChannel I/O through a buffer cache
+     *   Memdev    the image held on the heap or off-heap (tests, benchmarks)
+     *
+     * A device keeps the image in segments of little-endian ByteBuffers
+     * (a window for Mmapdev and Memdev, a block for Chandev); segments
+     * are multiples of BSIZE, so a block never crosses two of them and
+     * neither does a short, int or long field at an aligned offset.
+     * buffer(pos) is the segment holding pos, to be indexed by index(pos);
+     * wbuffer(pos) is the same segment about to be written. Only the
+     * byte-array get/put take ranges that may cross segments; slice()
+     * callers keep within one segment with span().
+     *
+     * Devices follow the map modes of FileChannel: READ_ONLY, READ_WRITE
+     * (shared: force() and close() write the changes to the file) and
+     * PRIVATE (changes never reach the file; see Journal).
+     */
+
+    long size();                          // # of bytes in the image
+    boolean isReadOnly();
+
+    ByteBuffer buffer(long pos);          // segment holding pos
+    ByteBuffer wbuffer(long pos);         // the same, to be written
+    int index(long pos);                  // index of pos in its segment
+    int span(long pos, int len);          // # of bytes from pos in one segment, at most len
+
+    // writes len bytes at pos back to the file (shared devices only)
+    void force(long pos, long len);
+
+    // hint: [pos, pos + len) will be read soon
+    default void prefetch(long pos, long len) {}
+
+    // more changes are held in memory than the device would like:
+    // they should be forced or committed soon
+    default boolean must_flush() { return false; }
+
+    // the range has been written to the file by someone else (the Journal)
+    default void written(long pos, long len) {}
+
+    // writes back what is left (shared devices) and releases the image;
+    // the image must not be touched after that
+    void close();
+
+    // the device OPFS_DEV names over the file open on ch, caching nbuf
+    // blocks if it caches; null if the name is unknown
+    static Blockdev open(String dev, FileChannel ch, FileChannel.MapMode mode, long size, int nbuf) throws IOException {
+        if (dev == null || dev.equals("mmap"))
+            return Mmapdev.map(ch, mode, size);
+        if (dev.equals("pread"))
+            return new Chandev(ch, mode, size, nbuf);
+        if (dev.equals("mem"))
+            return Memdev.load(ch, mode, size);
+        return null;
+    }
+
+    default byte get(long pos)       { return buffer(pos).get(index(pos)); }
+    default short getShort(long pos) { return buffer(pos).getShort(index(pos)); }
+    default int getInt(long pos)     { return buffer(pos).getInt(index(pos)); }
+    default long getLong(long pos)   { return buffer(pos).getLong(index(pos)); }
+
+    default void put(long pos, byte v)       { wbuffer(pos).put(index(pos), v); }
+    default void putShort(long pos, short v) { wbuffer(pos).putShort(index(pos), v); }
+    default void putInt(long pos, int v)     { wbuffer(pos).putInt(index(pos), v); }
+    default void putLong(long pos, long v)   { wbuffer(pos).putLong(index(pos), v); }
+
+    // copies len bytes at pos into dst[off...]
+    default void get(long pos, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int n = span(pos, len);
+            buffer(pos).get(index(pos), dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // copies src[off...] to len bytes at pos
+    default void put(long pos, byte[] src, int off, int len) {
+        while (len > 0) {
+            int n = span(pos, len);
+            wbuffer(pos).put(index(pos), src, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // len bytes at pos as a buffer sharing the image;
+    // the range must be within one segment (see span)
+    default ByteBuffer slice(long pos, int len) {
+        return buffer(pos).slice(index(pos), len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // the same, to be written
+    default ByteBuffer wslice(long pos, int len) {
+        return wbuffer(pos).slice(index(pos), len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Chandev implements Blockdev {
+    /* image accessed with positional FileChannel reads and writes
+     *
+     * For when mapping the file is undesirable (network file systems,
+     * huge images). Blocks are read into a buffer cache (xv6 bio.c) of
+     * single-block segments:
+     *
+     *   - blocks before the data region (superblock, log, inode and
+     *     bitmap blocks) are pinned: once read they are never evicted
+     *   - the other blocks are kept in a ring of at most nbuf and
+     *     evicted by CLOCK: a block used since the hand last passed it
+     *     gets a second chance
+     *   - a block handed out by wbuffer is dirty until written back. When
+     *     the device is shared (READ_WRITE) the hand writes a dirty block
+     *     back before evicting it, as it does a clean one, and force() or
+     *     close() write back the rest. When it is PRIVATE nothing may
+     *     reach the file but through the Journal (see written): a dirty
+     *     block leaves the ring when the hand finds it and comes back once
+     *     written; must_flush() asks for that when more than nbuf / 2
+     *     blocks are dirty
+     *
+     * Lookups do not lock. Marking a block dirty, eviction and write-back
+     * are synchronized on the device, so a block cannot be evicted
+     * between being handed out by wbuffer and being marked.
+     */
+
+    static final int NBUF = 8192;   // default # of cached data blocks (4 MiB)
+
+    static class buf {
+        final int b;                // block number
+        final ByteBuffer data;
+        boolean ref;                // used since the clock hand passed (racy)
+        volatile boolean dirty;
+        boolean queued;             // in the ring
+
+        buf(int b, ByteBuffer data) {
+            this.b = b;
+            this.data = data;
+        }
+    }
+
+    final FileChannel ch;
+    final long size;                // # of bytes in the image
+    final int nbuf;                 // max # of data blocks in the ring
+    private final boolean rdonly;
+    private final boolean shared;   // changes go back to the file
+    private int pinned = Integer.MAX_VALUE; // blocks [0, pinned) are never evicted
+    private final ConcurrentHashMap<Integer, buf> bufs = new ConcurrentHashMap<>();
+    private final ArrayList<buf> ring = new ArrayList<>();
+    private int hand;               // clock hand (index in ring)
+    private final TreeSet<Integer> dirty = new TreeSet<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder prefetched = new LongAdder();
+    private long nevicted;
+    private long nwritten;
+
+    Chandev(FileChannel ch, FileChannel.MapMode mode, long size, int nbuf) {
+        this.ch = ch;
+        this.size = size;
+        this.nbuf = nbuf;
+        this.rdonly = mode == FileChannel.MapMode.READ_ONLY;
+        this.shared = mode == FileChannel.MapMode.READ_WRITE;
+        this.pinned = Math.max(2, Superblock.read(this).datastart);
+    }
+
+    // reads the block b from the file
+    private buf read(int b) {
+        ByteBuffer data = ByteBuffer.allocate(BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (long pos = (long)b * BSIZE; data.hasRemaining(); ) {
+                int r = ch.read(data, pos);
+                if (r < 0)
+                    break; // past the end of the file: zeros
+                pos += r;
+            }
+        } catch (IOException e) {
+            Libfs.fatal("read: block %d: %s", b, e.getMessage());
+        }
+        return new buf(b, data.clear());
+    }
+
+    // the cached block b, read on a miss
+    private buf bget(int b) {
+        buf x = bufs.get(b);
+        if (x != null) {
+            hits.increment();
+            if (!x.ref)
+                x.ref = true;
+            return x;
+        }
+        misses.increment();
+        x = bufs.computeIfAbsent(b, this::read);
+        if (b >= pinned)
+            admit(x);
+        return x;
+    }
+
+    // puts a data block in the ring, evicting others past nbuf
+    private synchronized void admit(buf x) {
+        if (x.queued || x.dirty || bufs.get(x.b) != x)
+            return;
+        x.queued = true;
+        // the block is about to be used: with no second chance the hand,
+        // when it rests at the end of the ring, would take it straight
+        // back, and wbuffer would read it in again for ever
+        x.ref = true;
+        ring.add(x);
+        for (int n = 2 * ring.size(); ring.size() > nbuf && n > 0; n--) {
+            if (hand >= ring.size())
+                hand = 0;
+            buf y = ring.get(hand);
+            if (y.ref && (shared || !y.dirty)) {
+                y.ref = false;
+                hand++;
+                continue;
+            }
+            if (y.dirty && shared) {
+                write_back(y);
+                y.dirty = false;
+                dirty.remove(y.b);
+            }
+            // (private) a dirty block leaves the ring until it is clean again
+            ring.set(hand, ring.get(ring.size() - 1));
+            ring.remove(ring.size() - 1);
+            y.queued = false;
+            if (!y.dirty) {
+                bufs.remove(y.b);
+                nevicted++;
+            }
+        }
+    }
+
+    @Override public long size()         { return size; }
+    @Override public boolean isReadOnly() { return rdonly; }
+
+    @Override
+    public ByteBuffer buffer(long pos) {
+        return bget((int)(pos / BSIZE)).data;
+    }
+
+    @Override
+    public ByteBuffer wbuffer(long pos) {
+        if (rdonly)
+            throw new ReadOnlyBufferException();
+        int b = (int)(pos / BSIZE);
+        for (;;) {
+            buf x = bget(b);
+            if (x.dirty || mark(x))
+                return x.data;
+        }
+    }
+
+    // marks x dirty; false if it was evicted in the meantime
+    private synchronized boolean mark(buf x) {
+        if (bufs.get(x.b) != x)
+            return false;
+        x.dirty = true;
+        dirty.add(x.b);
+        return true;
+    }
+
+    @Override public int index(long pos) { return (int)(pos % BSIZE); }
+
+    // reads the missing blocks of the range into the cache, one read per
+    // run of them, and at most nbuf / 2 blocks so as not to evict the
+    // rest of the range; the caller holds the lock of the file the range
+    // belongs to, so the blocks are not written meanwhile
+    @Override
+    public void prefetch(long pos, long len) {
+        int lo = (int)(pos / BSIZE);
+        int hi = (int)Math.min((pos + len + BSIZE - 1) / BSIZE, lo + Math.max(1, nbuf / 2));
+        for (int b = lo; b < hi; ) {
+            if (bufs.containsKey(b)) {
+                b++;
+                continue;
+            }
+            int e = b + 1;
+            while (e < hi && !bufs.containsKey(e))
+                e++;
+            ByteBuffer run = ByteBuffer.allocate((e - b) * BSIZE);
+            try {
+                for (long p = (long)b * BSIZE; run.hasRemaining(); ) {
+                    int r = ch.read(run, p);
+                    if (r < 0)
+                        break; // past the end of the file: zeros
+                    p += r;
+                }
+            } catch (IOException ex) {
+                Libfs.fatal("read: block %d: %s", b, ex.getMessage());
+            }
+            for (int i = b; i < e; i++) {
+                ByteBuffer data = ByteBuffer.allocate(BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+                data.put(run.array(), (i - b) * BSIZE, BSIZE).clear();
+                buf x = bufs.computeIfAbsent(i, k -> new buf(k, data));
+                if (i >= pinned)
+                    admit(x);
+            }
+            prefetched.add(e - b);
+            b = e;
+        }
+    }
+
+    @Override
+    public int span(long pos, int len) {
+        return Math.min(len, BSIZE - (int)(pos % BSIZE));
+    }
+
+    @Override
+    public synchronized boolean must_flush() {
+        return dirty.size() > nbuf / 2;
+    }
+
+    // the dirty blocks of [pos, pos + len)
+    private ArrayList<buf> dirty(long pos, long len) {
+        int lo = (int)(pos / BSIZE);
+        int hi = (int)Math.min(Integer.MAX_VALUE, (pos + len + BSIZE - 1) / BSIZE);
+        ArrayList<buf> xs = new ArrayList<>();
+        for (int b : dirty.subSet(lo, hi))
+            xs.add(bufs.get(b));
+        return xs;
+    }
+
+    // x has been written to the file
+    private void clean(buf x) {
+        x.dirty = false;
+        dirty.remove(x.b);
+        if (x.b >= pinned)
+            admit(x);
+    }
+
+    @Override
+    public synchronized void written(long pos, long len) {
+        for (buf x : dirty(pos, len))
+            clean(x);
+    }
+
+    // writes the block x to the file; the caller cleans it
+    private void write_back(buf x) {
+        ByteBuffer src = x.data.duplicate().clear();
+        try {
+            for (long p = (long)x.b * BSIZE; src.hasRemaining(); )
+                p += ch.write(src, p);
+        } catch (IOException e) {
+            Libfs.fatal("write: block %d: %s", x.b, e.getMessage());
+        }
+        nwritten++;
+    }
+
+    @Override
+    public synchronized void force(long pos, long len) {
+        if (!shared)
+            return;
+        for (buf x : dirty(pos, len)) {
+            write_back(x);
+            clean(x);
+        }
+        try {
+            ch.force(false);
+        } catch (IOException e) {
+            Libfs.fatal("write: %s", e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        force(0, size);
+        bufs.clear();
+        ring.clear();
+    }
+
+    // # of blocks cached, pinned ones included
+    int ncached() {
+        return bufs.size();
+    }
+
+    // # of blocks written back to the file
+    synchronized long nwritten() {
+        return nwritten;
+    }
+
+    // hit/miss counters for diskinfo
+    synchronized String stats() {
+        return String.format("buffer cache: %d blocks (%d in the ring, %d dirty), %d hits, %d misses, %d prefetched, %d evicted, %d written back",
+                bufs.size(), ring.size(), dirty.size(), hits.sum(), misses.sum(), prefetched.sum(), nevicted, nwritten);
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class Dcache {
+    /* path resolution cache
+     *
+     * Maps a path relative to a directory inode, "rinum/elem/.../elem",
+     * to the inode it names. Every prefix resolved on the way is cached
+     * as well, so sibling paths share their parent entries.
+     *
+     *   pos   : paths that exist (LRU, bounded)
+     *   neg   : paths that do not exist (LRU, bounded)
+     *   byent : directory entry "dinum/name" -> keys of pos resolved
+     *           through it as their last element
+     *
+     * Invalidation:
+     *   a new directory entry (daddent)    -> neg is cleared
+     *   a file entry is removed (iunlink)  -> pos entries ending in it
+     *   a directory entry is removed or
+     *   ".." is rewritten (dmkparlink)     -> pos is cleared
+     *   a transaction is rolled back       -> both are cleared
+     *
+     * The methods are synchronized. Every invalidation bumps gen, and an
+     * entry resolved before the last invalidation is not inserted, so a
+     * lookup racing with an unlink cannot cache the old answer.
+     */
+
+    static final int DCACHESIZE = 4096;
+
+    static class dentry {
+        final Libfs.inode_t dp;  // directory containing the last element
+        final String name;       // last element
+        final Libfs.inode_t ip;  // null for a negative entry
+
+        dentry(Libfs.inode_t dp, String name, Libfs.inode_t ip) {
+            this.dp = dp;
+            this.name = name;
+            this.ip = ip;
+        }
+    }
+
+    final Blockdev img;
+    private long gen;  // # of invalidations so far
+    private final HashMap<String, Set<String>> byent = new HashMap<>();
+    private final LinkedHashMap<String, dentry> pos = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, dentry> e) {
+            if (size() <= DCACHESIZE)
+                return false;
+            unindex(e.getKey(), e.getValue());
+            return true;
+        }
+    };
+    private final LinkedHashMap<String, dentry> neg = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, dentry> e) {
+            return size() > DCACHESIZE;
+        }
+    };
+
+    Dcache(Blockdev img) {
+        this.img = img;
+    }
+
+    // cache key of the first n elements of a path relative to rp
+    static String key(Libfs.inode_t rp, String[] elems, int n) {
+        StringBuilder sb = new StringBuilder().append(rp.inum);
+        for (int i = 0; i < n; i++)
+            sb.append('/').append(elems[i]);
+        return sb.toString();
+    }
+
+    private static String entkey(Libfs.inode_t dp, String name) {
+        return dp.inum + "/" + name;
+    }
+
+    private void unindex(String key, dentry d) {
+        Set<String> keys = byent.get(entkey(d.dp, d.name));
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty())
+                byent.remove(entkey(d.dp, d.name));
+        }
+    }
+
+    // invalidation count, to be passed to put
+    synchronized long gen() {
+        return gen;
+    }
+
+    // returns the cached entry of key, or null if it is not cached
+    synchronized dentry get(String key) {
+        dentry d = pos.get(key);
+        return d != null ? d : neg.get(key);
+    }
+
+    // caches an entry resolved when gen() returned g
+    synchronized void put(String key, Libfs.inode_t dp, String name, Libfs.inode_t ip, long g) {
+        if (g != gen)
+            return;
+        dentry d = new dentry(dp, name, ip);
+        if (ip == null) {
+            neg.put(key, d);
+            return;
+        }
+        pos.put(key, d);
+        byent.computeIfAbsent(entkey(dp, name), k -> new HashSet<>()).add(key);
+    }
+
+    // a directory entry has been added
+    synchronized void added() {
+        gen++;
+        if (!neg.isEmpty())
+            neg.clear();
+    }
+
+    // the directory entry dp/name (naming ip) has been removed
+    synchronized void removed(Libfs.inode_t dp, String name, Libfs.inode_t ip) {
+        gen++;
+        if (ip.type() == Libfs.T_DIR) {
+            clear();
+            return;
+        }
+        Set<String> keys = byent.remove(entkey(dp, name));
+        if (keys != null)
+            for (String key : keys)
+                pos.remove(key);
+    }
+
+    // drops every entry
+    synchronized void clear() {
+        gen++;
+        pos.clear();
+        byent.clear();
+        neg.clear();
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+
+public class Defrag implements Filesystem {
+    /* defragmenter (defrag [-c] [-b budget] [path])
+     *
+     * A regular file is fragmented when its data blocks and indirect
+     * block do not fill one range of the image. Such a file is copied to
+     * the first run of free blocks that holds all of them from the block
+     * group of its inode on (see Groups), laid out as cp lays out a new
+     * file (indirect block, then the data blocks in order); the block
+     * pointers are rewritten and the old blocks freed.
+     * With path, only the files in the tree under path are looked at.
+     *
+     * Each move is one log operation, committed before the next one:
+     *   - the data is copied to blocks that are free in the committed
+     *     image, so the copy is harmless until the commit
+     *   - the pointers, the new indirect block and the bitmap are
+     *     metadata and reach the image together at the commit
+     *   - the old blocks are freed by that commit, not before: bfree
+     *     leaves them pending in the log (see Journal), so no operation
+     *     running meanwhile can be given one and write over data the
+     *     committed image still points at
+     * A move that would log more than MAXOPBLOCKS blocks (old blocks
+     * spread over many bitmap blocks) is skipped. Under OPFS_SYNC=none
+     * there is no log and a move is as safe as any other write.
+     *
+     * -c  compact: every file, fragmented or not, moves to the first
+     *     free run that lies wholly before it, lowest files first, so the
+     *     data gathers at the start of the data region and the free
+     *     space at the end
+     * -b  I/O budget: at most budget blocks are moved (each read once
+     *     and written once); defrag stops at the first file that would
+     *     go over it
+     */
+
+    final Blockdev img;
+    final Superblock sb;
+    final PrintStream out;
+    final boolean compact;
+    final long budget;      // max # of blocks to move
+    private long nmoved;    // # of blocks moved
+    private int nfiles;     // # of files looked at
+    private int nfrag;      // # of fragmented files found
+    private int nfixed;     // # of fragmented files moved
+    private int nrelocated; // # of files moved
+
+    Defrag(Blockdev img, PrintStream out, boolean compact, long budget) {
+        this.img = img;
+        this.sb = Libfs.SBLK(img);
+        this.out = out;
+        this.compact = compact;
+        this.budget = budget;
+    }
+
+    // defragments the regular files under ip (all of them if ip is null);
+    // returns the # of fragmented files left
+    int run(Libfs.inode_t ip) {
+        ArrayList<Libfs.inode_t> files = new ArrayList<>();
+        if (ip == null) {
+            for (int inum = 1; inum < sb.ninodes; inum++) {
+                Libfs.inode_t fp = Libfs.iget(img, inum);
+                if (fp.type() == Libfs.T_FILE)
+                    files.add(fp);
+            }
+        }
+        else
+            collect(ip, new BitSet(), files);
+        if (compact)
+            files.sort(Comparator.comparingInt(fp -> fp.addr(0)));
+
+        // commit what is pending, so blocks freed so far can be moved to
+        Libfs.sync(img);
+        for (Libfs.inode_t fp : files) {
+            int r = move(fp);
+            if (r < 0) {
+                out.printf("defrag: I/O budget of %d blocks spent%n", budget);
+                break;
+            }
+            if (r > 0)
+                Libfs.sync(img);
+        }
+        out.printf("defrag: %d files, %d fragmented, %d moved (%d blocks), %d left fragmented%n",
+                nfiles, nfrag, nrelocated, nmoved, nfrag - nfixed);
+        return nfrag - nfixed;
+    }
+
+    // adds the regular files in the tree under ip to files
+    private void collect(Libfs.inode_t ip, BitSet seen, ArrayList<Libfs.inode_t> files) {
+        if (seen.get(ip.inum))
+            return;
+        seen.set(ip.inum);
+        if (ip.type() == Libfs.T_FILE) {
+            files.add(ip);
+            return;
+        }
+        if (ip.type() != Libfs.T_DIR)
+            return;
+        ArrayList<Integer> inums = new ArrayList<>();
+        ip.lock.readLock().lock();
+        try {
+            for (int off = 0; off < ip.size(); off += DIRENTSIZE) {
+                int b = Libfs.iblock(img, ip, off / BSIZE);
+                if (!Libfs.valid_data_block(img, b))
+                    break;
+                long pos = (long)b * BSIZE + off % BSIZE;
+                int inum = Libfs.de_inum(img, pos);
+                String name = Libfs.de_name(img, pos);
+                if (inum != 0 && !name.equals(".") && !name.equals(".."))
+                    inums.add(inum);
+            }
+        } finally {
+            ip.lock.readLock().unlock();
+        }
+        for (int inum : inums) {
+            Libfs.inode_t cp = Libfs.iget(img, inum);
+            if (cp != null)
+                collect(cp, seen, files);
+        }
+    }
+
+    // moves the file ip as one log operation; returns 1 if it was moved,
+    // 0 if not, -1 if the move would go over the budget
+    private int move(Libfs.inode_t ip) {
+        Libfs.begin_op(img);
+        try {
+            ip.lock.writeLock().lock();
+            try {
+                return relocate(ip);
+            } finally {
+                ip.lock.writeLock().unlock();
+            }
+        } catch (RuntimeException | Error e) {
+            Libfs.fail_op(img);
+            throw e;
+        } finally {
+            Libfs.end_op(img);
+        }
+    }
+
+    private int relocate(Libfs.inode_t ip) {
+        if (ip.type() != Libfs.T_FILE)
+            return 0; // removed in the meantime
+        int[] m = Libfs.blkmap(img, ip);
+        int nb = MAXFILE;  // # of data blocks
+        while (nb > 0 && m[nb - 1] == 0)
+            nb--;
+        if (nb == 0)
+            return 0;
+        nfiles++;
+        int iaddr = nb > NDIRECT ? ip.addr(NDIRECT) : 0;
+        int ni = iaddr != 0 ? 1 : 0; // # of indirect blocks
+        int lo = iaddr != 0 ? iaddr : Integer.MAX_VALUE, hi = iaddr;
+        BitSet bblks = new BitSet(); // bitmap blocks of the old blocks
+        if (iaddr != 0)
+            bblks.set(iaddr / BPB);
+        for (int i = 0; i < nb; i++) {
+            if (m[i] == 0)
+                return 0; // a hole: left alone
+            lo = Math.min(lo, m[i]);
+            hi = Math.max(hi, m[i]);
+            bblks.set(m[i] / BPB);
+        }
+        boolean frag = hi - lo + 1 != nb + ni;
+        if (frag)
+            nfrag++;
+        else if (!compact)
+            return 0;
+        if (nmoved + nb > budget)
+            return -1;
+        // the inode block, the new indirect block and at most two bitmap
+        // blocks for the new run are logged too
+        if (bblks.cardinality() + 4 > Journal.MAXOPBLOCKS) {
+            out.printf("defrag: inode %d: blocks too scattered to move in one operation%n", ip.inum);
+            return 0;
+        }
+        // a fragmented file goes to the first run in the group of its inode
+        // on, a compacted one to the first run of the image
+        Groups gr = Libfs.groups(img);
+        Bitmap.extent e = frag && !compact
+            ? Libfs.bitmap(img).alloc_first(nb + ni, gr.bstart(gr.igroup(ip.inum)), sb.size)
+            : Libfs.bitmap(img).alloc_first(nb + ni, 0, frag ? sb.size : lo);
+        if (e == null)
+            return 0; // no room
+
+        // copy the data, one read per old run
+        int[] nm = new int[MAXFILE];
+        for (int i = 0; i < nb; i++)
+            nm[i] = e.start + ni + i;
+        Libfs.prefetch(img, m, 0, nb);
+        byte[] buf = new byte[nb * BSIZE];
+        for (int i = 0; i < nb; ) {
+            int j = i + 1;
+            while (j < nb && m[j] == m[i] + (j - i))
+                j++;
+            img.get((long)m[i] * BSIZE, buf, i * BSIZE, (j - i) * BSIZE);
+            i = j;
+        }
+        img.put((long)nm[0] * BSIZE, buf, 0, buf.length);
+        Libfs.data_write(img, nm[0], nb);
+
+        // point the inode at the new blocks
+        if (ni != 0) {
+            byte[] ib = new byte[BSIZE];
+            ByteBuffer.wrap(ib).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(nm, NDIRECT, NINDIRECT);
+            img.put((long)e.start * BSIZE, ib, 0, BSIZE);
+            Libfs.log_write(img, e.start);
+        }
+        for (int i = 0; i < NDIRECT; i++)
+            ip.set_addr(i, nm[i]);
+        ip.set_addr(NDIRECT, ni != 0 ? e.start : 0);
+        ip.blkmap = nm;
+
+        // free the old ones
+        for (int i = 0; i < nb; ) {
+            int j = i + 1;
+            while (j < nb && m[j] == m[i] + (j - i))
+                j++;
+            Libfs.bfree_range(img, m[i], j - i);
+            i = j;
+        }
+        if (iaddr != 0)
+            Libfs.bfree(img, iaddr);
+
+        nmoved += nb;
+        nrelocated++;
+        if (frag)
+            nfixed++;
+        return 1;
+    }
+}
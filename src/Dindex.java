@@ -0,0 +1,115 @@
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+
+public class Dindex implements Filesystem {
+    /* in-memory directory index
+     *
+     * Built from the dirent array of one directory the first time it is
+     * searched, and kept current by daddent, iunlink, dmkparlink and
+     * dcompact.
+     *
+     *   ents  : name -> (inum, offset of the dirent)
+     *   holes : dirent slots (offset / DIRENTSIZE) with inum == 0
+     *
+     * Names are compared as the first DIRSIZ characters, as strncmp did.
+     */
+
+    static class dent {
+        final int inum;
+        final int off;
+
+        dent(int inum, int off) {
+            this.inum = inum;
+            this.off = off;
+        }
+    }
+
+    private final HashMap<String, dent> ents = new HashMap<>();
+    private final BitSet holes = new BitSet();
+
+    // buf holds the whole dirent array (size bytes) of the directory
+    Dindex(byte[] buf, int size) {
+        for (int off = 0; off + DIRENTSIZE <= size; off += DIRENTSIZE) {
+            int inum = decode_inum(buf, off);
+            if (inum == 0)
+                holes.set(off / DIRENTSIZE);
+            else
+                ents.putIfAbsent(decode_name(buf, off), new dent(inum, off));
+        }
+    }
+
+    static String key(String name) {
+        return name.length() > DIRSIZ ? name.substring(0, DIRSIZ) : name;
+    }
+
+    static int decode_inum(byte[] buf, int off) {
+        return (buf[off] & 0xff) | (buf[off + 1] & 0xff) << 8;
+    }
+
+    static String decode_name(byte[] buf, int off) {
+        int len = 0;
+        while (len < DIRSIZ && buf[off + 2 + len] != 0)
+            len++;
+        return new String(buf, off + 2, len, StandardCharsets.ISO_8859_1);
+    }
+
+    // returns the on-disk image of a dirent (inum, name)
+    static byte[] encode(int inum, String name) {
+        byte[] de = new byte[DIRENTSIZE];
+        de[0] = (byte)inum;
+        de[1] = (byte)(inum >>> 8);
+        name = key(name);
+        for (int i = 0; i < name.length(); i++)
+            de[2 + i] = (byte)name.charAt(i);
+        return de;
+    }
+
+    dent get(String name) {
+        return ents.get(key(name));
+    }
+
+    // # of live entries (including "." and "..")
+    int count() {
+        return ents.size();
+    }
+
+    // offset of the first empty slot, or size if the directory is full
+    int slot(int size) {
+        int i = holes.nextSetBit(0);
+        return i >= 0 && i * DIRENTSIZE < size ? i * DIRENTSIZE : size;
+    }
+
+    void add(String name, int inum, int off) {
+        ents.put(key(name), new dent(inum, off));
+        holes.clear(off / DIRENTSIZE);
+    }
+
+    void remove(String name) {
+        dent e = ents.remove(key(name));
+        if (e != null)
+            holes.set(e.off / DIRENTSIZE);
+    }
+
+    // the slots at the offsets a and b, holding the entries na and nb
+    // (null for an empty slot), have been exchanged
+    void swap(int a, String na, int b, String nb) {
+        if (na != null && ents.get(key(na)).off == a)
+            ents.put(key(na), new dent(ents.get(key(na)).inum, b));
+        if (nb != null && ents.get(key(nb)).off == b)
+            ents.put(key(nb), new dent(ents.get(key(nb)).inum, a));
+        holes.set(a / DIRENTSIZE, nb == null);
+        holes.set(b / DIRENTSIZE, na == null);
+    }
+
+    // offset just past the last entry in use: the smallest size the
+    // directory could be truncated to
+    int end(int size) {
+        return (holes.previousClearBit(size / DIRENTSIZE - 1) + 1) * DIRENTSIZE;
+    }
+
+    // the directory has been truncated to size bytes
+    void truncate(int size) {
+        holes.clear(size / DIRENTSIZE, Integer.MAX_VALUE);
+    }
+}
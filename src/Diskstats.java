@@ -0,0 +1,118 @@
+import java.io.PrintStream;
+import java.nio.LongBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class Diskstats implements Filesystem {
+    /* usage statistics of an image (diskinfo)
+     *
+     * The bitmap blocks are counted 64 bits at a time through a LongBuffer
+     * view, and the inode table is split across the common fork-join pool
+     * in runs of SPLIT inodes. Partial results are merged with add(), so
+     * further counters only need a field, a line in add() and in print().
+     */
+
+    static final int SPLIT = 4096; // max # of inodes scanned by one task
+
+    final Superblock sb;
+    long nused;   // # of used blocks (bits set in the bitmap)
+    int ndirs;    // # of directories
+    int nfiles;   // # of regular files
+    int ndevs;    // # of devices
+
+    Diskstats(Superblock sb) {
+        this.sb = sb;
+    }
+
+    // collects the statistics of the image
+    static Diskstats collect(Blockdev img) {
+        Superblock sb = Libfs.SBLK(img);
+        Diskstats st = ForkJoinPool.commonPool().invoke(new itask(img, sb, 0, sb.ninodeblks * IPB));
+        st.nused = count_bits(img, sb);
+        return st;
+    }
+
+    // # of bits set in the bitmap blocks
+    static long count_bits(Blockdev img, Superblock sb) {
+        long n = 0;
+        long pos = (long)sb.bmapstart * BSIZE;
+        for (int len = sb.nbmapblks * BSIZE, m; len > 0; len -= m, pos += m) {
+            LongBuffer words = img.slice(pos, m = img.span(pos, len)).asLongBuffer();
+            while (words.hasRemaining())
+                n += Long.bitCount(words.get());
+        }
+        return n;
+    }
+
+    // counts the types of the dinodes [lo, hi) of the inode blocks
+    static class itask extends RecursiveTask<Diskstats> {
+        private static final long serialVersionUID = 1L;
+
+        final Blockdev img;
+        final Superblock sb;
+        final int lo, hi;
+
+        itask(Blockdev img, Superblock sb, int lo, int hi) {
+            this.img = img;
+            this.sb = sb;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Diskstats compute() {
+            if (hi - lo > SPLIT) {
+                int mid = (lo + hi) >>> 1;
+                itask left = new itask(img, sb, lo, mid);
+                left.fork();
+                Diskstats st = new itask(img, sb, mid, hi).compute();
+                return st.add(left.join());
+            }
+            Diskstats st = new Diskstats(sb);
+            long base = (long)sb.inodestart * BSIZE;
+            for (int i = lo; i < hi; i++)
+                switch (img.getShort(base + (long)i * DINODESIZE)) {
+                    case Libfs.T_DIR:
+                        st.ndirs++;
+                        break;
+                    case Libfs.T_FILE:
+                        st.nfiles++;
+                        break;
+                    case Libfs.T_DEV:
+                        st.ndevs++;
+                        break;
+                }
+            return st;
+        }
+    }
+
+    // merges the counts of o into this
+    Diskstats add(Diskstats o) {
+        nused += o.nused;
+        ndirs += o.ndirs;
+        nfiles += o.nfiles;
+        ndevs += o.ndevs;
+        return this;
+    }
+
+    void print(PrintStream out) {
+        int N = sb.size;
+        int Ni = sb.ninodeblks;
+        int Nm = sb.nbmapblks;
+        int dstart = sb.datastart;
+        int Nd = sb.nblocks;
+
+        out.println("total blocks: " + N + "(" + (long)N * BSIZE + "bytes)");
+        out.println("log blocks: #" + sb.logstart + "-#" + (sb.logstart + sb.nlog - 1) + "(" + sb.nlog + "blocks)");
+        out.println("inode blocks: #" + sb.inodestart + "-#" + (sb.inodestart + Ni - 1) +" (" + Ni + " blocks, " + sb.ninodes +" inodes)");
+        out.println("bitmap blocks: #" + sb.bmapstart + "-#" + (sb.bmapstart + Nm - 1) + " (" + Nm + " blocks)");
+        out.println("data blocks: #" + dstart + "-#" + (dstart + Nd - 1) + " (" + Nd + " blocks)");
+        Groups gr = Libfs.groups(sb.img);
+        out.println("block groups: " + gr.ngroups + " (" + Groups.BPG + " blocks, " + gr.ipg + " inodes each)");
+        out.println("maximum file size (bytes): " + Libfs.MAXFILESIZE);
+        out.println("# of used blocks: " + nused);
+        out.println("# of used inodes: " + (ndirs + nfiles + ndevs) + " (dirs: " + ndirs + ", files: " + nfiles + ", devs: " + ndevs + ")");
+        if (sb.img instanceof Chandev)
+            out.println(((Chandev)sb.img).stats());
+    }
+}
@@ -8,11 +8,15 @@ public interface Filesystem {
     int NINDIRECT = (BSIZE / SIZEOFINT);
     int MAXFILE = (NDIRECT + NINDIRECT);
 
+    int DINODESIZE = 64; // sizeof(struct dinode)
+    int IPB = (BSIZE / DINODESIZE); // inodes per block
+
     int BPB = (BSIZE*8);
 
 
 
     int DIRSIZ = 14;
+    int DIRENTSIZE = 16; // sizeof(struct dirent)
 
     class dinode {
         short type;           // File type
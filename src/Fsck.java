@@ -0,0 +1,371 @@
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class Fsck implements Filesystem {
+    /* file system checker (fsck [-r])
+     *
+     * pass 1 (parallel, in runs of SPLIT inodes)
+     *   every allocated inode claims its data blocks and indirect block
+     *   in the expected bitmap; a block claimed twice is recorded in dup.
+     *   Every directory counts the references of its entries (nref, all
+     *   names but "."), records the directory it names each of its
+     *   subdirectories in (parent) and where its own ".." points (dotdot).
+     * pass 2 (sequential, over the results)
+     *   ".." of each directory against the directory naming it, as kept
+     *   by dmkparlink; reachability of each directory from ROOTINO;
+     *   nlink against nref; the on-disk bitmap against the claims.
+     *   Pass 1 also checks the order of the entries of sorted
+     *   directories (DFMT_SORTED).
+     *
+     * With -r, entries naming free or invalid inodes are erased, ".." is
+     * pointed at the real parent, nlink is set to nref, unreferenced files
+     * are freed, unsorted directories are marked plain and the bitmap is
+     * rewritten. Duplicate claims and
+     * unreachable directories are only reported. Repairing assumes that
+     * no other command runs on the image at the same time.
+     *
+     * fsck commits what is pending first, so blocks freed by earlier
+     * operations are free in the bitmap it checks (see Journal). Each
+     * repair is a log operation of its own that writes one or two blocks;
+     * the repairs share commits, so any number of them fits in the log.
+     */
+
+    static final int SPLIT = 1024; // max # of inodes checked by one task
+
+    private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    final Blockdev img;
+    final Superblock sb;
+    final PrintStream out;
+    private final long[] claimed;            // expected bitmap
+    private final long[] dup;                // blocks claimed more than once
+    private final AtomicIntegerArray nref;   // # of entries naming each inode
+    private final AtomicIntegerArray parent; // directory naming each directory (-1: many)
+    private final int[] dotdot;              // ".." of each directory
+    private final long[] dotpos;             // byte offset of that ".." entry
+    private int nproblems;
+    private int nrepaired;
+
+    // problems found by a pass 1 task, in inode order
+    static class report {
+        final ArrayList<String> msgs = new ArrayList<>();
+        final ArrayList<Long> baddents = new ArrayList<>(); // entries to erase
+        final ArrayList<Integer> badfmts = new ArrayList<>(); // directories to mark plain
+
+        report add(report r) {
+            msgs.addAll(r.msgs);
+            baddents.addAll(r.baddents);
+            badfmts.addAll(r.badfmts);
+            return this;
+        }
+    }
+
+    Fsck(Blockdev img, PrintStream out) {
+        this.img = img;
+        this.sb = Libfs.SBLK(img);
+        this.out = out;
+        this.claimed = new long[(sb.size + 63) / 64];
+        this.dup = new long[claimed.length];
+        this.nref = new AtomicIntegerArray(sb.ninodes);
+        this.parent = new AtomicIntegerArray(sb.ninodes);
+        this.dotdot = new int[sb.ninodes];
+        this.dotpos = new long[sb.ninodes];
+    }
+
+    // checks (and with repair, fixes) the image;
+    // returns the # of problems left
+    int run(boolean repair) {
+        Libfs.sync(img);
+        for (int b = 0; b < sb.datastart; b++)
+            claim(b);
+        report r = ForkJoinPool.commonPool().invoke(new itask(this, 1, sb.ninodes));
+        for (String msg : r.msgs)
+            problem(msg);
+        for (int w = 0; w < dup.length; w++)
+            for (long d = dup[w]; d != 0; d &= d - 1)
+                problem(String.format("block %d: claimed by more than one inode", w * 64 + Long.numberOfTrailingZeros(d)));
+        if (repair)
+            Libfs.begin_group(img);
+        try {
+            if (repair) {
+                for (long pos : r.baddents) {
+                    repair(() -> {
+                        for (int i = 0; i < DIRENTSIZE; i++)
+                            img.put(pos + i, (byte)0);
+                        Libfs.log_write(img, (int)(pos / BSIZE));
+                    });
+                }
+                nrepaired += r.baddents.size();
+                for (int inum : r.badfmts)
+                    repair(() -> Libfs.iget(img, inum).set_major(Libfs.DFMT_PLAIN));
+                nrepaired += r.badfmts.size();
+            }
+            check_dirs(repair);
+            check_nlinks(repair);
+            check_bitmap(repair);
+            if (repair && nrepaired > 0) {
+                // the in-core indices were built from the old contents
+                Libfs.reload(img);
+            }
+        } finally {
+            if (repair)
+                Libfs.end_group(img);
+        }
+        out.printf("fsck: %d problems, %d repaired%n", nproblems, nrepaired);
+        return nproblems - nrepaired;
+    }
+
+    // makes one repair as a log operation
+    private void repair(Runnable fix) {
+        Libfs.begin_op(img);
+        try {
+            fix.run();
+        } catch (RuntimeException | Error e) {
+            Libfs.fail_op(img);
+            throw e;
+        } finally {
+            Libfs.end_op(img);
+        }
+    }
+
+    private void problem(String msg) {
+        out.println(msg);
+        nproblems++;
+    }
+
+    // marks the block b used in the expected bitmap
+    private void claim(int b) {
+        long bit = 1L << b;
+        if (((long)BITS.getAndBitwiseOr(claimed, b >>> 6, bit) & bit) != 0)
+            BITS.getAndBitwiseOr(dup, b >>> 6, bit);
+    }
+
+    private void unclaim(int b) {
+        if ((dup[b >>> 6] & 1L << b) == 0)
+            claimed[b >>> 6] &= ~(1L << b);
+    }
+
+    private boolean allocated(int inum) {
+        return 0 < inum && inum < sb.ninodes && Libfs.iget(img, inum).type() != 0;
+    }
+
+    // nonzero block addresses of ip, the indirect block included
+    private ArrayList<Integer> blocks(Libfs.inode_t ip) {
+        ArrayList<Integer> bs = new ArrayList<>();
+        for (int i = 0; i < NDIRECT; i++)
+            if (ip.addr(i) != 0)
+                bs.add(ip.addr(i));
+        int iaddr = ip.addr(NDIRECT);
+        if (iaddr != 0) {
+            bs.add(iaddr);
+            if (Libfs.valid_data_block(img, iaddr))
+                for (int i = 0; i < NINDIRECT; i++) {
+                    int b = img.getInt((long)iaddr * BSIZE + i * SIZEOFINT);
+                    if (b != 0)
+                        bs.add(b);
+                }
+        }
+        return bs;
+    }
+
+    // pass 1 over the inodes [lo, hi)
+    static class itask extends RecursiveTask<report> {
+        private static final long serialVersionUID = 1L;
+
+        final Fsck fs;
+        final int lo, hi;
+
+        itask(Fsck fs, int lo, int hi) {
+            this.fs = fs;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected report compute() {
+            if (hi - lo > SPLIT) {
+                int mid = (lo + hi) >>> 1;
+                itask left = new itask(fs, lo, mid);
+                left.fork();
+                report r = new itask(fs, mid, hi).compute();
+                return left.join().add(r);
+            }
+            report r = new report();
+            for (int inum = lo; inum < hi; inum++)
+                fs.check_inode(inum, r);
+            return r;
+        }
+    }
+
+    private void check_inode(int inum, report r) {
+        Libfs.inode_t ip = Libfs.iget(img, inum);
+        int type = ip.type();
+        if (type == 0)
+            return;
+        if (type != Libfs.T_DIR && type != Libfs.T_FILE && type != Libfs.T_DEV) {
+            r.msgs.add(String.format("inode %d: bad type %d", inum, type));
+            return;
+        }
+        if (ip.size() < 0 || ip.size() > Libfs.MAXFILESIZE)
+            r.msgs.add(String.format("inode %d: bad size %d", inum, ip.size()));
+        for (int b : blocks(ip)) {
+            if (Libfs.valid_data_block(img, b))
+                claim(b);
+            else
+                r.msgs.add(String.format("inode %d: bad block %d", inum, b));
+        }
+        if (type == Libfs.T_DIR) {
+            check_entries(ip, r);
+            int fmt = ip.major();
+            if (fmt != Libfs.DFMT_PLAIN && (fmt != Libfs.DFMT_SORTED || !Libfs.dsorted(img, ip))) {
+                r.msgs.add(String.format("directory %d: not laid out as format %d says", inum, fmt));
+                r.badfmts.add(inum);
+            }
+        }
+    }
+
+    private void check_entries(Libfs.inode_t dp, report r) {
+        int inum = dp.inum;
+        boolean dot = false;
+        dotpos[inum] = -1;
+        for (int off = 0; off < dp.size(); off += DIRENTSIZE) {
+            int b = Libfs.iblock(img, dp, off / BSIZE);
+            if (!Libfs.valid_data_block(img, b))
+                break; // reported with the blocks
+            long pos = (long)b * BSIZE + off % BSIZE;
+            int e = Libfs.de_inum(img, pos);
+            if (e == 0)
+                continue;
+            String name = Libfs.de_name(img, pos);
+            if (!allocated(e)) {
+                r.msgs.add(String.format("directory %d: %s: free or invalid inode %d", inum, name, e));
+                r.baddents.add(pos);
+                continue;
+            }
+            if (name.equals(".")) {
+                dot = true;
+                if (e != inum)
+                    r.msgs.add(String.format("directory %d: \".\" is %d", inum, e));
+                continue;
+            }
+            nref.incrementAndGet(e);
+            if (name.equals("..")) {
+                dotdot[inum] = e;
+                dotpos[inum] = pos;
+            }
+            else if (Libfs.iget(img, e).type() == Libfs.T_DIR) {
+                if (!parent.compareAndSet(e, 0, inum))
+                    parent.set(e, -1);
+            }
+        }
+        if (!dot)
+            r.msgs.add(String.format("directory %d: no \".\"", inum));
+        if (dotpos[inum] < 0)
+            r.msgs.add(String.format("directory %d: no \"..\"", inum));
+    }
+
+    // ".." and reachability from the root
+    private void check_dirs(boolean repair) {
+        byte[] state = new byte[sb.ninodes]; // 0: unknown, 1: visiting, 2: reachable, 3: not
+        state[ROOTINO] = 2;
+        for (int d = 1; d < sb.ninodes; d++) {
+            if (Libfs.iget(img, d).type() != Libfs.T_DIR)
+                continue;
+            int p = d == ROOTINO ? ROOTINO : parent.get(d);
+            if (p == -1)
+                problem(String.format("directory %d: named in more than one directory", d));
+            else if (p == 0)
+                problem(String.format("directory %d: not named in any directory", d));
+            else if (dotpos[d] >= 0 && dotdot[d] != p) {
+                problem(String.format("directory %d: \"..\" is %d, expected %d", d, dotdot[d], p));
+                if (repair) {
+                    long pos = dotpos[d];
+                    repair(() -> {
+                        img.putShort(pos, (short)p);
+                        Libfs.log_write(img, (int)(pos / BSIZE));
+                    });
+                    nref.decrementAndGet(dotdot[d]);
+                    nref.incrementAndGet(p);
+                    dotdot[d] = p;
+                    nrepaired++;
+                }
+            }
+            if (reach(d, state) != 2 && p > 0)
+                problem(String.format("directory %d: not reachable from /", d));
+        }
+    }
+
+    private byte reach(int d, byte[] state) {
+        // walk up to a directory of known state, then mark the path
+        int x = d;
+        while (state[x] == 0) {
+            state[x] = 1;
+            int p = parent.get(x);
+            if (p <= 0 || Libfs.iget(img, p).type() != Libfs.T_DIR)
+                break;
+            x = p;
+        }
+        byte s = state[x] == 2 ? 2 : (byte)3;
+        for (x = d; x > 0 && state[x] == 1; x = parent.get(x))
+            state[x] = s;
+        return s;
+    }
+
+    private void check_nlinks(boolean repair) {
+        for (int inum = 1; inum < sb.ninodes; inum++) {
+            Libfs.inode_t ip = Libfs.iget(img, inum);
+            if (ip.type() == 0)
+                continue;
+            int n = nref.get(inum);
+            if (n == 0 && inum != ROOTINO) {
+                problem(String.format("inode %d: not referenced", inum));
+                if (repair && ip.type() != Libfs.T_DIR) {
+                    for (int b : blocks(ip))
+                        if (Libfs.valid_data_block(img, b))
+                            unclaim(b);
+                    repair(() -> {
+                        for (int i = 0; i < DINODESIZE; i += 8)
+                            img.putLong(ip.off + i, 0L);
+                        Libfs.log_write(img, (int)(ip.off / BSIZE));
+                    });
+                    nrepaired++;
+                }
+            }
+            else if (ip.nlink() != n) {
+                problem(String.format("inode %d: nlink %d, expected %d", inum, ip.nlink(), n));
+                if (repair) {
+                    repair(() -> ip.set_nlink(n));
+                    nrepaired++;
+                }
+            }
+        }
+    }
+
+    private void check_bitmap(boolean repair) {
+        long bmapoff = (long)sb.bmapstart * BSIZE;
+        for (int w = 0; w < claimed.length; w++) {
+            long valid = sb.size - w * 64L >= 64 ? -1L : (1L << (sb.size - w * 64)) - 1;
+            long disk = img.getLong(bmapoff + w * 8L);
+            long bad = (disk ^ claimed[w]) & valid;
+            if (bad == 0)
+                continue;
+            for (long m = bad; m != 0; m &= m - 1) {
+                int b = w * 64 + Long.numberOfTrailingZeros(m);
+                problem(String.format("block %d: %s", b, (claimed[w] & (m & -m)) != 0 ? "used but marked free" : "marked used but not used"));
+            }
+            if (repair) {
+                long pos = bmapoff + w * 8L, v = (disk & ~valid) | (claimed[w] & valid);
+                repair(() -> {
+                    img.putLong(pos, v);
+                    Libfs.log_write(img, (int)(pos / BSIZE));
+                });
+                nrepaired += Long.bitCount(bad);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+public class Groups implements Filesystem {
+    /* block groups (allocation policy, as FFS cylinder groups)
+     *
+     * The data region is split into groups of BPG blocks and the inode
+     * table into as many groups of ipg inodes; inode group g goes with
+     * block group g:
+     *
+     *   block group g:  [datastart + g * BPG, datastart + (g + 1) * BPG)
+     *   inode group g:  [g * ipg, (g + 1) * ipg)
+     *
+     * A new inode goes to the group of its directory, except that a new
+     * directory under the root goes to the group with the most free
+     * blocks, which spreads the top-level trees over the image. The first
+     * block of a file goes to the block group of its inode, the others
+     * right after the block before them. So a directory, the inodes of
+     * its entries and their data stay close, and a tree walk touches few
+     * inode and bitmap blocks.
+     *
+     * Groups are only where the searches start: Itable and Bitmap go on
+     * past a full group. An image of at most BPG data blocks has one
+     * group and keeps the lowest-first allocation of xv6.
+     */
+
+    static final int BPG = BPB;     // # of blocks per group (one bitmap block)
+
+    final Blockdev img;
+    final int ngroups;
+    final int ipg;                  // # of inodes per group
+    private final int dstart;       // 1st data block number
+    private final int size;         // # of blocks in the image
+    private final int ninodes;
+
+    Groups(Blockdev img, Superblock sb) {
+        this.img = img;
+        this.dstart = sb.datastart;
+        this.size = sb.size;
+        this.ninodes = sb.ninodes;
+        this.ngroups = Math.max(1, (size - dstart + BPG - 1) / BPG);
+        this.ipg = (ninodes + ngroups - 1) / ngroups;
+    }
+
+    // group of the inode inum
+    int igroup(int inum) {
+        return Math.min(inum / ipg, ngroups - 1);
+    }
+
+    // 1st block number of the group g
+    int bstart(int g) {
+        return dstart + g * BPG;
+    }
+
+    // 1st inode number of the group g
+    int istart(int g) {
+        return Math.max(1, g * ipg);
+    }
+
+    // inode number to look for a free inode from, for a new inode of
+    // the type in the directory dp
+    int ipref(Libfs.inode_t dp, int type) {
+        int g = igroup(dp.inum);
+        if (type == Libfs.T_DIR && dp.inum == ROOTINO && ngroups > 1) {
+            Bitmap bm = Libfs.bitmap(img);
+            Itable it = Libfs.itable(img);
+            int most = -1;
+            for (int i = 0; i < ngroups; i++) {
+                if (it.nfree(istart(i), (i + 1) * ipg) == 0)
+                    continue;
+                int n = bm.nfree(bstart(i), Math.min(size, bstart(i + 1)));
+                if (n > most) {
+                    most = n;
+                    g = i;
+                }
+            }
+        }
+        return istart(g);
+    }
+
+    // block number to look for the n-th block of the file ip from
+    // (m is its block map)
+    int bpref(Libfs.inode_t ip, int[] m, int n) {
+        if (n > 0 && m[n - 1] != 0)
+            return m[n - 1] + 1;
+        return bstart(igroup(ip.inum));
+    }
+}
@@ -0,0 +1,149 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class Itable implements Filesystem {
+    /* inode table index
+     *
+     * Holds one in-core handle per inode number, so that an inode_t can
+     * be mapped back to its number without searching the inode blocks
+     * and handles of the same inode compare equal with ==.
+     * Free inodes are kept in a bitset built once from the dinode types:
+     *
+     *   free[inum / 64] bit (inum % 64) == 1  <=>  inode inum has type 0
+     *
+     * cursor is a lower bound of the free inode numbers, so ialloc still
+     * returns the lowest free inode. Handles and free bits are claimed
+     * with compare-and-set, so ialloc/ifree need no lock; a race may
+     * leave cursor too high, in which case alloc wraps around once.
+     */
+
+    private static final VarHandle FREE = MethodHandles.arrayElementVarHandle(long[].class);
+
+    final Blockdev img;
+    private final int ninodes;           // # of inodes
+    private final long ioff;             // byte offset of the 1st inode block
+    private final AtomicReferenceArray<Libfs.inode_t> handles;
+    private final long[] free;           // free inode bitset
+    private final AtomicInteger nfree = new AtomicInteger(); // # of free inodes
+    private final AtomicInteger cursor = new AtomicInteger(1); // lowest possibly free inode number
+
+    Itable(Blockdev img, Superblock sb) {
+        this.img = img;
+        this.ninodes = sb.ninodes;
+        this.ioff = (long)sb.inodestart * BSIZE;
+        this.handles = new AtomicReferenceArray<>(ninodes);
+        this.free = new long[(ninodes + 63) / 64];
+        for (int inum = 1; inum < ninodes; inum++) {
+            if (img.getShort(offset(inum)) == 0) {
+                free[inum >>> 6] |= 1L << inum;
+                nfree.incrementAndGet();
+            }
+        }
+    }
+
+    // byte offset of the inum-th dinode in the image
+    long offset(int inum) {
+        return ioff + (long)inum * DINODESIZE;
+    }
+
+    // returns the handle of the inum-th inode
+    Libfs.inode_t get(int inum) {
+        Libfs.inode_t ip = handles.get(inum);
+        if (ip == null) {
+            ip = new Libfs.inode_t(img, inum, offset(inum));
+            if (!handles.compareAndSet(inum, null, ip))
+                ip = handles.get(inum);
+        }
+        return ip;
+    }
+
+    // # of free inodes
+    int nfree() {
+        return nfree.get();
+    }
+
+    // # of free inodes in [lo, hi)
+    int nfree(int lo, int hi) {
+        int n = 0;
+        for (int inum = lo; inum < hi && inum < ninodes; inum++)
+            if (((long)FREE.getVolatile(free, inum >>> 6) & 1L << inum) != 0)
+                n++;
+        return n;
+    }
+
+    // takes the lowest free inode number from `from` on, wrapping around
+    // (Groups picks from), or returns 0 if there is none
+    int alloc(int from) {
+        if (from > cursor.get()) {
+            int inum = scan(from);
+            if (inum != 0) {
+                nfree.decrementAndGet();
+                return inum;
+            }
+        }
+        return alloc();
+    }
+
+    // takes the lowest free inode number, or returns 0 if there is none
+    int alloc() {
+        int start = cursor.get();
+        int inum = scan(start);
+        if (inum == 0 && start > 1)
+            inum = scan(1);
+        if (inum != 0) {
+            nfree.decrementAndGet();
+            cursor.compareAndSet(start, inum + 1);
+        }
+        return inum;
+    }
+
+    // claims the first free inode number >= from
+    private int scan(int from) {
+        for (int k = from >>> 6; k < free.length && nfree.get() > 0; k++) {
+            while (true) {
+                long s = (long)FREE.getVolatile(free, k);
+                long m = s;
+                if (k == from >>> 6)
+                    m &= -1L << from;
+                if (m == 0)
+                    break;
+                long bit = m & -m;
+                if (FREE.compareAndSet(free, k, s, s & ~bit))
+                    return (k << 6) + Long.numberOfTrailingZeros(bit);
+            }
+        }
+        return 0;
+    }
+
+    // rebuilds the free set from the dinode types and drops the caches
+    // of the handles, after the image was rolled back (see Journal)
+    void reload() {
+        int n = 0;
+        for (int k = 0; k < free.length; k++)
+            FREE.setVolatile(free, k, 0L);
+        for (int inum = 1; inum < ninodes; inum++) {
+            if (img.getShort(offset(inum)) == 0) {
+                FREE.getAndBitwiseOr(free, inum >>> 6, 1L << inum);
+                n++;
+            }
+            Libfs.inode_t ip = handles.get(inum);
+            if (ip != null) {
+                ip.dindex = null;
+                ip.blkmap = null;
+            }
+        }
+        nfree.set(n);
+        cursor.set(1);
+    }
+
+    // returns inode inum to the free set
+    void free(int inum) {
+        long bit = 1L << inum;
+        if (((long)FREE.getAndBitwiseOr(free, inum >>> 6, bit) & bit) != 0)
+            return;
+        nfree.incrementAndGet();
+        cursor.accumulateAndGet(inum, Math::min);
+    }
+}
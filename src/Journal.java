@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Journal implements Filesystem {
+    /* redo log in the log region (xv6 log.c)
+     *
+     * log region: | header | log block 1 | ... | log block n |
+     * header:     | n | block[0] | ... | block[n - 1] |   (ints)
+     *
+     * The image is opened privately (MapMode.PRIVATE), so changes made
+     * through the Blockdev never reach the file by themselves. Libfs marks
+     * every block it changes: metadata (inode, bitmap and directory blocks,
+     * indirect blocks) with log_write, file data with data_write.
+     *
+     * A commit writes the data blocks in place and forces them, copies the
+     * metadata blocks to the log and forces it, writes the header (the
+     * commit point) and forces it, then installs the blocks in place and
+     * clears the header. After a crash, recover() replays a committed log
+     * once its header has been checked against the log region.
+     *
+     * A block freed by the transaction (bfree) is not given back to the
+     * Bitmap until the commit (as jbd does): until then the committed
+     * image may still point at it, and a block handed out again would get
+     * its new data written in place before the commit point. The commit
+     * clears the bits, so the frees reach the image with the rest of the
+     * transaction, and the blocks are free to allocate after it.
+     *
+     * A transaction never goes over the log: an operation that writes
+     * more metadata blocks than the log has left fails (fatal), and
+     * begin_op refuses to run when the log cannot hold an operation. An
+     * operation that fails half-way (fail) dooms the transaction: its
+     * changes cannot be told apart from those of the operations sharing
+     * it, so when the last of them ends the transaction is rolled back
+     * (the blocks it changed are read back from the file, and Libfs.reload
+     * drops what the caches derived from them) instead of committed.
+     *
+     * Operations run between begin_op and end_op. The transaction is
+     * committed when the last outstanding operation ends, so concurrent
+     * operations share one commit (group commit); begin_op waits while the
+     * log could not hold MAXOPBLOCKS more blocks per operation. Between
+     * hold() and release() (a batch) commits are put off until the log is
+     * nearly full, so consecutive operations share commits too. A commit
+     * is also due when the Blockdev holds too many changes (must_flush);
+     * the blocks a commit writes are reported to it with written().
+     *
+     * durability modes (OPFS_SYNC)
+     *   command   commit when the operations end (default)
+     *   <ms>      commit every <ms> milliseconds
+     *   manual    commit on sync, when the log is nearly full and on exit
+     *   none      no log: the image is opened shared and written back
+     *             when the Blockdev likes; sync forces the dirty blocks with
+     *             Blockdev.force, one call per contiguous span
+     * In every mode a commit costs in proportion to the dirty blocks.
+     */
+
+    static final int MAXOPBLOCKS = 10; // max # of metadata blocks an operation writes
+
+    static final int SYNC_NONE = 0;
+    static final int SYNC_COMMAND = 1;
+    static final int SYNC_INTERVAL = 2;
+    static final int SYNC_MANUAL = 3;
+
+    final Blockdev img;
+    final FileChannel ch;
+    private final int logstart;     // header block
+    private final int bmapstart;    // 1st bitmap block
+    private final int cap;          // # of blocks the log holds
+    private final BitSet meta = new BitSet();  // metadata blocks of the transaction
+    private final BitSet data = new BitSet();  // data blocks of the transaction
+    private final BitSet freed = new BitSet(); // blocks the transaction frees
+    private int nmeta;              // # of metadata blocks of the transaction
+    private int outstanding;        // # of operations running
+    private int hold;               // > 0 while commits are put off
+    private boolean due;            // commit when the running operations end
+    private boolean failed;         // roll back when the running operations end
+    private long nrollback;         // # of transactions rolled back
+    final int mode;                 // SYNC_*
+    private final ScheduledExecutorService timer; // SYNC_INTERVAL only
+
+    // img must be opened privately unless mode is SYNC_NONE
+    Journal(Blockdev img, FileChannel ch, int mode, long interval) {
+        Superblock sb = Libfs.SBLK(img);
+        this.img = img;
+        this.ch = ch;
+        this.mode = mode;
+        this.logstart = sb.logstart;
+        this.bmapstart = sb.bmapstart;
+        this.cap = capacity(sb);
+        if (mode == SYNC_INTERVAL) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "opfs-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        else
+            timer = null;
+    }
+
+    // parses an OPFS_SYNC value into {mode, interval}; null if it is bad
+    static long[] parse_mode(String s) {
+        if (s == null || s.equals("command"))
+            return new long[] { SYNC_COMMAND, 0 };
+        if (s.equals("manual"))
+            return new long[] { SYNC_MANUAL, 0 };
+        if (s.equals("none"))
+            return new long[] { SYNC_NONE, 0 };
+        try {
+            long ms = Long.parseLong(s);
+            return ms > 0 ? new long[] { SYNC_INTERVAL, ms } : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // # of blocks the log of the image holds (the header lists them)
+    static int capacity(Superblock sb) {
+        return Math.min(sb.nlog - 1, BSIZE / SIZEOFINT - 1);
+    }
+
+    // the log could overflow if more operations ran
+    private boolean log_full(int more) {
+        return mode != SYNC_NONE && nmeta + more * MAXOPBLOCKS > cap;
+    }
+
+    // the transaction must be committed before more operations run:
+    // the log could overflow, or the device holds too many changes
+    private boolean full(int more) {
+        return log_full(more) || img.must_flush();
+    }
+
+    synchronized void begin_op() {
+        if (mode != SYNC_NONE && cap < MAXOPBLOCKS) {
+            Libfs.fatal("log: %d blocks, an operation may need %d", cap, MAXOPBLOCKS);
+            return; // dummy
+        }
+        while (failed || full(outstanding + 1)) {
+            if (outstanding > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                continue;
+            }
+            commit();
+            if (!log_full(outstanding + 1))
+                break; // the device keeps asking with nothing left to write
+        }
+        outstanding++;
+    }
+
+    synchronized void end_op() {
+        outstanding--;
+        if (outstanding == 0 && (failed || due || full(1) || (mode == SYNC_COMMAND && hold == 0)))
+            commit();
+        notifyAll();
+    }
+
+    // dooms the transaction of the running operations, one of which
+    // failed half-way: it is rolled back when they end
+    synchronized void fail() {
+        failed = true;
+    }
+
+    // # of transactions rolled back so far
+    synchronized long rollbacks() {
+        return nrollback;
+    }
+
+    // puts off commits until release
+    synchronized void hold() {
+        hold++;
+    }
+
+    synchronized void release() {
+        if (--hold == 0 && outstanding == 0 && mode == SYNC_COMMAND)
+            commit();
+        notifyAll();
+    }
+
+    // commits (or in SYNC_NONE, forces) everything changed so far;
+    // waits for the running operations to end
+    synchronized void sync() {
+        while (outstanding > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        commit();
+    }
+
+    private synchronized void tick() {
+        if (outstanding > 0)
+            due = true;
+        else {
+            try {
+                commit();
+            } catch (Libfs.fatal_exception e) {
+                // reported by fatal; retried on the next tick
+            }
+        }
+    }
+
+    // commits what is left before the image is closed
+    synchronized void close() {
+        if (timer != null)
+            timer.shutdownNow();
+        if (mode != SYNC_NONE)
+            commit();
+    }
+
+    synchronized void log_write(int b) {
+        if (meta.get(b))
+            return;
+        meta.set(b);
+        nmeta++;
+        if (log_full(0)) {
+            failed = true;
+            Libfs.fatal("log: more than %d blocks in a transaction", cap);
+        }
+    }
+
+    synchronized void data_write(int b, int n) {
+        data.set(b, b + n);
+    }
+
+    // frees the n blocks starting at b when the transaction commits;
+    // false if they are to be freed now (no log)
+    synchronized boolean free(int b, int n) {
+        if (mode == SYNC_NONE)
+            return false;
+        for (int m = b / BPB; m <= (b + n - 1) / BPB; m++)
+            log_write(bmapstart + m);
+        freed.set(b, b + n);
+        return true;
+    }
+
+    // writes the transaction out, or rolls it back if it failed;
+    // called with no operation running
+    private void commit() {
+        if (failed) {
+            rollback();
+            return;
+        }
+        due = false;
+        if (!freed.isEmpty()) {
+            // the bitmap blocks are in the transaction already (free)
+            Bitmap bm = Libfs.bitmap(img);
+            for (int b = freed.nextSetBit(0); b >= 0; ) {
+                int e = freed.nextClearBit(b);
+                bm.free(b, e - b);
+                b = freed.nextSetBit(e);
+            }
+            freed.clear();
+        }
+        if (meta.isEmpty() && data.isEmpty())
+            return;
+        if (mode == SYNC_NONE) {
+            data.or(meta);
+            for (int b = data.nextSetBit(0); b >= 0; ) {
+                int e = data.nextClearBit(b);
+                img.force((long)b * BSIZE, (long)(e - b) * BSIZE);
+                b = data.nextSetBit(e);
+            }
+            meta.clear();
+            data.clear();
+            nmeta = 0;
+            return;
+        }
+        data.andNot(meta);
+        try {
+            // data blocks first, so that committed metadata never points
+            // at stale data
+            for (int b = data.nextSetBit(0); b >= 0; ) {
+                int e = data.nextClearBit(b);
+                write_blocks(b, e - b);
+                b = data.nextSetBit(e);
+            }
+            int n = nmeta;
+            if (n > 0) {
+                ch.force(false);
+                ByteBuffer log = ByteBuffer.allocate(n * BSIZE);
+                ByteBuffer head = ByteBuffer.allocate(BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+                head.putInt(n);
+                for (int b = meta.nextSetBit(0); b >= 0; b = meta.nextSetBit(b + 1)) {
+                    log.put(img.slice((long)b * BSIZE, BSIZE));
+                    head.putInt(b);
+                }
+                write(log.flip(), logstart + 1);
+                ch.force(false);
+                write(head.clear(), logstart);  // commit point
+                ch.force(false);
+                install();
+                ch.force(false);
+                write(ByteBuffer.allocate(BSIZE), logstart);
+                ch.force(false);
+            }
+            else
+                ch.force(false);
+        } catch (IOException e) {
+            Libfs.fatal("log: %s", e.getMessage());
+        }
+        data.or(meta);
+        for (int b = data.nextSetBit(0); b >= 0; ) {
+            int e = data.nextClearBit(b);
+            img.written((long)b * BSIZE, (long)(e - b) * BSIZE);
+            b = data.nextSetBit(e);
+        }
+        meta.clear();
+        data.clear();
+        nmeta = 0;
+    }
+
+    // drops the transaction; called with no operation running. The file
+    // holds the image as of the last commit, so the blocks the transaction
+    // changed are read back from it. Under SYNC_NONE the changes may be
+    // in the file already and stay: the image may need fsck -r.
+    private void rollback() {
+        failed = false;
+        nrollback++;
+        if (mode == SYNC_NONE)
+            Libfs.debug_message("WARNING", "an operation failed half-way with no log; run fsck");
+        else {
+            data.or(meta);
+            ByteBuffer buf = ByteBuffer.allocate(BSIZE);
+            try {
+                for (int b = data.nextSetBit(0); b >= 0; b = data.nextSetBit(b + 1)) {
+                    read(ch, buf.clear(), b);
+                    img.put((long)b * BSIZE, buf.array(), 0, BSIZE);
+                    img.written((long)b * BSIZE, BSIZE);
+                }
+            } catch (IOException e) {
+                Libfs.fatal("log: %s", e.getMessage());
+            }
+            meta.clear();
+            data.clear();
+            freed.clear();
+            nmeta = 0;
+        }
+        Libfs.reload(img);
+    }
+
+    // writes the metadata blocks in place
+    private void install() throws IOException {
+        for (int b = meta.nextSetBit(0); b >= 0; b = meta.nextSetBit(b + 1))
+            write_blocks(b, 1);
+    }
+
+    // writes the n blocks of the image starting at b in place
+    private void write_blocks(int b, int n) throws IOException {
+        long pos = (long)b * BSIZE;
+        for (long len = (long)n * BSIZE; len > 0; ) {
+            ByteBuffer src = img.slice(pos, img.span(pos, (int)Math.min(len, Integer.MAX_VALUE)));
+            len -= src.remaining();
+            while (src.hasRemaining())
+                pos += ch.write(src, pos);
+        }
+    }
+
+    private void write(ByteBuffer src, int b) throws IOException {
+        for (long pos = (long)b * BSIZE; src.hasRemaining(); )
+            pos += ch.write(src, pos);
+    }
+
+    // the superblock of the image open on ch
+    private static Superblock read_sb(FileChannel ch) throws IOException {
+        ByteBuffer sbuf = ByteBuffer.allocate(2 * BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+        read(ch, sbuf, 0);
+        return Superblock.read(sbuf);
+    }
+
+    // the header block of the log of the image open on ch
+    private static ByteBuffer read_head(FileChannel ch, Superblock sb) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+        read(ch, head, sb.logstart);
+        return head;
+    }
+
+    private static void read(FileChannel ch, ByteBuffer dst, int b) throws IOException {
+        for (long pos = (long)b * BSIZE; dst.hasRemaining(); ) {
+            int r = ch.read(dst, pos);
+            if (r < 0)
+                throw new IOException("short image");
+            pos += r;
+        }
+    }
+
+    // checks if the image open on ch has a committed transaction
+    static boolean pending(FileChannel ch) throws IOException {
+        return read_head(ch, read_sb(ch)).getInt(0) > 0;
+    }
+
+    // replays the committed transaction of the image open on ch, if any.
+    // A header that lists more blocks than the log holds, or a block
+    // outside the blocks after the log, is not replayed: IOException
+    static void recover(FileChannel ch) throws IOException {
+        Superblock sb = read_sb(ch);
+        ByteBuffer head = read_head(ch, sb);
+        int n = head.getInt(0);
+        if (n <= 0)
+            return;
+        if (n > capacity(sb))
+            throw new IOException(String.format("log header: %d blocks, the log holds %d", n, capacity(sb)));
+        for (int i = 0; i < n; i++) {
+            int b = head.getInt(SIZEOFINT * (i + 1));
+            if (b < sb.logstart + sb.nlog || b >= sb.size)
+                throw new IOException(String.format("log header: block %d not after the log", b));
+        }
+        ByteBuffer buf = ByteBuffer.allocate(BSIZE);
+        for (int i = 0; i < n; i++) {
+            read(ch, buf.clear(), sb.logstart + 1 + i);
+            buf.flip();
+            for (long pos = (long)head.getInt(SIZEOFINT * (i + 1)) * BSIZE; buf.hasRemaining(); )
+                pos += ch.write(buf, pos);
+        }
+        ch.force(false);
+        ch.write(ByteBuffer.allocate(BSIZE), (long)sb.logstart * BSIZE);
+        ch.force(false);
+    }
+}
@@ -1,4 +1,13 @@
-import java.nio.MappedByteBuffer;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Libfs implements Filesystem{
     /* img file structure
@@ -85,16 +94,103 @@ public class Libfs implements Filesystem{
     static final int T_FILE = 2;
     static final int T_DEV = 3;
 
+    // directory formats, kept in dinode.major of a T_DIR (unused by xv6);
+    // both are plain dirent arrays to readers that do not know them
+    static final int DFMT_PLAIN = 0;   // entries in any order
+    static final int DFMT_SORTED = 1;  // ".", "..", then the other names in
+                                       // ascending order, holes allowed
+
     static final int MAXFILESIZE = (MAXFILE * BSIZE);
     static final int BUFSIZE  = 1024;
+    static final int RECVSIZE = 64 * 1024; // bytes per irecv chunk of unknown-size input
+    static final byte[] ZEROS = new byte[BSIZE];
+    static final int RAMIN = 4;            // first readahead window of iread (blocks)
+    static final int RAMAX = 32;           // largest readahead window of iread (blocks)
+
+    // in-core handle of an on-disk inode
+    // the accessors read and write the dinode fields in the image in place
+    //
+    // lock guards the size, the block addresses and block map, the data and
+    // the directory index: iread/isend/dlookup take it shared, iwrite/itruncate/irecv and
+    // the directory updates exclusive. A thread holding the lock of a
+    // directory may lock its entries, never the other way around. nlink is
+    // changed by add_nlink only, since links come and go under the lock
+    // of the parent directories rather than of the inode itself.
+    static class inode_t {
+        static final int ADDRS = 12;  // offset of addrs[0] in a dinode
+
+        final Blockdev img;
+        final int inum;  // inode number
+        final long off;  // byte offset of the dinode in the image
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        volatile Dindex dindex;   // directory index (T_DIR only, built on first use)
+        volatile int[] blkmap;    // data block numbers (see blkmap, built on first use)
+        // readahead state of iread, swapped as one word since readers share
+        // the read lock: where a sequential read would go on (high 32
+        // bits), the block index the readahead has reached (next 16) and
+        // the current window in blocks (low 16)
+        final AtomicLong ra = new AtomicLong();
+
+        inode_t(Blockdev img, int inum, long off) {
+            this.img = img;
+            this.inum = inum;
+            this.off = off;
+        }
 
-    // inode
-    class inode_t {
-        dinode[] dinodes;
+        short type()  { return img.getShort(off); }
+        short major() { return img.getShort(off + 2); }
+        short minor() { return img.getShort(off + 4); }
+        short nlink() { return img.getShort(off + 6); }
+        int size()    { return img.getInt(off + 8); }
+
+        // i-th block address (i <= NDIRECT)
+        int addr(int i) { return img.getInt(addrpos(i)); }
+
+        // byte offset of addrs[i] in the image
+        long addrpos(int i) { return off + ADDRS + i * SIZEOFINT; }
+
+        void set_type(int v)  { img.putShort(off, (short)v); log_write(img, (int)(off / BSIZE)); }
+        void set_major(int v) { img.putShort(off + 2, (short)v); log_write(img, (int)(off / BSIZE)); }
+        void set_nlink(int v) { img.putShort(off + 6, (short)v); log_write(img, (int)(off / BSIZE)); }
+        void set_size(int v)  { img.putInt(off + 8, v); log_write(img, (int)(off / BSIZE)); }
+        void set_addr(int i, int b) { img.putInt(addrpos(i), b); log_write(img, (int)(off / BSIZE)); }
+
+        // adds d to nlink and returns the new value
+        synchronized int add_nlink(int d) {
+            int v = nlink() + d;
+            set_nlink(v);
+            return v;
+        }
     }
 
-    static Superblock SBLK(MappedByteBuffer img) {
-        return img[1];
+    // superblock of the mapped image (decoded once)
+    static volatile Superblock sblk;
+
+    static Superblock SBLK(Blockdev img) {
+        Superblock sb = sblk;
+        if (sb == null || sb.img != img) {
+            synchronized (Libfs.class) {
+                sb = sblk;
+                if (sb == null || sb.img != img)
+                    sblk = sb = Superblock.read(img);
+            }
+        }
+        return sb;
+    }
+
+    // dirent view: fields of the dirent at byte offset pos of the image
+    static int de_inum(Blockdev img, long pos) {
+        return img.getShort(pos) & 0xffff;
+    }
+
+    static String de_name(Blockdev img, long pos) {
+        int len = 0;
+        while (len < DIRSIZ && img.get(pos + 2 + len) != 0)
+            len++;
+        char[] name = new char[len];
+        for (int i = 0; i < len; i++)
+            name[i] = (char)(img.get(pos + 2 + i) & 0xff);
+        return new String(name);
     }
 
 
@@ -123,12 +219,29 @@ public class Libfs implements Filesystem{
      */
 
     // program name
-    static String progname;
-    jmp_buf fatal_exception_buf;
+    static final String progname = "opfs";
+
+    // standard error of the command running in this thread when it is
+    // redirected (server connections); null means the process's stderr
+    static final ThreadLocal<PrintStream> cmd_stderr = new ThreadLocal<>();
+
+    static PrintStream stderr() {
+        PrintStream ps = cmd_stderr.get();
+        return ps != null ? ps : System.err;
+    }
+
+    // thrown by fatal to abandon the running command
+    static class fatal_exception extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        fatal_exception(String msg) {
+            super(msg);
+        }
+    }
 
     static public void debug_message(final String tag, final String fmt, Object... args) {
         String str = String.format(tag + ": " + fmt, args);
-        System.err.println(str);
+        stderr().println(str);
     }
 
     static private void derror(final String fmt, Object... args) {
@@ -141,13 +254,13 @@ public class Libfs implements Filesystem{
 
     public static void error(final String fmt, Object... args) {
         String str = String.format(fmt, args);
-        System.err.println(str);
+        stderr().println(str);
     }
 
     public static void fatal(final String fmt, Object... args) {
         String str = String.format("FATAL: " + fmt, args);
-        System.err.println(str);
-        longjmp(fatal_exception_buf, 1);
+        stderr().println(str);
+        throw new fatal_exception(str);
     }
 
     public static String typename(int type) {
@@ -169,51 +282,221 @@ public class Libfs implements Filesystem{
      */
 
     // checks if b is a valid data block number
-    public static boolean valid_data_block(MappedByteBuffer img, int b) {
-    final int Nl = SBLK(img).nlog;                    // # of log blocks
-    final int Ni = SBLK(img).ninodes / IPB + 1;       // # of inode blocks
-    final int Nm = SBLK(img).size / (BSIZE * 8) + 1;  // # of bitmap blocks
-    final int Nd = SBLK(img).nblocks;                 // # of data blocks
-    final int d = 2 + Nl + Ni + Nm;                    // 1st data block number
-        return d <= b && b <= d + Nd - 1;
-    }
-
-    // allocates a new data block and returns its block number
-    static int balloc(MappedByteBuffer img) {
-        for (int b = 0; b < SBLK(img).size; b += BPB) {
-            String bp = img[BBLOCK(b, SBLKS(img))];
-            for (int bi = 0; bi < BPB && b + bi < SBLK(img).size; bi++) {
-                int m = 1 << (bi % 8);
-                if ((bp[bi / 8] & m) == 0) {
-                    bp[bi / 8] |= m;
-                    if (!valid_data_block(img, b + bi)) {
-                        fatal("balloc: " + (b + bi) + ": invalid data block number");
-                        return 0; // dummy
-                    }
-                    memset(img[b + bi], 0, BSIZE);
-                    return b + bi;
-                }
+    public static boolean valid_data_block(Blockdev img, int b) {
+        Superblock sb = SBLK(img);
+        return sb.datastart <= b && b <= sb.datastart + sb.nblocks - 1;
+    }
+
+    // redo log of the mapped image; null unless the image is mapped
+    // privately and changes reach the file through the log (see Journal)
+    static volatile Journal journal;
+
+    static Journal journal(Blockdev img) {
+        Journal j = journal;
+        return j != null && j.img == img ? j : null;
+    }
+
+    // checks if the changes to img reach the file through the log, so
+    // that an operation is one step across a crash
+    static boolean logged(Blockdev img) {
+        Journal j = journal(img);
+        return j != null && j.mode != Journal.SYNC_NONE;
+    }
+
+    // brackets an operation that changes the image
+    static void begin_op(Blockdev img) {
+        Journal j = journal(img);
+        if (j != null)
+            j.begin_op();
+    }
+
+    static void end_op(Blockdev img) {
+        Journal j = journal(img);
+        if (j != null)
+            j.end_op();
+    }
+
+    // called before end_op by an operation that threw half-way: the
+    // transaction is rolled back instead of committed (see Journal)
+    static void fail_op(Blockdev img) {
+        Journal j = journal(img);
+        if (j != null)
+            j.fail();
+    }
+
+    // # of transactions rolled back so far
+    static long rollbacks(Blockdev img) {
+        Journal j = journal(img);
+        return j != null ? j.rollbacks() : 0;
+    }
+
+    // drops what the caches hold about the image after it was rolled
+    // back (Journal); called with no operation running
+    static void reload(Blockdev img) {
+        synchronized (Libfs.class) {
+            if (bitmap != null && bitmap.img == img)
+                bitmap = null;
+        }
+        Itable it = itable;
+        if (it != null && it.img == img)
+            it.reload();
+        Dcache dc = dcache;
+        if (dc != null && dc.img == img)
+            dc.clear();
+    }
+
+    // makes the changes so far durable (sync command)
+    static void sync(Blockdev img) {
+        Journal j = journal(img);
+        if (j != null)
+            j.sync();
+    }
+
+    // lets the operations up to end_group share commits (batch mode)
+    static void begin_group(Blockdev img) {
+        Journal j = journal(img);
+        if (j != null)
+            j.hold();
+    }
+
+    static void end_group(Blockdev img) {
+        Journal j = journal(img);
+        if (j != null)
+            j.release();
+    }
+
+    // records a change of the metadata block b
+    static void log_write(Blockdev img, int b) {
+        Journal j = journal(img);
+        if (j != null)
+            j.log_write(b);
+    }
+
+    // records a change of the n data blocks starting at b
+    static void data_write(Blockdev img, int b, int n) {
+        Journal j = journal(img);
+        if (j != null)
+            j.data_write(b, n);
+    }
+
+    // records a change of the block b of the file ip;
+    // directory contents are metadata
+    static void iwritten(Blockdev img, inode_t ip, int b) {
+        if (ip.type() == T_DIR)
+            log_write(img, b);
+        else
+            data_write(img, b, 1);
+    }
+
+    // free block bitmap of the mapped image (built on first use)
+    static volatile Bitmap bitmap;
+
+    static Bitmap bitmap(Blockdev img) {
+        Bitmap c = bitmap;
+        if (c == null || c.img != img) {
+            synchronized (Libfs.class) {
+                c = bitmap;
+                if (c == null || c.img != img)
+                    bitmap = c = new Bitmap(img, SBLK(img));
             }
         }
-        fatal("balloc: no free blocks");
-        return 0; // dummy
+        return c;
     }
 
-    // frees the block specified by b
-    static int bfree(MappedByteBuffer img, int b) {
+    // block groups of the mapped image (built on first use)
+    static volatile Groups groups;
+
+    static Groups groups(Blockdev img) {
+        Groups c = groups;
+        if (c == null || c.img != img) {
+            synchronized (Libfs.class) {
+                c = groups;
+                if (c == null || c.img != img)
+                    groups = c = new Groups(img, SBLK(img));
+            }
+        }
+        return c;
+    }
+
+    // fills the block b with zeros
+    static void bzero(Blockdev img, int b) {
+        for (int i = 0; i < BSIZE; i += 8)
+            img.putLong((long)b * BSIZE + i, 0L);
+        data_write(img, b, 1);
+    }
+
+    // allocates a new data block, near the block hint (see Groups),
+    // and returns its block number
+    static int balloc(Blockdev img, int hint) {
+        if (img.isReadOnly()) {
+            fatal("balloc: read-only image");
+            return 0; // dummy
+        }
+        int b = bitmap(img).alloc(hint);
+        if (b == 0) {
+            fatal("balloc: no free blocks");
+            return 0; // dummy
+        }
         if (!valid_data_block(img, b)) {
-            derror("bfree: %u: invalid data block number", b);
+            fatal("balloc: %d: invalid data block number", b);
+            return 0; // dummy
+        }
+        bzero(img, b);
+        return b;
+    }
+
+    // allocates up to n contiguous data blocks near the block hint
+    // without zeroing them
+    static Bitmap.extent balloc_run(Blockdev img, int n, int hint) {
+        Bitmap.extent e = bitmap(img).alloc_run(n, hint);
+        if (e == null) {
+            fatal("balloc: no free blocks");
+            return null; // dummy
+        }
+        if (!valid_data_block(img, e.start) || !valid_data_block(img, e.start + e.len - 1)) {
+            fatal("balloc: %d-%d: invalid data block number", e.start, e.start + e.len - 1);
+            return null; // dummy
+        }
+        return e;
+    }
+
+    // frees the block specified by b
+    static int bfree(Blockdev img, int b) {
+        return bfree_range(img, b, 1);
+    }
+
+    // frees n contiguous blocks starting at b
+    static int bfree_range(Blockdev img, int b, int n) {
+        if (n <= 0)
+            return 0;
+        if (!valid_data_block(img, b) || !valid_data_block(img, b + n - 1)) {
+            derror("bfree: %d-%d: invalid data block number", b, b + n - 1);
             return -1;
         }
-        String bp = img[BBLOCK(b, SBLKS(img))];
-        int bi = b % BPB;
-        int m = 1 << (bi % 8);
-        if ((bp[bi / 8] & m) == 0)
-            dwarn("bfree: %u: already freed block", b);
-        bp[bi / 8] &= ~m;
+        // with a log, the blocks are free once the transaction commits
+        Journal j = journal(img);
+        if (j == null || !j.free(b, n))
+            bitmap(img).free(b, n);
         return 0;
     }
 
+    // frees the block addresses a[from..to-1] of the int array at byte
+    // offset pos of the image, coalescing contiguous block numbers
+    static void bfree_runs(Blockdev img, long pos, int from, int to) {
+        for (int i = from; i < to; ) {
+            int b = img.getInt(pos + i * SIZEOFINT);
+            int j = i + 1;
+            while (j < to && img.getInt(pos + j * SIZEOFINT) == b + (j - i))
+                j++;
+            if (b != 0)
+                bfree_range(img, b, j - i);
+            for (; i < j; i++)
+                img.putInt(pos + i * SIZEOFINT, 0);
+        }
+        if (from < to)
+            log_write(img, (int)(pos / BSIZE));
+    }
+
 
     /*
      * Basic operations on files (inodes)
@@ -223,170 +506,446 @@ public class Libfs implements Filesystem{
     static int root_inode_number = 1;
     static inode_t root_inode;
 
+    // inode table index of the mapped image (built on first use)
+    static volatile Itable itable;
+
+    static Itable itable(Blockdev img) {
+        Itable c = itable;
+        if (c == null || c.img != img) {
+            synchronized (Libfs.class) {
+                c = itable;
+                if (c == null || c.img != img)
+                    itable = c = new Itable(img, SBLK(img));
+            }
+        }
+        return c;
+    }
+
     // returns the pointer to the inum-th dinode structure
-    static inode_t iget(MappedByteBuffer img, int inum) {
+    static inode_t iget(Blockdev img, int inum) {
         if (0 < inum && inum < SBLK(img).ninodes)
-        return (inode_t)img[IBLOCK(inum, SBLKS(img))] + inum % IPB;
-        derror("iget: %u: invalid inode number", inum);
+            return itable(img).get(inum);
+        derror("iget: %d: invalid inode number", inum);
         return null;
     }
 
     // retrieves the inode number of a dinode structure
-    static int geti(MappedByteBuffer img, inode_t ip) {
-        int Ni = SBLK(img).ninodes / IPB + 1;       // # of inode blocks
-        for (int i = 0; i < Ni; i++) {
-            inode_t bp = (inode_t)img[SBLK(img).inodestart + i];
-            if (bp <= ip && ip < bp + IPB)
-                return ip - bp + i * IPB;
-        }
-        derror("geti: %p: not in the inode blocks", ip);
-        return 0;
+    static int geti(Blockdev img, inode_t ip) {
+        return ip.inum;
     }
 
-    // allocate a new inode structure
-    static inode_t ialloc(MappedByteBuffer img, int type) {
-        for (int inum = 1; inum < SBLK(img).ninodes; inum++) {
-            inode_t ip = (inode_t)img[IBLOCK(inum, SBLKS(img))] + inum % IPB;
-            if (ip.type == 0) {
-                memset(ip, 0, sizeof(struct dinode));
-                ip.type = type;
-                return ip;
-            }
+    // allocate a new inode structure for an entry of the directory dp
+    static inode_t ialloc(Blockdev img, int type, inode_t dp) {
+        if (img.isReadOnly()) {
+            fatal("ialloc: read-only image");
+            return null;
         }
-        fatal("ialloc: cannot allocate");
-        return null;
+        int inum = itable(img).alloc(groups(img).ipref(dp, type));
+        if (inum == 0) {
+            fatal("ialloc: cannot allocate");
+            return null;
+        }
+        inode_t ip = iget(img, inum);
+        for (int i = 0; i < DINODESIZE; i += 8)
+            img.putLong(ip.off + i, 0L);
+        ip.set_type(type);
+        ip.dindex = null;
+        ip.blkmap = null;
+        return ip;
     }
 
     // frees inum-th inode
-    static int ifree(MappedByteBuffer img, int inum) {
+    static int ifree(Blockdev img, int inum) {
         inode_t ip = iget(img, inum);
         if (ip == null)
             return -1;
-        if (ip.type == 0)
+        if (ip.type() == 0)
             dwarn("ifree: inode #%d is already freed", inum);
-        if (ip.nlink > 0)
+        if (ip.nlink() > 0)
             dwarn("ifree: nlink of inode #%d is not zero", inum);
-        ip.type = 0;
+        ip.set_type(0);
+        ip.dindex = null;
+        ip.blkmap = null;
+        itable(img).free(inum);
         return 0;
     }
 
+    // block map of the file ip: the numbers of its MAXFILE data blocks,
+    // 0 for the ones not allocated. It is read from the dinode and the
+    // indirect block once, kept up to date by bmap and iballoc_run and
+    // dropped by itruncate; callers hold ip.lock.
+    static int[] blkmap(Blockdev img, inode_t ip) {
+        int[] m = ip.blkmap;
+        if (m == null) {
+            m = new int[MAXFILE];
+            for (int i = 0; i < NDIRECT; i++)
+                m[i] = ip.addr(i);
+            int iaddr = ip.addr(NDIRECT);
+            if (iaddr != 0 && valid_data_block(img, iaddr)) {
+                byte[] buf = new byte[BSIZE];
+                img.get((long)iaddr * BSIZE, buf, 0, BSIZE);
+                ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(m, NDIRECT, NINDIRECT);
+            }
+            ip.blkmap = m;
+        }
+        return m;
+    }
+
     // returns n-th data block number of the file specified by ip
-    static int bmap(MappedByteBuffer img, inode_t ip, int n) {
+    static int bmap(Blockdev img, inode_t ip, int n) {
+        if (n >= MAXFILE) {
+            derror("bmap: %d: invalid index number", n);
+            return 0;
+        }
+        int[] m = blkmap(img, ip);
+        if (m[n] != 0)
+            return m[n];
+        int hint = groups(img).bpref(ip, m, n);
+        int addr;
         if (n < NDIRECT) {
-            int addr = ip.addrs[n];
-            if (addr == 0) {
-                addr = balloc(img);
-                ip.addrs[n] = addr;
-            }
-            return addr;
+            addr = balloc(img, hint);
+            ip.set_addr(n, addr);
         }
         else {
-            int k = n - NDIRECT;
-            if (k >= NINDIRECT) {
-                derror("bmap: %u: invalid index number", n);
-                return 0;
-            }
-            int iaddr = ip.addrs[NDIRECT];
+            int iaddr = ip.addr(NDIRECT);
             if (iaddr == 0) {
-                iaddr = balloc(img);
-                ip.addrs[NDIRECT] = iaddr;
+                iaddr = balloc(img, hint);
+                ip.set_addr(NDIRECT, iaddr);
+                hint = iaddr + 1;
             }
-            int[] iblock = (int [])img[iaddr];
-            if (iblock[k] == 0)
-                iblock[k] = balloc(img);
-            return iblock[k];
+            addr = balloc(img, hint);
+            img.putInt((long)iaddr * BSIZE + (n - NDIRECT) * SIZEOFINT, addr);
+            log_write(img, iaddr);
+        }
+        return m[n] = addr;
+    }
+
+    // returns n-th data block number of the file specified by ip,
+    // or 0 if it has not been allocated (never allocates)
+    static int iblock(Blockdev img, inode_t ip, int n) {
+        return n < MAXFILE ? blkmap(img, ip)[n] : 0;
+    }
+
+    // hints the device that the blocks [from, to) of the file mapped by m
+    // will be read soon, one call per physically contiguous run
+    static void prefetch(Blockdev img, int[] m, int from, int to) {
+        for (int i = from; i < to; ) {
+            int b = m[i];
+            int j = i + 1;
+            if (valid_data_block(img, b)) {
+                while (j < to && m[j] == b + (j - i) && valid_data_block(img, m[j]))
+                    j++;
+                img.prefetch((long)b * BSIZE, (long)(j - i) * BSIZE);
+            }
+            i = j;
+        }
+    }
+
+    // writes the whole file specified by ip to ch, passing each run of
+    // physically contiguous blocks as one slice of the mapped image
+    static long isend(Blockdev img, inode_t ip, WritableByteChannel ch) throws IOException {
+        ip.lock.readLock().lock();
+        try {
+            if (ip.type() == T_DEV)
+                return -1;
+            int size = ip.size();
+            int nb = divceil(size, BSIZE);  // # of used blocks
+            int[] m = blkmap(img, ip);
+            long t = 0;
+            for (int i = 0; i < nb; ) {
+                int b = m[i];
+                if (!valid_data_block(img, b)) {
+                    derror("isend: %d: invalid data block", b);
+                    return -1;
+                }
+                int j = i + 1;
+                while (j < nb && m[j] == b + (j - i))
+                    j++;
+                long pos = (long)b * BSIZE;
+                img.prefetch(pos, (long)(j - i) * BSIZE);
+                for (int len = Math.min((j - i) * BSIZE, size - i * BSIZE), n; len > 0; len -= n, pos += n) {
+                    // a run may cross segments of the image
+                    ByteBuffer run = img.slice(pos, n = img.span(pos, len));
+                    while (run.hasRemaining())
+                        t += ch.write(run);
+                }
+                i = j;
+            }
+            return t;
+        } finally {
+            ip.lock.readLock().unlock();
+        }
+    }
+
+    // allocates data blocks for the unallocated n-th, (n+1)-th, ...
+    // blocks of the file ip as one contiguous run of at most nb blocks;
+    // the blocks are not zeroed, returns the # of blocks allocated
+    static int iballoc_run(Blockdev img, inode_t ip, int n, int nb) {
+        nb = Math.min(nb, MAXFILE - n);
+        int[] m = blkmap(img, ip);
+        int hint = groups(img).bpref(ip, m, n);
+        if (n + nb > NDIRECT && ip.addr(NDIRECT) == 0) {
+            ip.set_addr(NDIRECT, balloc(img, hint)); // before the run, to keep it contiguous
+            hint = ip.addr(NDIRECT) + 1;
+        }
+        Bitmap.extent e = balloc_run(img, nb, hint);
+        for (int i = 0; i < e.len; i++) {
+            if (n + i < NDIRECT)
+                ip.set_addr(n + i, e.start + i);
+            else
+                img.putInt((long)ip.addr(NDIRECT) * BSIZE + (n + i - NDIRECT) * SIZEOFINT, e.start + i);
+            m[n + i] = e.start + i;
+        }
+        if (n + e.len > NDIRECT)
+            log_write(img, ip.addr(NDIRECT));
+        return e.len;
+    }
+
+    // allocates data blocks for the blocks n .. n + nb - 1 of the file ip
+    // that have none yet, in as few contiguous runs as the free space
+    // allows, so that the file reads back sequentially; the blocks are
+    // not zeroed. Blocks reserved past the end of the file are freed by
+    // itruncate. Returns the # of blocks allocated.
+    static int ireserve(Blockdev img, inode_t ip, int n, int nb) {
+        ip.lock.writeLock().lock();
+        try {
+            nb = Math.min(nb, MAXFILE - n);
+            int[] m = blkmap(img, ip);
+            int t = 0;
+            for (int i = n; i < n + nb; ) {
+                if (m[i] != 0) {
+                    i++;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < n + nb && m[j] == 0)
+                    j++;
+                int k = iballoc_run(img, ip, i, j - i);
+                t += k;
+                i += k;
+            }
+            return t;
+        } finally {
+            ip.lock.writeLock().unlock();
+        }
+    }
+
+    // appends the data read from ch to the file ip, size bytes if size is
+    // not negative, up to the end of the stream otherwise; data blocks are
+    // allocated in contiguous runs and filled in place, without zeroing
+    static long irecv(Blockdev img, inode_t ip, ReadableByteChannel ch, long size) throws IOException {
+        ip.lock.writeLock().lock();
+        try {
+            if (ip.type() == T_DEV)
+                return -1;
+            if (size > MAXFILESIZE - ip.size())
+                return -1;
+            long t = 0;
+            while (size < 0 || t < size) {
+                int off = ip.size();
+                int want = size >= 0 ? (int)(size - t) : Math.min(RECVSIZE, MAXFILESIZE - off);
+                if (want == 0) {
+                    // the file is full: fail if the stream has more data
+                    return ch.read(ByteBuffer.allocate(1)) > 0 ? -1 : t;
+                }
+                int n = off / BSIZE;
+                long pos;
+                int len, end;
+                if (off % BSIZE != 0) {
+                    // fill the rest of the last block first
+                    pos = (long)iblock(img, ip, n) * BSIZE + off % BSIZE;
+                    len = Math.min(want, BSIZE - off % BSIZE);
+                    end = off + len;
+                }
+                else {
+                    int nb = iballoc_run(img, ip, n, divceil(want, BSIZE));
+                    pos = (long)iblock(img, ip, n) * BSIZE;
+                    len = Math.min(want, nb * BSIZE);
+                    end = off + nb * BSIZE;
+                }
+                int r = 0;
+                for (long p = pos; r < len; ) {
+                    // the run may cross segments of the image
+                    ByteBuffer dst = img.wslice(p, img.span(p, len - r));
+                    while (dst.hasRemaining() && ch.read(dst) >= 0)
+                        ;
+                    r += dst.position();
+                    p += dst.position();
+                    if (dst.hasRemaining())
+                        break;
+                }
+                if (r > 0)
+                    data_write(img, (int)(pos / BSIZE), divceil((int)(pos % BSIZE) + r, BSIZE));
+                t += r;
+                if (r < len) {
+                    // end of stream: give back the blocks past the data
+                    ip.set_size(end);
+                    itruncate(img, ip, off + r);
+                    break;
+                }
+                ip.set_size(off + r);
+            }
+            // clear the unused tail of the last block
+            int tail = ip.size() % BSIZE;
+            if (tail != 0) {
+                int b = iblock(img, ip, ip.size() / BSIZE);
+                for (int i = tail; i < BSIZE; i++)
+                    img.put((long)b * BSIZE + i, (byte)0);
+                data_write(img, b, 1);
+            }
+            return t;
+        } finally {
+            ip.lock.writeLock().unlock();
         }
     }
 
     // reads n byte of data from the file specified by ip
-    static int iread(MappedByteBuffer img, inode_t ip, String buf, int n, int off) {
-        if (ip.type == T_DEV)
-            return -1;
-        if (off > ip.size || off + n < off)
-            return -1;
-        if (off + n > ip.size)
-            n = ip.size - off;
-        // t : total bytes that have been read
-        // m : last bytes that were read
-        int t = 0;
-        for (int m = 0; t < n; t += m, off += m, buf += m) {
-            int b = bmap(img, ip, off / BSIZE);
-            if (!valid_data_block(img, b)) {
-                derror("iread: %u: invalid data block", b);
-                break;
+    //
+    // Each run of physically contiguous blocks is copied at once. A read
+    // starting where the previous one ended is sequential: the blocks up
+    // to a readahead window past it are prefetched when the reads reach
+    // the end of the last window, and the window doubles from RAMIN up to
+    // RAMAX blocks.
+    static int iread(Blockdev img, inode_t ip, byte[] buf, int n, int off) {
+        ip.lock.readLock().lock();
+        try {
+            if (ip.type() == T_DEV)
+                return -1;
+            if (off > ip.size() || off + n < off)
+                return -1;
+            if (off + n > ip.size())
+                n = ip.size() - off;
+            if (n == 0)
+                return 0;
+            int[] map = blkmap(img, ip);
+            int first = off / BSIZE, last = (off + n - 1) / BSIZE;
+            long ra = ip.ra.get();
+            int raend = (int)(ra >>> 16) & 0xffff, rasize = (int)ra & 0xffff;
+            if (off == (int)(ra >>> 32)) {
+                if (last >= raend) {
+                    rasize = Math.max(RAMIN, Math.min(2 * rasize, RAMAX));
+                    raend = Math.min(last + 1 + rasize, divceil(ip.size(), BSIZE));
+                    prefetch(img, map, first, raend);
+                }
+            }
+            else {
+                rasize = 0;
+                raend = 0;
+                if (last > first)
+                    prefetch(img, map, first, last + 1);
+            }
+            // of two readers racing on the file, one keeps its state; the
+            // other's is a lost hint, never a torn one
+            ip.ra.compareAndSet(ra, (long)(off + n) << 32 | raend << 16 | rasize);
+            // t : total bytes that have been read
+            // m : last bytes that were read
+            int t = 0;
+            for (int m = 0; t < n; t += m, off += m) {
+                int i = off / BSIZE;
+                int b = map[i];
+                if (!valid_data_block(img, b)) {
+                    derror("iread: %d: invalid data block", b);
+                    break;
+                }
+                int j = i + 1;
+                while (j <= last && map[j] == b + (j - i) && valid_data_block(img, map[j]))
+                    j++;
+                m = Math.min(n - t, (j - i) * BSIZE - off % BSIZE);
+                img.get((long)b * BSIZE + off % BSIZE, buf, t, m);
             }
-            m = Math.min(n - t, BSIZE - off % BSIZE);
-            memmove(buf, img[b] + off % BSIZE, m);
+            return t;
+        } finally {
+            ip.lock.readLock().unlock();
         }
-        return t;
     }
 
     // writes n byte of data to the file specified by ip
-    static int iwrite(MappedByteBuffer img, inode_t ip, String buf, int n, int off) {
-        if (ip.type == T_DEV)
-            return -1;
-        if (off > ip.size || off + n < off || off + n > MAXFILESIZE)
-            return -1;
-        // t : total bytes that have been written
-        // m : last bytes that were written
-        int t = 0;
-        for (int m = 0; t < n; t += m, off += m, buf += m) {
-            int b = bmap(img, ip, off / BSIZE);
-            if (!valid_data_block(img, b)) {
-                derror("iwrite: %u: invalid data block", b);
-                break;
+    static int iwrite(Blockdev img, inode_t ip, byte[] buf, int n, int off) {
+        ip.lock.writeLock().lock();
+        try {
+            if (ip.type() == T_DEV)
+                return -1;
+            if (off > ip.size() || off + n < off || off + n > MAXFILESIZE)
+                return -1;
+            if (n > 0)
+                ireserve(img, ip, off / BSIZE, divceil(off + n, BSIZE) - off / BSIZE);
+            // t : total bytes that have been written
+            // m : last bytes that were written
+            int t = 0;
+            for (int m = 0; t < n; t += m, off += m) {
+                int b = bmap(img, ip, off / BSIZE);
+                if (!valid_data_block(img, b)) {
+                    derror("iwrite: %d: invalid data block", b);
+                    break;
+                }
+                m = Math.min(n - t, BSIZE - off % BSIZE);
+                img.put((long)b * BSIZE + off % BSIZE, buf, t, m);
+                iwritten(img, ip, b);
+            }
+            if (t > 0 && off > ip.size()) {
+                // clear the rest of the last block, which may be a new one
+                if (off % BSIZE != 0) {
+                    int b = iblock(img, ip, off / BSIZE);
+                    img.put((long)b * BSIZE + off % BSIZE, ZEROS, 0, BSIZE - off % BSIZE);
+                    iwritten(img, ip, b);
+                }
+                ip.set_size(off);
             }
-            m = Math.min(n - t, BSIZE - off % BSIZE);
-            memmove(img[b] + off % BSIZE, buf, m);
+            return t;
+        } finally {
+            ip.lock.writeLock().unlock();
         }
-        if (t > 0 && off > ip.size)
-            ip.size = off;
-        return t;
     }
 
     // truncate the file specified by ip to size
-    static int itruncate(MappedByteBuffer img, inode_t ip, int size) {
-        if (ip.type == T_DEV)
-            return -1;
-        if (size > MAXFILESIZE)
-            return -1;
+    static int itruncate(Blockdev img, inode_t ip, int size) {
+        ip.lock.writeLock().lock();
+        try {
+            if (ip.type() == T_DEV)
+                return -1;
+            if (size > MAXFILESIZE)
+                return -1;
 
-        if (size < ip.size) {
-            int n = divceil(ip.size, BSIZE);  // # of used blocks
             int k = divceil(size, BSIZE);      // # of blocks to keep
-            int nd = Math.min(n, NDIRECT);          // # of used direct blocks
-            int kd = Math.min(k, NDIRECT);          // # of direct blocks to keep
-            for (int i = kd; i < nd; i++) {
-                bfree(img, ip.addrs[i]);
-                ip.addrs[i] = 0;
-            }
-
-            if (n > NDIRECT) {
-                int iaddr = ip.addrs[NDIRECT];
-                assert(iaddr != 0);
-                int *iblock = (int *)img[iaddr];
-                int ni = Math.max(n - NDIRECT, 0);  // # of used indirect blocks
-                int ki = Math.max(k - NDIRECT, 0);  // # of indirect blocks to keep
-                for (int i = ki; i < ni; i++) {
-                    bfree(img, iblock[i]);
-                    iblock[i] = 0;
+            if (size > ip.size()) {
+                // fill with zeros up to the end of the last block
+                ireserve(img, ip, ip.size() / BSIZE, k - ip.size() / BSIZE);
+                for (int off = ip.size(), m; off < k * BSIZE; off += m) {
+                    int b = bmap(img, ip, off / BSIZE);
+                    m = BSIZE - off % BSIZE;
+                    img.put((long)b * BSIZE + off % BSIZE, ZEROS, 0, m);
+                    iwritten(img, ip, b);
                 }
-                if (ki == 0) {
-                    bfree(img, iaddr);
-                    ip.addrs[NDIRECT] = 0;
+            }
+
+            // free the blocks past the last one kept, reserved ones included
+            int[] map = blkmap(img, ip);
+            int n = MAXFILE;                    // # of blocks up to the last allocated
+            while (n > 0 && map[n - 1] == 0)
+                n--;
+            if (k < n) {
+                int nd = Math.min(n, NDIRECT);          // # of used direct blocks
+                int kd = Math.min(k, NDIRECT);          // # of direct blocks to keep
+                bfree_runs(img, ip.addrpos(0), kd, nd);
+
+                if (n > NDIRECT) {
+                    int iaddr = ip.addr(NDIRECT);
+                    assert(iaddr != 0);
+                    int ni = Math.max(n - NDIRECT, 0);  // # of used indirect blocks
+                    int ki = Math.max(k - NDIRECT, 0);  // # of indirect blocks to keep
+                    bfree_runs(img, (long)iaddr * BSIZE, ki, ni);
                 }
+                ip.blkmap = null;
             }
-        }
-        else {
-            int n = size - ip.size; // # of bytes to be filled
-            for (int off = ip.size, t = 0, m = 0; t < n; t += m, off += m) {
-                String bp = img[bmap(img, ip, off / BSIZE)];
-                m = Math.min(n - t, BSIZE - off % BSIZE);
-                memset(bp + off % BSIZE, 0, m);
+            if (k <= NDIRECT && ip.addr(NDIRECT) != 0) {
+                bfree(img, ip.addr(NDIRECT));
+                ip.set_addr(NDIRECT, 0);
             }
+            ip.set_size(size);
+            return 0;
+        } finally {
+            ip.lock.writeLock().unlock();
         }
-        ip.size = size;
-        return 0;
     }
 
 
@@ -405,226 +964,570 @@ public class Libfs implements Filesystem{
     }
 
 // adapted from skipelem in xv6/fs.c
-    static String skipelem(char[] path, String name) {
-        int i=0;
-        while (is_sep(path[0]))
-        i++;
-        String s = path;
-        while (!is_empty(path) && !is_sep(*path))
-        path++;
-        int len = Math.min(path - s, DIRSIZ);
-        memmove(name, s, len);
-        if (len < DIRSIZ)
-            name[len] = 0;
-        return path;
+// stores the first element of path in name[0] and returns the rest
+    static String skipelem(String path, String[] name) {
+        int i = 0;
+        while (i < path.length() && is_sep(path.charAt(i)))
+            i++;
+        int s = i;
+        while (i < path.length() && !is_sep(path.charAt(i)))
+            i++;
+        name[0] = path.substring(s, Math.min(i, s + DIRSIZ));
+        return path.substring(i);
     }
 
 // split the path into directory name and base name
-    static String splitpath(String path, String dirbuf, int size) {
-        String s = path, t = path;
-        while (!is_empty(path)) {
-            while (is_sep(*path))
-            path++;
-            s = path;
-            while (!is_empty(path) && !is_sep(*path))
-            path++;
+    static String splitpath(String path, StringBuilder dirbuf) {
+        int s = 0, i = 0;
+        while (i < path.length()) {
+            while (i < path.length() && is_sep(path.charAt(i)))
+                i++;
+            s = i;
+            while (i < path.length() && !is_sep(path.charAt(i)))
+                i++;
         }
         if (dirbuf != null) {
-            int n = Math.min(s - t, size - 1);
-            memmove(dirbuf, t, n);
-            dirbuf[n] = 0;
+            dirbuf.setLength(0);
+            dirbuf.append(path, 0, s);
         }
-        return s;
+        return path.substring(s);
+    }
+
+// split the path into its elements
+    static String[] pathelems(String path) {
+        ArrayList<String> elems = new ArrayList<>();
+        String[] name = new String[1];
+        for (path = skipelem(path, name); !is_empty(name[0]); path = skipelem(path, name))
+            elems.add(name[0]);
+        return elems.toArray(new String[0]);
     }
 
     /*
      * Operations on directories
      */
 
+    // returns the index of the directory dp, reading it if necessary
+    static Dindex dindex(Blockdev img, inode_t dp) {
+        if (dp.dindex == null) {
+            byte[] buf = new byte[dp.size()];
+            if (iread(img, dp, buf, dp.size(), 0) != dp.size())
+                return null;
+            dp.dindex = new Dindex(buf, dp.size());
+        }
+        return dp.dindex;
+    }
+
     // search a file (name) in a directory (dp)
-    static inode_t dlookup(MappedByteBuffer img, inode_t dp, String name, int offp) {
-        assert(dp.type == T_DIR);
-        dirent de;
-        for (int off = 0; off < dp.size; off += sizeof(de)) {
-            if (iread(img, dp, (uchar *)&de, sizeof(de), off) != sizeof(de)) {
+    static inode_t dlookup(Blockdev img, inode_t dp, String name, int[] offp) {
+        dp.lock.readLock().lock();
+        try {
+            assert(dp.type() == T_DIR);
+            // a cold sorted directory is searched without reading it all
+            if (dp.dindex == null && dp.major() == DFMT_SORTED)
+                return dsearch(img, dp, name, offp);
+            Dindex dx = dindex(img, dp);
+            if (dx == null) {
                 derror("dlookup: %s: read error", name);
                 return null;
             }
-            if (strncmp(name, de.name, DIRSIZ) == 0) {
-//                if (offp != null)
-                offp = off;
-                return iget(img, de.inum);
+            Dindex.dent e = dx.get(name);
+            if (e == null)
+                return null;
+            if (offp != null)
+                offp[0] = e.off;
+            return iget(img, e.inum);
+        } finally {
+            dp.lock.readLock().unlock();
+        }
+    }
+
+    // byte offset in the image of the i-th dirent slot of dp, or -1
+    static long dslot(Blockdev img, inode_t dp, int i) {
+        int b = iblock(img, dp, i * DIRENTSIZE / BSIZE);
+        if (!valid_data_block(img, b))
+            return -1;
+        return (long)b * BSIZE + i * DIRENTSIZE % BSIZE;
+    }
+
+    // searches the sorted directory dp (DFMT_SORTED) for name by binary
+    // search over its slots, which reads about log2(# of blocks) blocks
+    // instead of all of them; a probe landing on a hole takes the next
+    // entry. The caller holds dp.lock.
+    static inode_t dsearch(Blockdev img, inode_t dp, String name, int[] offp) {
+        String key = Dindex.key(name);
+        boolean dots = key.equals(".") || key.equals("..");
+        int lo = dots ? 0 : 2;
+        int hi = dots ? 2 : dp.size() / DIRENTSIZE;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int j = mid;
+            long pos = -1;
+            for (; j < hi; j++) {
+                pos = dslot(img, dp, j);
+                if (pos < 0) {
+                    derror("dsearch: %s: read error", name);
+                    return null;
+                }
+                if (de_inum(img, pos) != 0)
+                    break;
+            }
+            if (j == hi) {
+                hi = mid; // only holes from mid on
+                continue;
             }
+            int c = key.compareTo(de_name(img, pos));
+            if (c == 0) {
+                if (offp != null)
+                    offp[0] = j * DIRENTSIZE;
+                return iget(img, de_inum(img, pos));
+            }
+            if (c < 0)
+                hi = mid;
+            else
+                lo = j + 1;
         }
         return null;
     }
 
+    // checks if dp is laid out as DFMT_SORTED says
+    static boolean dsorted(Blockdev img, inode_t dp) {
+        String last = null;
+        for (int i = 0; i < dp.size() / DIRENTSIZE; i++) {
+            long pos = dslot(img, dp, i);
+            if (pos < 0)
+                return false;
+            if (de_inum(img, pos) == 0) {
+                if (i < 2)
+                    return false;
+                continue;
+            }
+            String name = de_name(img, pos);
+            if (i < 2 ? !name.equals(i == 0 ? "." : "..") : last != null && last.compareTo(name) >= 0)
+                return false;
+            if (i >= 2 && (name.equals(".") || name.equals("..")))
+                return false;
+            if (i >= 2)
+                last = name;
+        }
+        return true;
+    }
+
     // add a new directory entry in dp
-    static int daddent(MappedByteBuffer img, inode_t dp, String name, inode_t ip) {
-        dirent de;
-        int off;
-        // try to find an empty entry
-        for (off = 0; off < dp.size; off += sizeof(de)) {
-            if (iread(img, dp, (char *)&de, sizeof(de), off) != sizeof(de)) {
-                derror("daddent: %u: read error", geti(img, dp));
+    static int daddent(Blockdev img, inode_t dp, String name, inode_t ip) {
+        dp.lock.writeLock().lock();
+        try {
+            Dindex dx = dindex(img, dp);
+            if (dx == null) {
+                derror("daddent: %d: read error", geti(img, dp));
                 return -1;
             }
-            if (de.inum == 0)
-                break;
-            if (strncmp(de.name, name, DIRSIZ) == 0) {
+            if (dx.get(name) != null) {
                 derror("daddent: %s: exists", name);
                 return -1;
             }
+            // reuse an empty entry if any
+            int off = dx.slot(dp.size());
+            // a sorted directory stays sorted only if name goes last
+            if (dp.major() == DFMT_SORTED) {
+                boolean last = off == dp.size();
+                if (last && off > 2 * DIRENTSIZE) {
+                    long pos = dslot(img, dp, off / DIRENTSIZE - 1);
+                    if (pos < 0) {
+                        derror("daddent: %d: read error", geti(img, dp));
+                        return -1;
+                    }
+                    last = de_name(img, pos).compareTo(Dindex.key(name)) < 0;
+                }
+                if (!last)
+                    dp.set_major(DFMT_PLAIN);
+            }
+            byte[] de = Dindex.encode(geti(img, ip), name);
+            if (iwrite(img, dp, de, DIRENTSIZE, off) != DIRENTSIZE) {
+                derror("daddent: %d: write error", geti(img, dp));
+                return -1;
+            }
+            dx.add(name, geti(img, ip), off);
+            dcache(img).added();
+            if (!name.equals("."))
+                ip.add_nlink(1);
+            return 0;
+        } finally {
+            dp.lock.writeLock().unlock();
         }
-        strncpy(de.name, name, DIRSIZ);
-        de.inum = (short)geti(img, ip);
-        if (iwrite(img, dp, (uchar *)&de, sizeof(de), off) != sizeof(de)) {
-            derror("daddent: %u: write error", geti(img, dp));
-            return -1;
-        }
-        if (strncmp(name, ".", DIRSIZ) != 0)
-            ip.nlink++;
-        return 0;
     }
 
     // create a link to the parent directory
-    static int dmkparlink(MappedByteBuffer img, inode_t pip, inode_t cip) {
-        if (pip.type != T_DIR) {
+    static int dmkparlink(Blockdev img, inode_t pip, inode_t cip) {
+        if (pip.type() != T_DIR) {
             derror("dmkparlink: %d: not a directory", geti(img, pip));
             return -1;
         }
-        if (cip.type != T_DIR) {
+        if (cip.type() != T_DIR) {
             derror("dmkparlink: %d: not a directory", geti(img, cip));
             return -1;
         }
-        int off;
-        dlookup(img, cip, "..", &off);
-        dirent de;
-        de.inum = (short)geti(img, pip);
-        strncpy(de.name, "..", DIRSIZ);
-        if (iwrite(img, cip, (uchar *)&de, sizeof(de), off) != sizeof(de)) {
-            derror("dmkparlink: write error");
+        cip.lock.writeLock().lock();
+        try {
+            int[] off = new int[1];
+            dlookup(img, cip, "..", off);
+            byte[] de = Dindex.encode(geti(img, pip), "..");
+            if (iwrite(img, cip, de, DIRENTSIZE, off[0]) != DIRENTSIZE) {
+                derror("dmkparlink: write error");
+                return -1;
+            }
+            dindex(img, cip).add("..", geti(img, pip), off[0]);
+        } finally {
+            cip.lock.writeLock().unlock();
+        }
+        dcache(img).clear();
+        pip.add_nlink(1);
+        return 0;
+    }
+
+    // exchanges the dirent slots at the offsets a and b of the directory
+    // dp (either may be empty); the caller holds dp.lock exclusively
+    static int dswap(Blockdev img, inode_t dp, int a, int b) {
+        byte[] ea = new byte[DIRENTSIZE];
+        byte[] eb = new byte[DIRENTSIZE];
+        if (iread(img, dp, ea, DIRENTSIZE, a) != DIRENTSIZE || iread(img, dp, eb, DIRENTSIZE, b) != DIRENTSIZE) {
+            derror("dswap: %d: read error", geti(img, dp));
+            return -1;
+        }
+        if (iwrite(img, dp, eb, DIRENTSIZE, a) != DIRENTSIZE || iwrite(img, dp, ea, DIRENTSIZE, b) != DIRENTSIZE) {
+            derror("dswap: %d: write error", geti(img, dp));
             return -1;
         }
-        pip.nlink++;
+        dindex(img, dp).swap(a, Dindex.decode_inum(ea, 0) != 0 ? Dindex.decode_name(ea, 0) : null,
+                             b, Dindex.decode_inum(eb, 0) != 0 ? Dindex.decode_name(eb, 0) : null);
         return 0;
     }
 
+    // rewrites the entries of the directory dp densely, in name order
+    // after "." and ".." if sort (always for a sorted directory, which
+    // is plain while being rewritten), and frees the blocks left unused
+    // at its end; returns the # of bytes the directory shrank by, or -1.
+    // Every move of an entry is an operation of its own that changes at
+    // most two blocks, so a crash leaves each entry in one place; the
+    // operations share commits (begin_group). Without the log (see
+    // logged) a crash between the two writes of a move can lose an entry,
+    // so the commands refuse to compact then. Entries added meanwhile
+    // fill the holes first (daddent) and may be left out of order.
+    static int dcompact(Blockdev img, inode_t dp, boolean sort) {
+        if (dp.type() != T_DIR) {
+            derror("dcompact: %d: not a directory", geti(img, dp));
+            return -1;
+        }
+        int size0 = dp.size();
+        boolean sorted = dp.major() == DFMT_SORTED;
+        begin_group(img);
+        try {
+            if (sorted) {
+                sort = true;
+                begin_op(img);
+                dp.lock.writeLock().lock();
+                try {
+                    dp.set_major(DFMT_PLAIN);
+                } catch (RuntimeException | Error e) {
+                    fail_op(img);
+                    throw e;
+                } finally {
+                    dp.lock.writeLock().unlock();
+                    end_op(img);
+                }
+            }
+
+            // move the last entry to the first hole while there is one before it
+            for (boolean more = true; more; ) {
+                begin_op(img);
+                dp.lock.writeLock().lock();
+                try {
+                    Dindex dx = dindex(img, dp);
+                    if (dx == null)
+                        return -1;
+                    int h = dx.slot(dp.size());
+                    int t = dx.end(dp.size()) - DIRENTSIZE;
+                    more = h < t;
+                    if (more && dswap(img, dp, h, t) < 0)
+                        return -1;
+                } catch (RuntimeException | Error e) {
+                    fail_op(img);
+                    throw e;
+                } finally {
+                    dp.lock.writeLock().unlock();
+                    end_op(img);
+                }
+            }
 
-    // returns the inode number of a file (rp/path)
-    static inode_t ilookup(MappedByteBuffer img, inode_t rp, String path) {
-        char[] name = new char[DIRSIZ + 1];
-        name[DIRSIZ] = 0;
-        while (true) {
-            assert(path != null && rp != null && rp.type == T_DIR);
-            path = skipelem(path, name);
-            // if path is empty (or a sequence of path separators),
-            // it should specify the root direcotry (rp) itself
-            if (is_empty(name))
-                return rp;
-
-            inode_t ip = dlookup(img, rp, name, null);
-            if (ip == null)
-                return null;
-            if (is_empty(path))
-                return ip;
-            if (ip.type != T_DIR) {
-                derror("ilookup: %s: not a directory", name);
-                return null;
+            if (sort) {
+                byte[] buf = new byte[dp.size()];
+                if (iread(img, dp, buf, buf.length, 0) != buf.length)
+                    return -1;
+                ArrayList<String> names = new ArrayList<>();
+                for (int off = 0; off < buf.length; off += DIRENTSIZE) {
+                    String name = Dindex.decode_name(buf, off);
+                    if (Dindex.decode_inum(buf, off) != 0 && !name.equals(".") && !name.equals(".."))
+                        names.add(name);
+                }
+                names.sort(null);
+                // the i-th name goes to the slot after "." and ".."
+                for (int i = 0; i < names.size(); i++) {
+                    begin_op(img);
+                    dp.lock.writeLock().lock();
+                    try {
+                        Dindex.dent e = dindex(img, dp).get(names.get(i));
+                        int off = (i + 2) * DIRENTSIZE;
+                        if (e != null && e.off != off && off < dp.size() && dswap(img, dp, off, e.off) < 0)
+                            return -1;
+                    } catch (RuntimeException | Error e) {
+                        fail_op(img);
+                        throw e;
+                    } finally {
+                        dp.lock.writeLock().unlock();
+                        end_op(img);
+                    }
+                }
+            }
+
+            // give back the trailing holes
+            begin_op(img);
+            dp.lock.writeLock().lock();
+            try {
+                Dindex dx = dindex(img, dp);
+                int size = dx.end(dp.size());
+                if (size < dp.size()) {
+                    itruncate(img, dp, size);
+                    dx.truncate(size);
+                }
+                if (sorted && dsorted(img, dp))
+                    dp.set_major(DFMT_SORTED);
+            } catch (RuntimeException | Error e) {
+                fail_op(img);
+                throw e;
+            } finally {
+                dp.lock.writeLock().unlock();
+                end_op(img);
             }
-            rp = ip;
+        } finally {
+            end_group(img);
         }
+        return size0 - dp.size();
     }
 
-    // create a file
-    static inode_t icreat(MappedByteBuffer img, inode_t rp, String path, int type, inode_t[] dpp) {
-        char[] name = new char[DIRSIZ + 1];
-        name[DIRSIZ] = 0;
-        while (true) {
-            assert(path != null && rp != null && rp.type == T_DIR);
-            path = skipelem(path, name);
-            if (is_empty(name)) {
-                derror("icreat: %s: empty file name", path);
-                return null;
+
+    // converts the directory dp to the format fmt (DFMT_*); a directory
+    // is compacted and sorted (dcompact) before it is marked sorted.
+    // Returns 0, or -1 if it could not be sorted (changed meanwhile).
+    static int dconvert(Blockdev img, inode_t dp, int fmt) {
+        if (dp.type() != T_DIR) {
+            derror("dconvert: %d: not a directory", geti(img, dp));
+            return -1;
+        }
+        if (fmt == DFMT_SORTED && dcompact(img, dp, true) < 0)
+            return -1;
+        begin_op(img);
+        dp.lock.writeLock().lock();
+        try {
+            if (fmt == DFMT_SORTED && !dsorted(img, dp)) {
+                derror("dconvert: %d: changed while being sorted", geti(img, dp));
+                return -1;
             }
+            if (dp.major() != fmt)
+                dp.set_major(fmt);
+            return 0;
+        } catch (RuntimeException | Error e) {
+            fail_op(img);
+            throw e;
+        } finally {
+            dp.lock.writeLock().unlock();
+            end_op(img);
+        }
+    }
 
-            inode_t ip = dlookup(img, rp, name, null);
-            if (is_empty(path)) {
-                if (ip != null) {
-                    derror("icreat: %s: file exists", name);
-                    return null;
-                }
-                ip = ialloc(img, type);
-                daddent(img, rp, name, ip);
-                if (ip.type == T_DIR) {
-                    daddent(img, ip, ".", ip);
-                    daddent(img, ip, "..", rp);
-                }
-                if (dpp != null)
-                *dpp = rp;
-                return ip;
+
+    // path resolution cache of the mapped image (built on first use)
+    static volatile Dcache dcache;
+
+    static Dcache dcache(Blockdev img) {
+        Dcache c = dcache;
+        if (c == null || c.img != img) {
+            synchronized (Libfs.class) {
+                c = dcache;
+                if (c == null || c.img != img)
+                    dcache = c = new Dcache(img);
             }
-            if (ip == null || ip->type != T_DIR) {
-                derror("icreat: %s: no such directory", name);
+        }
+        return c;
+    }
+
+    // resolves the first n elements of a path relative to rp
+    static inode_t iresolve(Blockdev img, inode_t rp, String[] elems, int n) {
+        assert(rp != null && rp.type() == T_DIR);
+        // if there is no element, it should specify rp itself
+        if (n == 0)
+            return rp;
+        String key = Dcache.key(rp, elems, n);
+        Dcache.dentry d = dcache(img).get(key);
+        if (d != null)
+            return d.ip;
+
+        inode_t dp = iresolve(img, rp, elems, n - 1);
+        if (dp == null)
+            return null;
+        if (dp.type() != T_DIR) {
+            derror("ilookup: %s: not a directory", elems[n - 2]);
+            return null;
+        }
+        long g = dcache(img).gen();
+        inode_t ip = dlookup(img, dp, elems[n - 1], null);
+        dcache(img).put(key, dp, elems[n - 1], ip, g);
+        return ip;
+    }
+
+    // returns the inode number of a file (rp/path)
+    static inode_t ilookup(Blockdev img, inode_t rp, String path) {
+        assert(path != null);
+        String[] elems = pathelems(path);
+        return iresolve(img, rp, elems, elems.length);
+    }
+
+    // create a file
+    static inode_t icreat(Blockdev img, inode_t rp, String path, int type, inode_t[] dpp) {
+        assert(path != null);
+        String[] elems = pathelems(path);
+        if (elems.length == 0) {
+            derror("icreat: %s: empty file name", path);
+            return null;
+        }
+        String name = elems[elems.length - 1];
+        inode_t dp = iresolve(img, rp, elems, elems.length - 1);
+        if (dp == null || dp.type() != T_DIR) {
+            derror("icreat: %s: no such directory", path);
+            return null;
+        }
+        inode_t ip;
+        dp.lock.writeLock().lock();
+        try {
+            if (dlookup(img, dp, name, null) != null) {
+                derror("icreat: %s: file exists", name);
                 return null;
             }
-            rp = ip;
+            ip = ialloc(img, type, dp);
+            daddent(img, dp, name, ip);
+            if (ip.type() == T_DIR) {
+                daddent(img, ip, ".", ip);
+                daddent(img, ip, "..", dp);
+            }
+        } finally {
+            dp.lock.writeLock().unlock();
         }
+        if (dpp != null)
+            dpp[0] = dp;
+        return ip;
     }
 
     // checks if dp is an empty directory
-    static boolean emptydir(MappedByteBuffer img, inode_t dp) {
-        int nent = 0;
-        dirent de;
-        for (int off = 0; off < dp.size; off += sizeof(de)) {
-            iread(img, dp, (char *)&de, sizeof(de), off);
-            if (de.inum != 0)
-                nent++;
+    static boolean emptydir(Blockdev img, inode_t dp) {
+        dp.lock.readLock().lock();
+        try {
+            Dindex dx = dindex(img, dp);
+            return dx != null && dx.count() == 2;
+        } finally {
+            dp.lock.readLock().unlock();
         }
-        return nent == 2;
     }
 
     // unlinks a file (dp/path)
-    static int iunlink(MappedByteBuffer img, inode_t rp, String path) {
-        char[] name = new char[DIRSIZ + 1];
-        name[DIRSIZ] = 0;
-        while (true) {
-            assert(path != null && rp != null && rp.type == T_DIR);
-            path = skipelem(path, name);
-            if (is_empty(name)) {
-                derror("iunlink: empty file name");
-                return -1;
-            }
-            int off;
-            inode_t ip = dlookup(img, rp, name, &off);
-            if (ip != null && is_empty(path)) {
-                if (strncmp(name, ".", DIRSIZ) == 0 ||
-                        strncmp(name, "..", DIRSIZ) == 0) {
-                    derror("iunlink: cannot unlink \".\" or \"..\"");
-                    return -1;
-                }
-                // erase the directory entry
-                char zero = new char[sizeof(dirent)];
-                memset(zero, 0, sizeof(zero));
-                if (iwrite(img, rp, zero, sizeof(zero), off) != sizeof(zero)) {
-                    derror("iunlink: write error");
-                    return -1;
-                }
-                if (ip.type == T_DIR && dlookup(img, ip, "..", null) == rp)
-                    rp.nlink--;
-                ip.nlink--;
-                if (ip.nlink == 0) {
-                    if (ip.type != T_DEV)
-                        itruncate(img, ip, 0);
-                    ifree(img, geti(img, ip));
-                }
-                return 0;
-            }
-            if (ip == null || ip.type != T_DIR) {
-                derror("iunlink: %s: no such directory", name);
-                return -1;
-            }
-            rp = ip;
+    static int iunlink(Blockdev img, inode_t rp, String path) {
+        assert(path != null);
+        String[] elems = pathelems(path);
+        if (elems.length == 0) {
+            derror("iunlink: empty file name");
+            return -1;
+        }
+        String name = elems[elems.length - 1];
+        inode_t dp = iresolve(img, rp, elems, elems.length - 1);
+        if (dp == null || dp.type() != T_DIR) {
+            derror("iunlink: %s: no such directory", path);
+            return -1;
+        }
+        dp.lock.writeLock().lock();
+        try {
+            return dunlink(img, dp, name);
+        } finally {
+            dp.lock.writeLock().unlock();
+        }
+    }
+
+    // unlinks the entry name of the directory dp, which the caller has
+    // write-locked (rmdir and mv, which lock dp with another directory)
+    static int dunlink(Blockdev img, inode_t dp, String name) {
+        int[] off = new int[1];
+        inode_t ip = dlookup(img, dp, name, off);
+        if (ip == null) {
+            derror("iunlink: %s: no such file or directory", name);
+            return -1;
+        }
+        if (name.equals(".") || name.equals("..")) {
+            derror("iunlink: cannot unlink \".\" or \"..\"");
+            return -1;
+        }
+        // erase the directory entry
+        byte[] zero = new byte[DIRENTSIZE];
+        if (iwrite(img, dp, zero, DIRENTSIZE, off[0]) != DIRENTSIZE) {
+            derror("iunlink: write error");
+            return -1;
+        }
+        dindex(img, dp).remove(name);
+        dcache(img).removed(dp, name, ip);
+        if (ip.type() == T_DIR && dlookup(img, ip, "..", null) == dp)
+            dp.add_nlink(-1);
+        if (ip.add_nlink(-1) == 0) {
+            if (ip.type() != T_DEV)
+                itruncate(img, ip, 0);
+            ifree(img, geti(img, ip));
+        }
+        return 0;
+    }
+
+    // serializes the operations that lock two directories, so that which
+    // of them is an ancestor of the other cannot change while locking
+    static final ReentrantLock rename_lock = new ReentrantLock();
+
+    // checks if the directory ap is dp or one of its ancestors
+    static boolean is_ancestor(Blockdev img, inode_t ap, inode_t dp) {
+        inode_t rp = iget(img, root_inode_number);
+        for (int i = 0; dp != null && i < SBLK(img).ninodes; i++) {
+            if (dp == ap)
+                return true;
+            if (dp == rp)
+                return false;
+            dp = dlookup(img, dp, "..", null);
+        }
+        return false;
+    }
+
+    // write-locks two directories in a deadlock-free order:
+    // an ancestor before its descendants, otherwise the lower inode first
+    static void lock_pair(Blockdev img, inode_t a, inode_t b) {
+        if (a == b) {
+            a.lock.writeLock().lock();
+            return;
+        }
+        rename_lock.lock();
+        if (is_ancestor(img, b, a) || (!is_ancestor(img, a, b) && b.inum < a.inum)) {
+            inode_t t = a;
+            a = b;
+            b = t;
+        }
+        a.lock.writeLock().lock();
+        b.lock.writeLock().lock();
+    }
+
+    static void unlock_pair(inode_t a, inode_t b) {
+        a.lock.writeLock().unlock();
+        if (a != b) {
+            b.lock.writeLock().unlock();
+            rename_lock.unlock();
         }
     }
 
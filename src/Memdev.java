@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class Memdev implements Blockdev {
+    /* image held in memory, in windows of WINDOW bytes
+     *
+     *   offset pos  ->  win[pos >>> WSHIFT], index (pos & WMASK)
+     *
+     * A ByteBuffer holds at most Integer.MAX_VALUE bytes, hence the
+     * windows. The image is either empty (new Memdev, for tests and
+     * benchmarks) or read from a file (load); a loaded READ_WRITE image
+     * writes the forced ranges back, and all of itself on close.
+     */
+
+    static final int WSHIFT = 30;
+    static final long WINDOW = 1L << WSHIFT;  // 1 GiB
+    static final long WMASK = WINDOW - 1;
+
+    final long size;                 // # of bytes in the image
+    final ByteBuffer[] win;
+    private final FileChannel ch;    // file to write back to; null if none
+
+    Memdev(ByteBuffer[] win, long size, FileChannel ch) {
+        this.win = win;
+        this.size = size;
+        this.ch = ch;
+    }
+
+    // a zero-filled image of size bytes, on the heap or off-heap
+    Memdev(long size, boolean direct) {
+        this(new ByteBuffer[nwindows(size)], size, null);
+        for (int i = 0; i < win.length; i++) {
+            int n = (int)Math.min(WINDOW, size - ((long)i << WSHIFT));
+            win[i] = (direct ? ByteBuffer.allocateDirect(n) : ByteBuffer.allocate(n)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    static int nwindows(long size) {
+        return (int)((size + WMASK) >>> WSHIFT);
+    }
+
+    // reads size bytes of the file open on ch into the heap
+    static Memdev load(FileChannel ch, FileChannel.MapMode mode, long size) throws IOException {
+        Memdev dev = new Memdev(size, false);
+        for (int i = 0; i < dev.win.length; i++) {
+            ByteBuffer w = dev.win[i];
+            for (long pos = (long)i << WSHIFT; w.hasRemaining(); ) {
+                int r = ch.read(w, pos);
+                if (r < 0)
+                    throw new IOException("short image");
+                pos += r;
+            }
+            w.clear();
+            if (mode == FileChannel.MapMode.READ_ONLY)
+                dev.win[i] = w.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mode == FileChannel.MapMode.READ_WRITE ? new Memdev(dev.win, size, ch) : dev;
+    }
+
+    @Override public long size()         { return size; }
+    @Override public boolean isReadOnly() { return win.length > 0 && win[0].isReadOnly(); }
+
+    @Override public ByteBuffer buffer(long pos)  { return win[(int)(pos >>> WSHIFT)]; }
+    @Override public ByteBuffer wbuffer(long pos) { return win[(int)(pos >>> WSHIFT)]; }
+    @Override public int index(long pos)          { return (int)(pos & WMASK); }
+
+    @Override
+    public int span(long pos, int len) {
+        return (int)Math.min(len, WINDOW - (pos & WMASK));
+    }
+
+    @Override
+    public void force(long pos, long len) {
+        if (ch == null)
+            return;
+        try {
+            while (len > 0) {
+                ByteBuffer src = slice(pos, span(pos, (int)Math.min(len, Integer.MAX_VALUE)));
+                len -= src.remaining();
+                while (src.hasRemaining())
+                    pos += ch.write(src, pos);
+            }
+            ch.force(false);
+        } catch (IOException e) {
+            Libfs.fatal("write: %s", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        force(0, size);
+    }
+}
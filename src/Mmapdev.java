@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class Mmapdev extends Memdev {
+    /* image mapped as a set of windows
+     *
+     * A single MappedByteBuffer holds at most Integer.MAX_VALUE bytes, so
+     * the file is mapped in the windows of Memdev, one mapping each.
+     *
+     * close() unmaps the windows right away instead of leaving them to the
+     * GC (sun.misc.Unsafe.invokeCleaner, the only way to unmap a buffer on
+     * Java 17); the OS writes a shared mapping back when it likes.
+     */
+
+    private Mmapdev(ByteBuffer[] win, long size) {
+        super(win, size, null);
+    }
+
+    // maps size bytes of the file open on ch
+    static Mmapdev map(FileChannel ch, FileChannel.MapMode mode, long size) throws IOException {
+        MappedByteBuffer[] win = new MappedByteBuffer[nwindows(size)];
+        for (int i = 0; i < win.length; i++) {
+            long pos = (long)i << WSHIFT;
+            win[i] = ch.map(mode, pos, Math.min(WINDOW, size - pos));
+            win[i].order(ByteOrder.LITTLE_ENDIAN); // xv6 images are little-endian
+        }
+        return new Mmapdev(win, size);
+    }
+
+    @Override
+    public void force(long pos, long len) {
+        while (len > 0) {
+            int n = span(pos, (int)Math.min(len, WINDOW));
+            ((MappedByteBuffer)buffer(pos)).force(index(pos), n);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    // pages the range in ahead of the reads
+    @Override
+    public void prefetch(long pos, long len) {
+        while (len > 0) {
+            int n = span(pos, (int)Math.min(len, WINDOW));
+            ((MappedByteBuffer)buffer(pos)).slice(index(pos), n).load();
+            pos += n;
+            len -= n;
+        }
+    }
+
+    // unmaps the image
+    @Override
+    public void close() {
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            for (int i = 0; i < win.length; i++) {
+                c.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, win[i]);
+                win[i] = null;
+            }
+        } catch (ReflectiveOperationException e) {
+            // leave the windows to the GC
+        }
+    }
+}
@@ -1,9 +1,22 @@
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 
 public class Opfs implements Filesystem {
     /* usage: opfs img_file command [arg...]
@@ -19,60 +32,29 @@ public class Opfs implements Filesystem {
      *     ln spath dpath
      *     mkdir path
      *     rmdir path
+     *     defrag [-c] [-b budget] [path]
+     *     compactdir [-r] [-s] path
+     *     dirfmt [-r] plain|sorted path
+     *     batch [script]
+     *     serve socket
      */
 
-    private final int EXIT_SUCCESS = 0;
+    private static final int EXIT_SUCCESS = 0;
     private static final int EXIT_FAILURE = 1;
 
     // diskinfo
-    public int do_diskinfo(MappedByteBuffer img, String args[]) {
+    static int do_diskinfo(Blockdev img, String args[]) {
         if (args.length != 0) {
             Libfs.error("usage: %s img_file diskinfo", Libfs.progname);
             return EXIT_FAILURE;
         }
 
-        Superblock sb = Libfs.SBLK(img);
-
-        int N = Libfs.SBLK(img).size;
-        int Ni = sb.ninodes / IPB + 1;
-        int Nm = N / (BSIZE * 8) + 1;
-        int dstart = 2 + sb.nlog + Ni + Nm;
-        int Nd = Libfs.SBLK(img).nblocks;
-
-        System.out.println("total blocks: " + N + "(" + N * BSIZE + "bytes)");
-        System.out.println("log blocks: #" + sb.logstart + "-#" + (sb.logstart + sb.nlog - 1) + "(" + sb.nlog + "blocks)");
-        System.out.println("inode blocks: #" + sb.inodestart + "-#" + (sb.inodestart + Ni - 1) +" (" + Ni + " blocks, " + sb.ninodes +" inodes)");
-        System.out.println("bitmap blocks: #" + sb.bmapstart + "-#" + (sb.bmapstart + Nm - 1) + " (" + Nm + " blocks)");
-        System.out.println("data blocks: #" + dstart + "-#" + (dstart + Nd - 1) + " (" + Nd + " blocks)");
-        System.out.println("maximum file size (bytes): " + Libfs.MAXFILESIZE);
-
-        int nblocks = 0;
-        for (int b = sb.bmapstart; b <= sb.bmapstart + Nm - 1; b++)
-            for (int i = 0; i < BSIZE; i++)
-                nblocks += bitcount(img[b][i]);
-        System.out.println("# of used blocks: " + nblocks);
-
-        int n_dirs = 0, n_files = 0, n_devs = 0;
-        for (int b = sb.inodestart; b <= sb.inodestart + Ni - 1; b++)
-            for (int i = 0; i < IPB; i++)
-                switch (((Libfs.inode_t)img[b])[i].type) {
-                    case Libfs.T_DIR:
-                        n_dirs++;
-                        break;
-                    case Libfs.T_FILE:
-                        n_files++;
-                        break;
-                    case Libfs.T_DEV:
-                        n_devs++;
-                        break;
-                }
-        System.out.println("# of used inodes: " + (n_dirs + n_files + n_devs) + " (dirs: " + n_dirs + ", files: " + n_files + ", devs: " + n_devs + ")");
-
+        Diskstats.collect(img).print(stdout());
         return EXIT_SUCCESS;
     }
 
     // info path
-    int do_info(MappedByteBuffer img, String args[]) {
+    static int do_info(Blockdev img, String args[]) {
         if (args.length != 1) {
             Libfs.error("usage: %s img_file info path\n", Libfs.progname);
             return EXIT_FAILURE;
@@ -84,32 +66,33 @@ public class Opfs implements Filesystem {
             Libfs.error("info: no such file or directory: %s", path);
             return EXIT_FAILURE;
         }
-        System.out.println("inode: " + Libfs.geti(img, ip));
-        System.out.println("type: " + ip.type + " (" + Libfs.typename(ip.type) + ")");
-        System.out.println("nlink: " + ip.nlink);
-        System.out.println("size: " + ip.size);
-        if (ip.size > 0) {
-            System.out.print("data blocks:");
+        stdout().println("inode: " + Libfs.geti(img, ip));
+        stdout().println("type: " + ip.type() + " (" + Libfs.typename(ip.type()) + ")");
+        stdout().println("nlink: " + ip.nlink());
+        stdout().println("size: " + ip.size());
+        if (ip.type() == Libfs.T_DIR)
+            stdout().println("format: " + (ip.major() == Libfs.DFMT_SORTED ? "sorted" : "plain"));
+        if (ip.size() > 0) {
+            stdout().print("data blocks:");
             int bcount = 0;
-            for (int i = 0; i < NDIRECT && ip.addrs[i] != 0; i++, bcount++)
-                System.out.print(" " + ip.addrs[i]);
-            int iaddr = ip.addrs[NDIRECT];
+            for (int i = 0; i < NDIRECT && ip.addr(i) != 0; i++, bcount++)
+                stdout().print(" " + ip.addr(i));
+            int iaddr = ip.addr(NDIRECT);
             if (iaddr != 0) {
                 bcount++;
-                System.out.print(" " + iaddr);
-                int *iblock = (int *)img[iaddr];
-                for (int i = 0; i < BSIZE / SIZEOFINT && iblock[i] != 0;
+                stdout().print(" " + iaddr);
+                for (int i = 0; i < NINDIRECT && img.getInt((long)iaddr * BSIZE + i * SIZEOFINT) != 0;
                      i++, bcount++)
-                    System.out.print(" " + iblock[i]);
+                    stdout().print(" " + img.getInt((long)iaddr * BSIZE + i * SIZEOFINT));
             }
-            System.out.print("\n");
-            System.out.println("# of data blocks: " + bcount);
+            stdout().print("\n");
+            stdout().println("# of data blocks: " + bcount);
         }
         return EXIT_SUCCESS;
     }
 
     // ls path
-    int do_ls(MappedByteBuffer img, String args[]) {
+    static int do_ls(Blockdev img, String args[]) {
         if (args.length != 1) {
             Libfs.error("usage: %s img_file ls path\n", Libfs.progname);
             return EXIT_FAILURE;
@@ -120,30 +103,31 @@ public class Opfs implements Filesystem {
             Libfs.error("ls: %s: no such file or directory\n", path);
             return EXIT_FAILURE;
         }
-        if (ip.type == Libfs.T_DIR) {
-            dirent de;
-            for (int off = 0; off < ip.size; off += sizeof(de)) {
-                if (Libfs.iread(img, ip, (uchar *)&de, sizeof(de), off) != sizeof(de)) {
+        if (ip.type() == Libfs.T_DIR) {
+            for (int off = 0; off < ip.size(); off += DIRENTSIZE) {
+                int b = Libfs.iblock(img, ip, off / BSIZE);
+                if (!Libfs.valid_data_block(img, b)) {
                     Libfs.error("ls: %s: read error\n", path);
                     return EXIT_FAILURE;
                 }
-                if (de.inum == 0)
+                // dirents never cross a block boundary
+                long pos = (long)b * BSIZE + off % BSIZE;
+                int inum = Libfs.de_inum(img, pos);
+                if (inum == 0)
                     continue;
-                char[] name = new char[Libfs.DIRSIZ + 1];
-                name[Libfs.DIRSIZ] = 0;
-                strncpy(name, de.name, Libfs.DIRSIZ);
-                Libfs.inode_t p = Libfs.iget(img, de.inum);
-                System.out.println(name + " " +  p.type + " " + de.inum + " " + p.size);
+                String name = Libfs.de_name(img, pos);
+                Libfs.inode_t p = Libfs.iget(img, inum);
+                stdout().println(name + " " +  p.type() + " " + inum + " " + p.size());
             }
         }
         else
-            System.out.println(path + " " + ip.type + " " + Libfs.geti(img, ip) + " " + ip.size);
+            stdout().println(path + " " + ip.type() + " " + Libfs.geti(img, ip) + " " + ip.size());
 
         return EXIT_SUCCESS;
     }
 
     // get path
-    int do_get(MappedByteBuffer img, String args[]) {
+    static int do_get(Blockdev img, String args[]) {
         if (args.length != 1) {
             Libfs.error("usage: %s img_file get path\n", Libfs.progname);
             return EXIT_FAILURE;
@@ -157,21 +141,24 @@ public class Opfs implements Filesystem {
             return EXIT_FAILURE;
         }
 
-        char[] buf = new char[Libfs.BUFSIZE];
-        for (int off = 0; off < ip.size; off += Libfs.BUFSIZE) {
-            int n = Libfs.iread(img, ip, buf, Libfs.BUFSIZE, off);
-            if (n < 0) {
+        // stream the data blocks straight from the mapping to stdout
+        stdout().flush();
+        WritableByteChannel out = cmd_out.get() != null ? cmd_out.get() : new FileOutputStream(FileDescriptor.out).getChannel();
+        try {
+            if (Libfs.isend(img, ip, out) < 0) {
                 Libfs.error("get: %s: read error\n", path);
                 return EXIT_FAILURE;
             }
-            write(1, buf, n);
+        } catch (IOException e) {
+            Libfs.error("get: %s: %s\n", path, e.getMessage());
+            return EXIT_FAILURE;
         }
 
         return EXIT_SUCCESS;
     }
 
     // put path
-    int do_put(MappedByteBuffer img, String args[]) {
+    static int do_put(Blockdev img, String args[]) {
         if (args.length != 1) {
             Libfs.error("usage: %s img_file put path\n", Libfs.progname);
             return EXIT_FAILURE;
@@ -188,32 +175,39 @@ public class Opfs implements Filesystem {
             }
         }
         else {
-            if (ip.type != Libfs.T_FILE) {
+            if (ip.type() != Libfs.T_FILE) {
                 Libfs.error("put: %s: directory or device\n", path);
                 return EXIT_FAILURE;
             }
             Libfs.itruncate(img, ip, 0);
         }
 
-        char[] buf = new char[Libfs.BUFSIZE];
-        for (int off = 0; off < Libfs.MAXFILESIZE; off += Libfs.BUFSIZE) {
-            int n = read(0, buf, Libfs.BUFSIZE);
-            if (n < 0) {
-                perror(null);
-                return EXIT_FAILURE;
+        // read stdin straight into the data blocks; when stdin is a
+        // regular file its size is known and the blocks are allocated
+        // in as few runs as possible
+        ReadableByteChannel in = cmd_in.get() != null ? cmd_in.get() : new FileInputStream(FileDescriptor.in).getChannel();
+        long size = 0;
+        if (in instanceof FileChannel) {
+            try {
+                size = ((FileChannel)in).size() - ((FileChannel)in).position();
+            } catch (IOException e) {
+                size = 0;
             }
-            if (Libfs.iwrite(img, ip, buf, n, off) != n) {
+        }
+        try {
+            if (Libfs.irecv(img, ip, in, size > 0 ? size : -1) < 0) {
                 Libfs.error("put: %s: write error\n", path);
                 return EXIT_FAILURE;
             }
-            if (n < Libfs.BUFSIZE)
-                break;
+        } catch (IOException e) {
+            Libfs.error("put: %s: %s\n", path, e.getMessage());
+            return EXIT_FAILURE;
         }
         return EXIT_SUCCESS;
     }
 
     // rm path
-    int do_rm(MappedByteBuffer img, String args[]) {
+    static int do_rm(Blockdev img, String args[]) {
         if (args.length != 1) {
             Libfs.error("usage: %s img_file rm path\n", Libfs.progname);
             return EXIT_FAILURE;
@@ -225,7 +219,7 @@ public class Opfs implements Filesystem {
             Libfs.error("rm: %s: no such file or directory", path);
             return EXIT_FAILURE;
         }
-        if (ip.type == Libfs.T_DIR) {
+        if (ip.type() == Libfs.T_DIR) {
             Libfs.error("rm: %s: a directory", path);
             return EXIT_FAILURE;
         }
@@ -237,7 +231,7 @@ public class Opfs implements Filesystem {
     }
 
     // cp src_path dest_path
-    int do_cp(MappedByteBuffer img, String args[]) {
+    static int do_cp(Blockdev img, String args[]) {
         if (args.length != 2) {
             Libfs.error("usage: %s img_file cp spath dpath", Libfs.progname);
             return EXIT_FAILURE;
@@ -251,15 +245,16 @@ public class Opfs implements Filesystem {
             Libfs.error("cp: %s: no such file or directory", spath);
             return EXIT_FAILURE;
         }
-        if (sip.type != Libfs.T_FILE) {
+        if (sip.type() != Libfs.T_FILE) {
             Libfs.error("cp: %s: directory or device file", spath);
             return EXIT_FAILURE;
         }
 
         // destination
         Libfs.inode_t dip = Libfs.ilookup(img, Libfs.root_inode, dpath);
-        char[] ddir = new char[Libfs.BUFSIZE];
-        String dname = Libfs.splitpath(dpath, ddir, Libfs.BUFSIZE);
+        StringBuilder dbuf = new StringBuilder();
+        String dname = Libfs.splitpath(dpath, dbuf);
+        String ddir = dbuf.toString();
         if (dip == null) {
             if (Libfs.is_empty(dname)) {
                 Libfs.error("cp: %s: no such directory", dpath);
@@ -270,7 +265,7 @@ public class Opfs implements Filesystem {
                 Libfs.error("cp: %s: no such directory", ddir);
                 return EXIT_FAILURE;
             }
-            if (ddip.type != Libfs.T_DIR) {
+            if (ddip.type() != Libfs.T_DIR) {
                 Libfs.error("cp: %s: not a directory", ddir);
                 return EXIT_FAILURE;
             }
@@ -281,8 +276,8 @@ public class Opfs implements Filesystem {
             }
         }
         else {
-            if (dip.type == Libfs.T_DIR) {
-                String sname = Libfs.splitpath(spath, null, 0);
+            if (dip.type() == Libfs.T_DIR) {
+                String sname = Libfs.splitpath(spath, null);
                 Libfs.inode_t fp = Libfs.icreat(img, dip, sname, Libfs.T_FILE, null);
                 if (fp == null) {
                     Libfs.error("cp: %s/%s: cannot create", dpath, sname);
@@ -290,18 +285,20 @@ public class Opfs implements Filesystem {
                 }
                 dip = fp;
             }
-            else if (dip.type == Libfs.T_FILE) {
+            else if (dip.type() == Libfs.T_FILE) {
                 Libfs.itruncate(img, dip, 0);
             }
-            else if (dip.type == Libfs.T_DEV) {
+            else if (dip.type() == Libfs.T_DEV) {
                 Libfs.error("cp: %s: device file", dpath);
                 return EXIT_FAILURE;
             }
         }
 
         // sip : source file inode, dip : destination file inode
-        char [] buf = new char[Libfs.BUFSIZE];
-        for (int off = 0; off < sip.size; off += Libfs.BUFSIZE) {
+        // allocate the whole file up front so that it lies in one run
+        Libfs.ireserve(img, dip, 0, (sip.size() + Libfs.BSIZE - 1) / Libfs.BSIZE);
+        byte[] buf = new byte[Libfs.BUFSIZE];
+        for (int off = 0; off < sip.size(); off += Libfs.BUFSIZE) {
             int n = Libfs.iread(img, sip, buf, Libfs.BUFSIZE, off);
             if (n < 0) {
                 Libfs.error("cp: %s: read error", spath);
@@ -317,114 +314,137 @@ public class Opfs implements Filesystem {
     }
 
     // mv src_path dest_path
-    int do_mv(MappedByteBuffer img, String args[]) {
+    static int do_mv(Blockdev img, String args[]) {
         if (args.length != 2) {
             Libfs.error("usage: %s img_file mv spath dpath", Libfs.progname);
             return EXIT_FAILURE;
         }
         String spath = args[0];
         String dpath = args[1];
+        String[] selems = Libfs.pathelems(spath);
 
-        // source
-        Libfs.inode_t sip = Libfs.ilookup(img, Libfs.root_inode, spath);
-        if (sip == null) {
-            Libfs.error("mv: %s: no such file or directory", spath);
-            return EXIT_FAILURE;
-        }
-        if (sip == Libfs.root_inode) {
-            Libfs.error("mv: %s: root directory", spath);
-            return EXIT_FAILURE;
-        }
+        // both paths are resolved before the directories the entries are
+        // removed from and added to are locked: with them locked only
+        // their entries are looked at, as resolving a path would lock
+        // their ancestors after them (see rmdir). If a concurrent command
+        // has changed them in the meantime, start again.
+        while (true) {
+            // source
+            Libfs.inode_t sip = Libfs.iresolve(img, Libfs.root_inode, selems, selems.length);
+            if (sip == null) {
+                Libfs.error("mv: %s: no such file or directory", spath);
+                return EXIT_FAILURE;
+            }
+            if (sip == Libfs.root_inode) {
+                Libfs.error("mv: %s: root directory", spath);
+                return EXIT_FAILURE;
+            }
+            String sname = selems[selems.length - 1];
+            Libfs.inode_t sdp = Libfs.iresolve(img, Libfs.root_inode, selems, selems.length - 1);
+            if (sdp == null)
+                continue; // removed since sip was resolved
 
-        Libfs.inode_t dip = Libfs.ilookup(img, Libfs.root_inode, dpath);
-        char [] ddir = new char[Libfs.BUFSIZE];
-        String dname = Libfs.splitpath(dpath, ddir, Libfs.BUFSIZE);
-        if (dip != null) {
-            if (dip.type == Libfs.T_DIR) {
-                String sname = Libfs.splitpath(spath, null, 0);
-                Libfs.inode_t ip = Libfs.dlookup(img, dip, sname, null);
-                // ip : inode of dpath/sname
-                if (ip != null) {
-                    if (ip.type == Libfs.T_DIR) {
-                        // override existing empty directory
-                        if (sip.type != Libfs.T_DIR) {
-                            Libfs.error("mv: %s: not a directory", spath);
-                            return EXIT_FAILURE;
-                        }
-                        if (!Libfs.emptydir(img, ip)) {
-                            Libfs.error("mv: %s/%s: not empty", ddir, sname);
-                            return EXIT_FAILURE;
-                        }
-                        Libfs.iunlink(img, dip, sname);
-                        Libfs.daddent(img, dip, sname, sip);
-                        Libfs.iunlink(img, Libfs.root_inode, spath);
-                        Libfs.dmkparlink(img, dip, sip);
-                        return EXIT_SUCCESS;
-                    }
-                    else if (ip.type == Libfs.T_FILE) {
-                        // override existing file
-                        if (sip.type != Libfs.T_FILE) {
-                            Libfs.error("mv: %s: directory or device", spath);
-                            return EXIT_FAILURE;
-                        }
-                        Libfs.iunlink(img, dip, sname);
-                        Libfs.daddent(img, dip, sname, sip);
-                        Libfs.iunlink(img, Libfs.root_inode, spath);
-                        return EXIT_SUCCESS;
-                    }
-                    else {
-                        Libfs.error("mv: %s: device", dpath);
-                        return EXIT_FAILURE;
-                    }
+            // destination: the directory ddp and the name dname in it
+            Libfs.inode_t ddp;
+            String dname, dest;
+            Libfs.inode_t dip = Libfs.ilookup(img, Libfs.root_inode, dpath);
+            if (dip != null && dip.type() == Libfs.T_DIR) {
+                ddp = dip;
+                dname = sname;
+                dest = dpath + "/" + sname;
+            }
+            else if (dip != null && dip.type() != Libfs.T_FILE) {
+                Libfs.error("mv: %s: device", dpath);
+                return EXIT_FAILURE;
+            }
+            else {
+                StringBuilder dbuf = new StringBuilder();
+                dname = Libfs.splitpath(dpath, dbuf);
+                String ddir = dbuf.toString();
+                if (Libfs.is_empty(dname)) {
+                    Libfs.error("mv: %s: no such directory", dpath);
+                    return EXIT_FAILURE;
                 }
-                else { // ip == NULL
-                    Libfs.daddent(img, dip, sname, sip);
-                    Libfs.iunlink(img, Libfs.root_inode, spath);
-                    if (sip.type == Libfs.T_DIR)
-                        Libfs.dmkparlink(img, dip, sip);
+                ddp = Libfs.ilookup(img, Libfs.root_inode, ddir);
+                if (ddp == null) {
+                    Libfs.error("mv: %s: no such directory", ddir);
+                    return EXIT_FAILURE;
                 }
-            }
-            else if (dip.type == Libfs.T_FILE) {
-                // override existing file
-                if (sip.type != Libfs.T_FILE) {
-                    Libfs.error("mv: %s: not a file", spath);
+                if (ddp.type() != Libfs.T_DIR) {
+                    Libfs.error("mv: %s: not a directory", ddir);
                     return EXIT_FAILURE;
                 }
-                Libfs.iunlink(img, Libfs.root_inode, dpath);
-                Libfs.inode_t ip = ilookup(img, Libfs.root_inode, ddir);
-                assert(ip != null && ip.type == Libfs.T_DIR);
-                Libfs.daddent(img, ip, dname, sip);
-                Libfs.iunlink(img, Libfs.root_inode, spath);
+                dest = dpath;
             }
-            else { // dip->type == T_DEV
-                Libfs.error("mv: %s: device", dpath);
+            if (sip.type() == Libfs.T_DIR && Libfs.is_ancestor(img, sip, ddp)) {
+                Libfs.error("mv: %s: into itself", spath);
                 return EXIT_FAILURE;
             }
+
+            Libfs.lock_pair(img, sdp, ddp);
+            try {
+                if (!linked(sdp) || !linked(ddp) || Libfs.dlookup(img, sdp, sname, null) != sip)
+                    continue;
+                return mv(img, sip, sdp, sname, ddp, dname, spath, dest);
+            } finally {
+                Libfs.unlock_pair(sdp, ddp);
+            }
         }
-        else { // dip == NULL
-            if (Libfs.is_empty(dname)) {
-                Libfs.error("mv: %s: no such directory", dpath);
-                return EXIT_FAILURE;
+    }
+
+    // checks if the directory dp has not been removed
+    private static boolean linked(Libfs.inode_t dp) {
+        return dp.type() == Libfs.T_DIR && dp.nlink() > 0;
+    }
+
+    // moves the entry sname of sdp, naming sip, to ddp as dname, over
+    // the entry there if any; the caller has write-locked sdp and ddp
+    static int mv(Blockdev img, Libfs.inode_t sip, Libfs.inode_t sdp, String sname,
+                  Libfs.inode_t ddp, String dname, String spath, String dest) {
+        Libfs.inode_t ip = Libfs.dlookup(img, ddp, dname, null);
+        if (ip == sip)
+            return EXIT_SUCCESS; // moved onto itself
+        if (ip != null) {
+            if (ip.type() == Libfs.T_DIR) {
+                // override existing empty directory
+                if (sip.type() != Libfs.T_DIR) {
+                    Libfs.error("mv: %s: not a directory", spath);
+                    return EXIT_FAILURE;
+                }
+                if (!Libfs.emptydir(img, ip)) {
+                    Libfs.error("mv: %s: not empty", dest);
+                    return EXIT_FAILURE;
+                }
             }
-            Libfs.inode_t ip = Libfs.ilookup(img, Libfs.root_inode, ddir);
-            if (ip == null) {
-                Libfs.error("mv: %s: no such directory", ddir);
+            else if (ip.type() == Libfs.T_FILE) {
+                // override existing file
+                if (sip.type() != Libfs.T_FILE) {
+                    Libfs.error("mv: %s: directory or device", spath);
+                    return EXIT_FAILURE;
+                }
+            }
+            else {
+                Libfs.error("mv: %s: device", dest);
                 return EXIT_FAILURE;
             }
-            if (ip.type != Libfs.T_DIR) {
-                Libfs.error("mv: %s: not a directory", ddir);
+            if (Libfs.dunlink(img, ddp, dname) < 0) {
+                Libfs.error("mv: %s: cannot unlink", dest);
                 return EXIT_FAILURE;
             }
-            Libfs.daddent(img, ip, dname, sip);
-            Libfs.iunlink(img, Libfs.root_inode, spath);
-            if (sip.type == Libfs.T_DIR)
-                Libfs.dmkparlink(img, ip, sip);
+        }
+        if (Libfs.daddent(img, ddp, dname, sip) < 0 || Libfs.dunlink(img, sdp, sname) < 0) {
+            Libfs.error("mv: %s: cannot move to %s", spath, dest);
+            return EXIT_FAILURE;
+        }
+        if (sip.type() == Libfs.T_DIR && Libfs.dmkparlink(img, ddp, sip) < 0) {
+            Libfs.error("mv: %s: cannot link to the parent directory", dest);
+            return EXIT_FAILURE;
         }
         return EXIT_SUCCESS;
     }
 
     // ln src_path dest_path
-    int do_ln(MappedByteBuffer img, String args[]) {
+    static int do_ln(Blockdev img, String args[]) {
         if (args.length != 2) {
             Libfs.error("usage: %s img_file ln spath dpath", Libfs.progname);
             return EXIT_FAILURE;
@@ -438,25 +458,26 @@ public class Opfs implements Filesystem {
             Libfs.error("ln: %s: no such file or directory", spath);
             return EXIT_FAILURE;
         }
-        if (sip.type != Libfs.T_FILE) {
+        if (sip.type() != Libfs.T_FILE) {
             Libfs.error("ln: %s: is a directory or a device", spath);
             return EXIT_FAILURE;
         }
 
         // destination
-        char [] ddir = new char[Libfs.BUFSIZE];
-        String dname = Libfs.splitpath(dpath, ddir, Libfs.BUFSIZE);
+        StringBuilder dbuf = new StringBuilder();
+        String dname = Libfs.splitpath(dpath, dbuf);
+        String ddir = dbuf.toString();
         Libfs.inode_t dip = Libfs.ilookup(img, Libfs.root_inode, ddir);
         if (dip == null) {
             Libfs.error("ln: %s: no such directory", ddir);
             return EXIT_FAILURE;
         }
-        if (dip.type != Libfs.T_DIR) {
+        if (dip.type() != Libfs.T_DIR) {
             Libfs.error("ln: %s: not a directory", ddir);
             return EXIT_FAILURE;
         }
         if (Libfs.is_empty(dname)) {
-            dname = Libfs.splitpath(spath, null, 0);
+            dname = Libfs.splitpath(spath, null);
             if (Libfs.dlookup(img, dip, dname, null) != null) {
                 Libfs.error("ln: %s/%s: file exists", ddir, dname);
                 return EXIT_FAILURE;
@@ -465,11 +486,11 @@ public class Opfs implements Filesystem {
         else {
             Libfs.inode_t ip = Libfs.dlookup(img, dip, dname, null);
             if (ip != null) {
-                if (ip.type != Libfs.T_DIR) {
+                if (ip.type() != Libfs.T_DIR) {
                     Libfs.error("ln: %s/%s: file exists", ddir, dname);
                     return EXIT_FAILURE;
                 }
-                dname = Libfs.splitpath(spath, null, 0);
+                dname = Libfs.splitpath(spath, null);
                 dip = ip;
             }
         }
@@ -481,7 +502,7 @@ public class Opfs implements Filesystem {
     }
 
     // mkdir path
-    int do_mkdir(MappedByteBuffer img, String args[]) {
+    static int do_mkdir(Blockdev img, String args[]) {
         if (args.length != 1) {
             Libfs.error("usage: %s img_file mkdir path", Libfs.progname);
             return EXIT_FAILURE;
@@ -500,7 +521,7 @@ public class Opfs implements Filesystem {
     }
 
     // rmdir path
-    int do_rmdir(MappedByteBuffer img, String args[]) {
+    static int do_rmdir(Blockdev img, String args[]) {
         if (args.length != 1) {
             Libfs.error("usage: %s img_file rmdir path", Libfs.progname);
             return EXIT_FAILURE;
@@ -512,90 +533,510 @@ public class Opfs implements Filesystem {
             Libfs.error("rmdir: %s: no such file or directory", path);
             return EXIT_FAILURE;
         }
-        if (ip.type != Libfs.T_DIR) {
+        if (ip.type() != Libfs.T_DIR) {
             Libfs.error("rmdir: %s: not a directory", path);
             return EXIT_FAILURE;
         }
-        if (!Libfs.emptydir(img, ip)) {
-            Libfs.error("rmdir: %s: non-empty directory", path);
+        Libfs.inode_t dp = Libfs.dlookup(img, ip, "..", null);
+        if (dp == null) {
+            Libfs.error("rmdir: %s: no parent directory", path);
             return EXIT_FAILURE;
         }
-        if (Libfs.iunlink(img, Libfs.root_inode, path) < 0) {
+        String[] elems = Libfs.pathelems(path);
+        if (elems.length == 0) {
             Libfs.error("rmdir: %s: cannot unlink", path);
             return EXIT_FAILURE;
         }
+        String name = elems[elems.length - 1];
+        // keep entries from being added to ip until it is unlinked; the
+        // entry is unlinked from the locked dp, not by path, which would
+        // lock the ancestors of dp after dp
+        Libfs.lock_pair(img, dp, ip);
+        try {
+            if (Libfs.dlookup(img, dp, name, null) != ip) {
+                Libfs.error("rmdir: %s: no such file or directory", path);
+                return EXIT_FAILURE;
+            }
+            if (!Libfs.emptydir(img, ip)) {
+                Libfs.error("rmdir: %s: non-empty directory", path);
+                return EXIT_FAILURE;
+            }
+            if (Libfs.dunlink(img, dp, name) < 0) {
+                Libfs.error("rmdir: %s: cannot unlink", path);
+                return EXIT_FAILURE;
+            }
+        } finally {
+            Libfs.unlock_pair(dp, ip);
+        }
+        return EXIT_SUCCESS;
+    }
+
+
+    // fsck [-r]
+    static int do_fsck(Blockdev img, String args[]) {
+        if (args.length > 1 || (args.length == 1 && !args[0].equals("-r"))) {
+            Libfs.error("usage: %s img_file fsck [-r]", Libfs.progname);
+            return EXIT_FAILURE;
+        }
+        if (new Fsck(img, stdout()).run(args.length == 1) > 0)
+            return EXIT_FAILURE;
+        return EXIT_SUCCESS;
+    }
+
+    // defrag [-c] [-b budget] [path]
+    static int do_defrag(Blockdev img, String args[]) {
+        boolean compact = false;
+        long budget = Long.MAX_VALUE;
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-c"))
+                compact = true;
+            else if (args[i].equals("-b") && i + 1 < args.length) {
+                try {
+                    budget = Long.parseLong(args[++i]);
+                } catch (NumberFormatException e) {
+                    budget = -1;
+                }
+                if (budget < 0) {
+                    Libfs.error("defrag: %s: bad budget", args[i]);
+                    return EXIT_FAILURE;
+                }
+            }
+            else if (path == null && !args[i].startsWith("-"))
+                path = args[i];
+            else {
+                Libfs.error("usage: %s img_file defrag [-c] [-b budget] [path]", Libfs.progname);
+                return EXIT_FAILURE;
+            }
+        }
+        Libfs.inode_t ip = null;
+        if (path != null) {
+            ip = Libfs.ilookup(img, Libfs.root_inode, path);
+            if (ip == null) {
+                Libfs.error("defrag: %s: no such file or directory", path);
+                return EXIT_FAILURE;
+            }
+        }
+        new Defrag(img, stdout(), compact, budget).run(ip);
+        return EXIT_SUCCESS;
+    }
+
+    // compactdir [-r] [-s] path
+    static int do_compactdir(Blockdev img, String args[]) {
+        boolean recursive = false, sort = false;
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("-r"))
+                recursive = true;
+            else if (arg.equals("-s"))
+                sort = true;
+            else if (path == null && !arg.startsWith("-"))
+                path = arg;
+            else {
+                path = null;
+                break;
+            }
+        }
+        if (path == null) {
+            Libfs.error("usage: %s img_file compactdir [-r] [-s] path", Libfs.progname);
+            return EXIT_FAILURE;
+        }
+        // moving an entry writes two slots, which only the log makes one
+        // step across a crash
+        if (!Libfs.logged(img)) {
+            Libfs.error("compactdir: no log (OPFS_SYNC=none): a crash could lose entries");
+            return EXIT_FAILURE;
+        }
+        Libfs.inode_t dp = Libfs.ilookup(img, Libfs.root_inode, path);
+        if (dp == null) {
+            Libfs.error("compactdir: %s: no such directory", path);
+            return EXIT_FAILURE;
+        }
+        if (dp.type() != Libfs.T_DIR) {
+            Libfs.error("compactdir: %s: not a directory", path);
+            return EXIT_FAILURE;
+        }
+        long[] count = new long[2]; // # of directories, # of bytes freed
+        if (compactdir(img, dp, recursive, sort, new BitSet(), count) < 0) {
+            Libfs.error("compactdir: %s: failed", path);
+            return EXIT_FAILURE;
+        }
+        stdout().printf("compactdir: %d directories, %d slots freed%n", count[0], count[1] / DIRENTSIZE);
+        return EXIT_SUCCESS;
+    }
+
+    // compacts dp, and with recursive the directories under it
+    private static int compactdir(Blockdev img, Libfs.inode_t dp, boolean recursive, boolean sort,
+                                  BitSet seen, long[] count) {
+        if (seen.get(dp.inum))
+            return 0;
+        seen.set(dp.inum);
+        int n = Libfs.dcompact(img, dp, sort);
+        if (n < 0)
+            return -1;
+        count[0]++;
+        count[1] += n;
+        if (!recursive)
+            return 0;
+        for (Libfs.inode_t cp : subdirs(img, dp))
+            if (compactdir(img, cp, true, sort, seen, count) < 0)
+                return -1;
+        return 0;
+    }
+
+    // dirfmt [-r] plain|sorted path
+    static int do_dirfmt(Blockdev img, String args[]) {
+        boolean recursive = args.length > 0 && args[0].equals("-r");
+        int i = recursive ? 1 : 0;
+        if (args.length != i + 2 || !(args[i].equals("plain") || args[i].equals("sorted"))) {
+            Libfs.error("usage: %s img_file dirfmt [-r] plain|sorted path", Libfs.progname);
+            return EXIT_FAILURE;
+        }
+        int fmt = args[i].equals("sorted") ? Libfs.DFMT_SORTED : Libfs.DFMT_PLAIN;
+        if (fmt == Libfs.DFMT_SORTED && !Libfs.logged(img)) {
+            // sorting moves entries as compactdir does
+            Libfs.error("dirfmt: no log (OPFS_SYNC=none): a crash could lose entries");
+            return EXIT_FAILURE;
+        }
+        String path = args[i + 1];
+        Libfs.inode_t dp = Libfs.ilookup(img, Libfs.root_inode, path);
+        if (dp == null) {
+            Libfs.error("dirfmt: %s: no such directory", path);
+            return EXIT_FAILURE;
+        }
+        if (dp.type() != Libfs.T_DIR) {
+            Libfs.error("dirfmt: %s: not a directory", path);
+            return EXIT_FAILURE;
+        }
+        if (dirfmt(img, dp, fmt, recursive, new BitSet()) < 0) {
+            Libfs.error("dirfmt: %s: failed", path);
+            return EXIT_FAILURE;
+        }
+        return EXIT_SUCCESS;
+    }
+
+    // converts dp, and with recursive the directories under it
+    private static int dirfmt(Blockdev img, Libfs.inode_t dp, int fmt, boolean recursive, BitSet seen) {
+        if (seen.get(dp.inum))
+            return 0;
+        seen.set(dp.inum);
+        if (Libfs.dconvert(img, dp, fmt) < 0)
+            return -1;
+        if (!recursive)
+            return 0;
+        for (Libfs.inode_t cp : subdirs(img, dp))
+            if (dirfmt(img, cp, fmt, true, seen) < 0)
+                return -1;
+        return 0;
+    }
+
+    // the directories named in dp, but "." and ".."
+    private static ArrayList<Libfs.inode_t> subdirs(Blockdev img, Libfs.inode_t dp) {
+        ArrayList<Libfs.inode_t> ds = new ArrayList<>();
+        byte[] buf = new byte[dp.size()];
+        if (Libfs.iread(img, dp, buf, buf.length, 0) != buf.length)
+            return ds;
+        for (int off = 0; off < buf.length; off += DIRENTSIZE) {
+            int inum = Dindex.decode_inum(buf, off);
+            String name = Dindex.decode_name(buf, off);
+            if (inum == 0 || name.equals(".") || name.equals(".."))
+                continue;
+            Libfs.inode_t ip = Libfs.iget(img, inum);
+            if (ip != null && ip.type() == Libfs.T_DIR)
+                ds.add(ip);
+        }
+        return ds;
+    }
+
+    // sync
+    static int do_sync(Blockdev img, String args[]) {
+        if (args.length != 0) {
+            Libfs.error("usage: %s img_file sync", Libfs.progname);
+            return EXIT_FAILURE;
+        }
+        Libfs.sync(img);
+        return EXIT_SUCCESS;
+    }
+
+    // batch [script]
+    static int do_batch(Blockdev img, String args[]) {
+        if (args.length > 1) {
+            Libfs.error("usage: %s img_file batch [script]", Libfs.progname);
+            return EXIT_FAILURE;
+        }
+        try (BufferedReader script = args.length == 1
+                ? new BufferedReader(new FileReader(args[0]))
+                : new BufferedReader(new InputStreamReader(System.in))) {
+            int status = EXIT_SUCCESS;
+            String line;
+            long rb = Libfs.rollbacks(img);
+            Libfs.begin_group(img);
+            try {
+                for (int lineno = 1; (line = script.readLine()) != null; lineno++) {
+                    int s = exec_line(img, line);
+                    if (s < 0)
+                        continue;
+                    Libfs.error("batch: %d: %s: %s", lineno, line.trim(), s == EXIT_SUCCESS ? "ok" : "failed");
+                    if (s != EXIT_SUCCESS)
+                        status = EXIT_FAILURE;
+                    if (Libfs.rollbacks(img) != rb) {
+                        // the lines since the last commit are undone too
+                        Libfs.error("batch: %d: rolled back to the last commit, stopped", lineno);
+                        break;
+                    }
+                }
+            } finally {
+                Libfs.end_group(img);
+            }
+            return status;
+        } catch (IOException e) {
+            Libfs.error("batch: %s", e.getMessage());
+            return EXIT_FAILURE;
+        }
+    }
+
+    // serve socket
+    static int do_serve(Blockdev img, String args[]) {
+        if (args.length != 1) {
+            Libfs.error("usage: %s img_file serve socket", Libfs.progname);
+            return EXIT_FAILURE;
+        }
+        try {
+            Opfsd.serve(img, Paths.get(args[0]));
+        } catch (IOException e) {
+            Libfs.error("serve: %s: %s", args[0], e.getMessage());
+            return EXIT_FAILURE;
+        }
         return EXIT_SUCCESS;
     }
 
+    // runs one script line "cmd arg... [< infile] [> outfile]";
+    // returns -1 for a blank or comment (#) line
+    static int exec_line(Blockdev img, String line) {
+        String[] words = line.trim().split("\\s+");
+        if (words[0].isEmpty() || words[0].startsWith("#"))
+            return -1;
+        if (!single_cmd(words[0])) {
+            Libfs.error("%s: not allowed in a batch", words[0]);
+            return EXIT_FAILURE;
+        }
+        ArrayList<String> args = new ArrayList<>();
+        String infile = null, outfile = null;
+        for (int i = 1; i < words.length; i++) {
+            if ((words[i].equals("<") || words[i].equals(">")) && i + 1 < words.length) {
+                if (words[i].equals("<"))
+                    infile = words[++i];
+                else
+                    outfile = words[++i];
+            }
+            else
+                args.add(words[i]);
+        }
+
+        try (FileChannel in = infile != null ? FileChannel.open(Paths.get(infile), StandardOpenOption.READ) : null;
+             FileChannel out = outfile != null ? FileChannel.open(Paths.get(outfile),
+                     StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING) : null) {
+            PrintStream print = out != null ? new PrintStream(Channels.newOutputStream(out)) : null;
+            return exec_redirected(img, words[0], args.toArray(new String[0]), in, out, print, null);
+        } catch (IOException e) {
+            Libfs.error("%s: %s", words[0], e.getMessage());
+            return EXIT_FAILURE;
+        }
+    }
+
+    // checks if cmd can run inside a batch or a server connection
+    static boolean single_cmd(String cmd) {
+        return !cmd.equals("batch") && !cmd.equals("serve");
+    }
+
+    // checks if cmd only reads the image, so that it can run on a
+    // read-only mapping under a shared lock
+    static boolean query_cmd(String cmd) {
+        return cmd.equals("diskinfo") || cmd.equals("info") || cmd.equals("ls") || cmd.equals("get");
+    }
 
-    abstract class cmd_table_ent {
+    // standard input/output of the command running in this thread when
+    // they are redirected (batch mode, server connections); null means
+    // the process's stdin/stdout
+    static final ThreadLocal<ReadableByteChannel> cmd_in = new ThreadLocal<>();
+    static final ThreadLocal<WritableByteChannel> cmd_out = new ThreadLocal<>();
+    static final ThreadLocal<PrintStream> cmd_print = new ThreadLocal<>();
+
+    // text output of the running command
+    static PrintStream stdout() {
+        PrintStream ps = cmd_print.get();
+        return ps != null ? ps : System.out;
+    }
+
+    // runs a command with its stdin read from in, its data output (get)
+    // written to out and its text output and messages printed to print
+    // and err; a null stream is left as it is
+    static int exec_redirected(Blockdev img, String cmd, String args[],
+                               ReadableByteChannel in, WritableByteChannel out,
+                               PrintStream print, PrintStream err) {
+        cmd_in.set(in);
+        cmd_out.set(out);
+        cmd_print.set(print);
+        Libfs.cmd_stderr.set(err);
+        try {
+            return exec_cmd(img, cmd, args);
+        } finally {
+            stdout().flush();
+            cmd_in.remove();
+            cmd_out.remove();
+            cmd_print.remove();
+            Libfs.cmd_stderr.remove();
+        }
+    }
+
+    interface cmd_fun {
+        int fun(Blockdev img, String[] argv);
+    }
+
+    static class cmd_table_ent {
         String name;
         String args;
-        abstract int fun(MappedByteBuffer img, String[] argv);
-    }
-
-    private cmd_table_ent cmd_table[] = {
-        { "diskinfo", "", do_diskinfo },
-        { "info", "path", do_info },
-        { "ls", "path", do_ls },
-        { "get", "path", do_get },
-        { "put", "path", do_put },
-        { "rm", "path", do_rm },
-        { "cp", "spath dpath", do_cp },
-        { "mv", "spath dpath", do_mv },
-        { "ln", "spath dpath", do_ln },
-        { "mkdir", "path", do_mkdir },
-        { "rmdir", "path", do_rmdir },
-        { null, null }
+        cmd_fun fun;
+
+        cmd_table_ent(String name, String args, cmd_fun fun) {
+            this.name = name;
+            this.args = args;
+            this.fun = fun;
+        }
+    }
+
+    private static cmd_table_ent cmd_table[] = {
+        new cmd_table_ent("diskinfo", "", Opfs::do_diskinfo),
+        new cmd_table_ent("info", "path", Opfs::do_info),
+        new cmd_table_ent("ls", "path", Opfs::do_ls),
+        new cmd_table_ent("get", "path", Opfs::do_get),
+        new cmd_table_ent("put", "path", Opfs::do_put),
+        new cmd_table_ent("rm", "path", Opfs::do_rm),
+        new cmd_table_ent("cp", "spath dpath", Opfs::do_cp),
+        new cmd_table_ent("mv", "spath dpath", Opfs::do_mv),
+        new cmd_table_ent("ln", "spath dpath", Opfs::do_ln),
+        new cmd_table_ent("mkdir", "path", Opfs::do_mkdir),
+        new cmd_table_ent("rmdir", "path", Opfs::do_rmdir),
+        new cmd_table_ent("fsck", "[-r]", Opfs::do_fsck),
+        new cmd_table_ent("defrag", "[-c] [-b budget] [path]", Opfs::do_defrag),
+        new cmd_table_ent("compactdir", "[-r] [-s] path", Opfs::do_compactdir),
+        new cmd_table_ent("dirfmt", "[-r] plain|sorted path", Opfs::do_dirfmt),
+        new cmd_table_ent("sync", "", Opfs::do_sync),
+        new cmd_table_ent("batch", "[script]", Opfs::do_batch),
+        new cmd_table_ent("serve", "socket", Opfs::do_serve),
+        new cmd_table_ent(null, null, null)
     };
 
-    static int exec_cmd(MappedByteBuffer img, String cmd, String args[]) {
+    static int exec_cmd(Blockdev img, String cmd, String args[]) {
         for (int i = 0; cmd_table[i].name != null; i++) {
-            if (cmd.equals(cmd_table[i].name))
-                return cmd_table[i].fun(img, args);
+            if (cmd.equals(cmd_table[i].name)) {
+                // commands that change the image run as one log operation;
+                // fsck, defrag, compactdir and dirfmt run one per step
+                boolean op = single_cmd(cmd) && !query_cmd(cmd) && !cmd.equals("sync") && !cmd.equals("fsck")
+                    && !cmd.equals("defrag") && !cmd.equals("compactdir") && !cmd.equals("dirfmt");
+                try {
+                    if (op)
+                        Libfs.begin_op(img);
+                    try {
+                        return cmd_table[i].fun.fun(img, args);
+                    } catch (RuntimeException | Error e) {
+                        // what the command wrote half-way is rolled back
+                        if (op)
+                            Libfs.fail_op(img);
+                        throw e;
+                    } finally {
+                        if (op)
+                            Libfs.end_op(img);
+                    }
+                } catch (Libfs.fatal_exception e) {
+                    return EXIT_FAILURE;
+                }
+            }
         }
         Libfs.error("unknown command: %s", cmd);
         return EXIT_FAILURE;
     }
 
-    public static int main(String args[]) {
-        Libfs.progname = args[0];
-        if (args.length < 3) {
+    public static void main(String args[]) {
+        int status = run(args);
+        System.exit(status);
+    }
+
+    // runs the command line "img_file command [arg...]"; returns the
+    // exit status
+    static int run(String args[]) {
+        if (args.length < 2) {
             Libfs.error("usage: %s img_file command [arg...]", Libfs.progname);
             Libfs.error("Commands are:");
             for (int i = 0; cmd_table[i].name != null; i++)
                 Libfs.error("    %s %s", cmd_table[i].name, cmd_table[i].args);
             return EXIT_FAILURE;
         }
-        String img_file = args[1];
-        String cmd = args[2];
-        File file = new File(args[1]);
-        long img_size = file.length();
+        String cmd = args[1];
+        File file = new File(args[0]);
 
 
         /*img_t img = mmap(null, img_size, PROT_READ | PROT_WRITE,
                 MAP_SHARED, img_fd, 0);*/
         try {
             // open + mmap
-            RandomAccessFile img_fd = new RandomAccessFile(file, "rw");
-            MappedByteBuffer img = img_fd.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
-
-            // get file information
-            struct stat img_sbuf;
-            if (fstat(img_fd, &img_sbuf) < 0) {
-//                perror(img_file);
-                img_fd.close();
+            // query commands map the image read-only and share the file
+            // lock with each other, so any number of them can scan one
+            // image at once; the other commands lock it exclusively
+            boolean rdonly = query_cmd(cmd);
+            long[] sync = Journal.parse_mode(System.getenv("OPFS_SYNC"));
+            if (sync == null) {
+                Libfs.error("OPFS_SYNC: %s: not command, manual, none or a positive interval (ms)", System.getenv("OPFS_SYNC"));
+                return EXIT_FAILURE;
+            }
+            String dev = System.getenv("OPFS_DEV");
+            if (dev != null && !dev.equals("mmap") && !dev.equals("pread") && !dev.equals("mem")) {
+                Libfs.error("OPFS_DEV: %s: not mmap, pread or mem", dev);
                 return EXIT_FAILURE;
             }
+            int nbuf = Chandev.NBUF;
+            if (System.getenv("OPFS_CACHE") != null) {
+                try {
+                    nbuf = Integer.parseInt(System.getenv("OPFS_CACHE"));
+                } catch (NumberFormatException e) {
+                    nbuf = 0;
+                }
+                if (nbuf <= 0) {
+                    Libfs.error("OPFS_CACHE: %s: not a positive # of blocks", System.getenv("OPFS_CACHE"));
+                    return EXIT_FAILURE;
+                }
+            }
+            RandomAccessFile img_fd = new RandomAccessFile(file, rdonly ? "r" : "rw");
+            img_fd.getChannel().lock(0, Long.MAX_VALUE, rdonly);
+            if (Journal.pending(img_fd.getChannel())) {
+                // replay the log left by a crash first
+                if (rdonly) {
+                    img_fd.close();
+                    img_fd = new RandomAccessFile(file, "rw");
+                    img_fd.getChannel().lock();
+                }
+                Journal.recover(img_fd.getChannel());
+            }
+            // changes reach the file through the log only (see Journal),
+            // unless OPFS_SYNC is none; OPFS_DEV picks the Blockdev and
+            // OPFS_CACHE the # of blocks Chandev caches
+            FileChannel.MapMode mode = rdonly ? FileChannel.MapMode.READ_ONLY
+                    : sync[0] == Journal.SYNC_NONE ? FileChannel.MapMode.READ_WRITE
+                    : FileChannel.MapMode.PRIVATE;
+            // get file information
+            long img_size = img_fd.getChannel().size();
+            Blockdev img = Blockdev.open(dev, img_fd.getChannel(), mode, img_size, nbuf);
+            if (!rdonly)
+                Libfs.journal = new Journal(img, img_fd.getChannel(), (int)sync[0], sync[1]);
+
             Libfs.root_inode = Libfs.iget(img, Libfs.root_inode_number);
 
             // shift argc and argv to point the first command argument
-            int status = EXIT_FAILURE;
-            if (setjmp(fatal_exception_buf) == 0)
-                status = exec_cmd(img, cmd, Arrays.copyOfRange(args,3,args.length));
+            int status = exec_cmd(img, cmd, Arrays.copyOfRange(args,2,args.length));
+            if (Libfs.journal(img) != null)
+                Libfs.journal(img).close();
 
-            // Java system garbage-collect buffer itself
-//            munmap(img, img_size);
+            img.close();
             img_fd.close();
 
             return status;
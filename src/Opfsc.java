@@ -0,0 +1,87 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class Opfsc {
+    /* usage: opfsc socket command [arg...]
+     *
+     * runs one command on an opfs server (opfs img_file serve socket)
+     * with this process's stdin/stdout/stderr; see Opfsd for the protocol
+     */
+
+    // sends a command on ch and copies its output to out and err;
+    // in is sent as the command's stdin for put (or if it is not null)
+    static int call(SocketChannel ch, String cmd, String[] args, ReadableByteChannel in,
+                    WritableByteChannel out, WritableByteChannel err) throws IOException {
+        StringBuilder sb = new StringBuilder(cmd);
+        for (String arg : args)
+            sb.append('\0').append(arg);
+        Opfsd.write_frame(ch, Opfsd.CMD, ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        if (in != null) {
+            ByteBuffer buf = ByteBuffer.allocate(Opfsd.MAXFRAME);
+            while (in.read(buf.clear()) >= 0) {
+                if (buf.flip().hasRemaining())
+                    Opfsd.write_frame(ch, Opfsd.IN, buf);
+            }
+        }
+        Opfsd.write_frame(ch, Opfsd.IN, ByteBuffer.allocate(0));
+
+        ByteBuffer hdr = ByteBuffer.allocate(5);
+        ByteBuffer buf = ByteBuffer.allocate(Opfsd.MAXFRAME);
+        while (true) {
+            Opfsd.read_fully(ch, hdr.clear());
+            hdr.flip();
+            byte type = hdr.get();
+            int len = hdr.getInt();
+            if (len < 0 || len > Opfsd.MAXFRAME)
+                throw new IOException("bad frame");
+            buf.clear().limit(len);
+            Opfsd.read_fully(ch, buf);
+            buf.flip();
+            switch (type) {
+                case Opfsd.OUT:
+                    while (buf.hasRemaining())
+                        out.write(buf);
+                    break;
+                case Opfsd.ERR:
+                    while (buf.hasRemaining())
+                        err.write(buf);
+                    break;
+                case Opfsd.STATUS:
+                    return buf.getInt();
+                default:
+                    throw new IOException("bad frame");
+            }
+        }
+    }
+
+    public static void main(String args[]) {
+        if (args.length < 2) {
+            System.err.println("usage: opfsc socket command [arg...]");
+            System.exit(1);
+        }
+        String cmd = args[1];
+        String[] cargs = Arrays.copyOfRange(args, 2, args.length);
+        try (SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            ch.connect(UnixDomainSocketAddress.of(Paths.get(args[0])));
+            ReadableByteChannel in = cmd.equals("put") ? new FileInputStream(FileDescriptor.in).getChannel() : null;
+            int status = call(ch, cmd, cargs, in,
+                    new FileOutputStream(FileDescriptor.out).getChannel(),
+                    new FileOutputStream(FileDescriptor.err).getChannel());
+            System.exit(status);
+        } catch (IOException e) {
+            System.err.println("opfsc: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
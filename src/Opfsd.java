@@ -0,0 +1,199 @@
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Opfsd {
+    /* opfs server: runs the commands of cmd_table for local clients
+     * against one mapped image, over a Unix domain socket
+     *
+     * frame: | type (1 byte) | length (4 bytes) | payload (length bytes) |
+     *
+     * client -> server
+     *   'C'  command: the command name and arguments separated by '\0'
+     *   'I'  stdin data of the command; an empty 'I' ends the input
+     *        (every 'C' is followed by its 'I' frames, at least the empty one)
+     * server -> client
+     *   'O'  stdout data
+     *   'E'  stderr data
+     *   'S'  exit status (4 bytes), the last frame of a reply
+     *
+     * A connection carries any number of commands, one after another.
+     * get and put payloads are passed frame by frame between the socket
+     * and the mapped image, never buffered in full.
+     */
+
+    static final byte CMD = 'C';
+    static final byte IN = 'I';
+    static final byte OUT = 'O';
+    static final byte ERR = 'E';
+    static final byte STATUS = 'S';
+
+    static final int MAXFRAME = 64 * 1024; // max payload of an 'O' or 'I' frame
+
+    // accepts connections on path until the process is killed
+    static void serve(Blockdev img, Path path) throws IOException {
+        Files.deleteIfExists(path);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(path));
+            ExecutorService pool = Executors.newCachedThreadPool();
+            while (true) {
+                SocketChannel ch = server.accept();
+                pool.execute(() -> serve_conn(img, ch));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    static void serve_conn(Blockdev img, SocketChannel ch) {
+        try (ch) {
+            ByteBuffer hdr = ByteBuffer.allocate(5);
+            while (true) {
+                hdr.clear();
+                if (ch.read(hdr) < 0)
+                    return; // the client has closed the connection
+                read_fully(ch, hdr);
+                hdr.flip();
+                byte type = hdr.get();
+                int len = hdr.getInt();
+                if (type != CMD || len < 0 || len > MAXFRAME)
+                    throw new IOException("bad frame");
+                ByteBuffer payload = ByteBuffer.allocate(len);
+                read_fully(ch, payload);
+                String[] words = new String(payload.array(), StandardCharsets.UTF_8).split("\0", -1);
+                String[] args = Arrays.copyOfRange(words, 1, words.length);
+
+                frame_in in = new frame_in(ch);
+                frame_out out = new frame_out(ch, OUT);
+                PrintStream print = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(out), 8192));
+                PrintStream err = new PrintStream(Channels.newOutputStream(new frame_out(ch, ERR)), true);
+                int status;
+                if (!Opfs.single_cmd(words[0])) {
+                    err.printf("%s: not allowed in a connection%n", words[0]);
+                    status = 1;
+                }
+                else
+                    status = Opfs.exec_redirected(img, words[0], args, in, out, print, err);
+                in.drain();
+                write_frame(ch, STATUS, ByteBuffer.allocate(4).putInt(status).flip());
+            }
+        } catch (IOException e) {
+            Libfs.error("serve: %s", e.getMessage());
+        }
+    }
+
+    static void read_fully(ReadableByteChannel ch, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining())
+            if (ch.read(dst) < 0)
+                throw new EOFException("connection closed");
+    }
+
+    static void write_frame(WritableByteChannel ch, byte type, ByteBuffer payload) throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(5).put(type).putInt(payload.remaining()).flip();
+        while (hdr.hasRemaining())
+            ch.write(hdr);
+        while (payload.hasRemaining())
+            ch.write(payload);
+    }
+
+    // writes the data written to it as frames of one type
+    static class frame_out implements WritableByteChannel {
+        private final WritableByteChannel ch;
+        private final byte type;
+
+        frame_out(WritableByteChannel ch, byte type) {
+            this.ch = ch;
+            this.type = type;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                ByteBuffer frame = src.slice();
+                frame.limit(Math.min(frame.remaining(), MAXFRAME));
+                src.position(src.position() + frame.remaining());
+                write_frame(ch, type, frame);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return ch.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // reads the payloads of 'I' frames up to the empty one
+    static class frame_in implements ReadableByteChannel {
+        private final ReadableByteChannel ch;
+        private final ByteBuffer hdr = ByteBuffer.allocate(5);
+        private int left;     // bytes left in the current frame
+        private boolean eof;  // the empty frame has been read
+
+        frame_in(ReadableByteChannel ch) {
+            this.ch = ch;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            while (left == 0) {
+                if (eof)
+                    return -1;
+                hdr.clear();
+                read_fully(ch, hdr);
+                hdr.flip();
+                if (hdr.get() != IN)
+                    throw new IOException("bad frame");
+                left = hdr.getInt();
+                if (left == 0)
+                    eof = true;
+            }
+            if (!dst.hasRemaining())
+                return 0;
+            ByteBuffer part = dst.slice();
+            part.limit(Math.min(part.remaining(), left));
+            int n = ch.read(part);
+            if (n < 0)
+                throw new EOFException("connection closed");
+            dst.position(dst.position() + n);
+            left -= n;
+            return n;
+        }
+
+        // skips the input the command has not read
+        void drain() throws IOException {
+            ByteBuffer skip = ByteBuffer.allocate(8192);
+            while (read(skip.clear()) >= 0)
+                ;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return ch.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,4 +1,7 @@
-public class Superblock {
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class Superblock implements Filesystem {
     int size;         // Size of file system image (blocks)
     int nblocks;      // Number of data blocks
     int ninodes;      // Number of inodes.
@@ -6,4 +9,37 @@ public class Superblock {
     int logstart;     // Block number of first log block
     int inodestart;   // Block number of first inode block
     int bmapstart; // Block number of first free map block
+
+    // layout geometry derived from the fields above
+    int ninodeblks;   // Number of inode blocks (Ni)
+    int nbmapblks;    // Number of free map blocks (Nm)
+    int datastart;    // Block number of first data block
+
+    Blockdev img;     // image the superblock was read from
+
+    // decodes the superblock (block 1) of an image
+    static Superblock read(Blockdev img) {
+        byte[] buf = new byte[2 * BSIZE];
+        img.get(0, buf, 0, buf.length);
+        Superblock sb = read(ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN));
+        sb.img = img;
+        return sb;
+    }
+
+    // decodes the superblock from a buffer holding the first two blocks
+    static Superblock read(ByteBuffer img) {
+        Superblock sb = new Superblock();
+        int p = BSIZE;
+        sb.size = img.getInt(p);
+        sb.nblocks = img.getInt(p + 4);
+        sb.ninodes = img.getInt(p + 8);
+        sb.nlog = img.getInt(p + 12);
+        sb.logstart = img.getInt(p + 16);
+        sb.inodestart = img.getInt(p + 20);
+        sb.bmapstart = img.getInt(p + 24);
+        sb.ninodeblks = sb.ninodes / IPB + 1;
+        sb.nbmapblks = sb.size / BPB + 1;
+        sb.datastart = 2 + sb.nlog + sb.ninodeblks + sb.nbmapblks;
+        return sb;
+    }
 }
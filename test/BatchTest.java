@@ -0,0 +1,64 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BatchTest implements Filesystem {
+    /* batch mode, through the opfs program (Opfs main, do_batch)
+     *
+     * Runs a script with redirections, blank and comment lines, a failing
+     * command and a command not allowed in a batch, from a file and from
+     * stdin, and checks the status line of each command, the exit status,
+     * what reached the redirected files and what is in the image after.
+     * Also checks the usage message of a short command line.
+     */
+
+    public static void main(String[] args) throws Exception {
+        File f = Testfs.mkfs(4000, 200);
+        File dir = Files.createTempDirectory("opfs").toFile();
+        byte[] data = new byte[20000];
+        new Random(1).nextBytes(data);
+        File in = new File(dir, "in"), out = new File(dir, "out"), ls = new File(dir, "ls");
+        Files.write(in.toPath(), data);
+        File script = new File(dir, "script");
+        Files.write(script.toPath(), String.join("\n",
+                "# a batch",
+                "mkdir d",
+                "put d/f < " + in,
+                "get d/f > " + out,
+                "",
+                "ls d > " + ls,
+                "rm d/nosuch",
+                "batch x",
+                "  mkdir   d/e  ").getBytes());
+
+        Testfs.check(Testfs.opfs(f, null, new String[0], "batch", script.getPath()) == 1, "batch: exit status 0: %s", Testfs.errors);
+        String[] status = {
+            "batch: 2: mkdir d: ok",
+            "batch: 3: put d/f < " + in + ": ok",
+            "batch: 4: get d/f > " + out + ": ok",
+            "batch: 6: ls d > " + ls + ": ok",
+            "batch: 7: rm d/nosuch: failed",
+            "batch: 8: batch x: failed",
+            "batch: 9: mkdir   d/e: ok",
+        };
+        for (String line : status)
+            Testfs.check(Testfs.errors.contains(line + "\n"), "no \"%s\" in: %s", line, Testfs.errors);
+        Testfs.check(!Testfs.errors.contains("batch: 1:") && !Testfs.errors.contains("batch: 5:"), "blank or comment line run: %s", Testfs.errors);
+        Testfs.check(Testfs.errors.contains("batch: not allowed in a batch"), "batch in a batch: %s", Testfs.errors);
+        Testfs.check(Arrays.equals(Files.readAllBytes(out.toPath()), data), "get d/f > out: data");
+        String listing = new String(Files.readAllBytes(ls.toPath()));
+        Testfs.check(listing.contains("\nf ") && listing.startsWith(". "), "ls d > ls: %s", listing);
+
+        // the script from stdin; the changes are in the image file
+        Testfs.check(Testfs.opfs(f, "rm d/f\nrmdir d/e\n".getBytes(), new String[0], "batch") == 0, "batch < script: %s", Testfs.errors);
+        Testfs.check(Testfs.errors.contains("batch: 1: rm d/f: ok\n") && Testfs.errors.contains("batch: 2: rmdir d/e: ok\n"), "batch < script: %s", Testfs.errors);
+        Testfs.check(Testfs.opfs(f, null, new String[0], "ls", "d") == 0, "ls d: %s", Testfs.errors);
+        Testfs.check(!Testfs.output.contains("f ") && !Testfs.output.contains("e "), "ls d: %s", Testfs.output);
+        Testfs.check(Testfs.opfs(f, null, new String[0], "fsck") == 0, "fsck: %s", Testfs.output);
+
+        Testfs.check(Testfs.opfs(f, null, new String[0]) == 1 && Testfs.errors.startsWith("usage: opfs img_file command"), "usage: %s", Testfs.errors);
+        for (File g : new File[] { in, out, ls, script, dir })
+            g.delete();
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+public class BitmapTest implements Filesystem {
+    /* free block allocator (Bitmap)
+     *
+     * Allocates and frees single blocks and runs on a new image and checks
+     * the counts, the bits in the image and that an index built again
+     * from the image agrees with the one that did the work.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(3 * BPB, 200);
+        Superblock sb = Libfs.SBLK(img);
+        Bitmap bm = Libfs.bitmap(img);
+        int nfree0 = sb.size - sb.datastart - 1; // the root directory has one
+        Testfs.check(bm.nfree() == nfree0, "nfree %d, expected %d", bm.nfree(), nfree0);
+
+        // single blocks: from the hint on, lowest first, never twice
+        int b = bm.alloc(sb.datastart);
+        Testfs.check(b == sb.datastart + 1, "alloc %d, expected %d", b, sb.datastart + 1);
+        Testfs.check(used(img, sb, b), "block %d: free in the image", b);
+        int c = bm.alloc(BPB + 10);
+        Testfs.check(c == BPB + 10, "alloc from the hint: %d", c);
+        Testfs.check(bm.alloc(BPB + 10) == BPB + 11, "alloc from a used hint");
+        Testfs.check(bm.nfree() == nfree0 - 3, "nfree after 3 allocs: %d", bm.nfree());
+
+        // free gives the blocks back, and says which were free already
+        Testfs.check(bm.free(c, 2) == 0, "free");
+        Testfs.check(!used(img, sb, c) && !used(img, sb, c + 1), "freed blocks used in the image");
+        Libfs.cmd_stderr.set(new PrintStream(OutputStream.nullOutputStream())); // the warning expected
+        Testfs.check(bm.free(c, 1) == 1, "double free not reported");
+        Libfs.cmd_stderr.remove();
+        Testfs.check(bm.alloc(BPB) == BPB, "alloc after free");
+
+        // runs: the whole run or the longest seen, all of it marked used
+        Bitmap.extent e = bm.alloc_run(100, sb.datastart);
+        Testfs.check(e != null && e.len == 100, "alloc_run of 100");
+        for (int i = e.start; i < e.start + e.len; i++)
+            Testfs.check(used(img, sb, i), "run block %d free in the image", i);
+        bm.free(e.start + 10, 5);
+        Bitmap.extent f = bm.alloc_first(5, sb.datastart, sb.size);
+        Testfs.check(f != null && f.start == e.start + 10, "alloc_first: the hole of 5");
+        Testfs.check(bm.alloc_first(5, sb.datastart, sb.datastart + 10) == null, "alloc_first past its limit");
+
+        // fill the image: every data block once, then 0
+        int n = bm.nfree();
+        for (int i = 0; i < n; i++)
+            Testfs.check(bm.alloc(0) != 0, "alloc %d of %d", i, n);
+        Testfs.check(bm.alloc(0) == 0 && bm.nfree() == 0, "alloc on a full image");
+        Testfs.check(bm.alloc_run(1, 0) == null, "alloc_run on a full image");
+
+        // an index built from the image agrees
+        bm.free(sb.datastart + 1, 1000);
+        Libfs.bitmap = null;
+        Bitmap again = Libfs.bitmap(img);
+        Testfs.check(again.nfree() == 1000, "rebuilt nfree %d, expected 1000", again.nfree());
+        Testfs.check(again.alloc(0) == sb.datastart + 1, "rebuilt index: lowest free block");
+    }
+
+    // checks the bit of the block b in the image
+    static boolean used(Blockdev img, Superblock sb, int b) {
+        return (img.get((long)sb.bmapstart * BSIZE + b / 8) & 1 << b % 8) != 0;
+    }
+}
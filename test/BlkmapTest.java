@@ -0,0 +1,73 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlkmapTest implements Filesystem {
+    /* per-inode block map (Libfs.blkmap)
+     *
+     * Checks that the map built on first use and kept up to date by bmap
+     * always says what the inode and its indirect block say, through
+     * writes, truncations and a reload; that it is built once; and that
+     * bmap reports an index past the largest file instead of failing.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(2000, 200);
+        Libfs.inode_t ip = Libfs.icreat(img, Libfs.root_inode, "f", Libfs.T_FILE, null);
+        byte[] data = new byte[30 * BSIZE];
+        new Random(1).nextBytes(data);
+        Testfs.check(Libfs.iwrite(img, ip, data, data.length, 0) == data.length, "write error");
+        int[] m = Libfs.blkmap(img, ip);
+        Testfs.check(Libfs.blkmap(img, ip) == m, "the map is built again");
+        check_map(img, ip, 30);
+
+        // grown a block at a time: bmap keeps the map up to date
+        for (int i = 30; i < 40; i++) {
+            Testfs.check(Libfs.iwrite(img, ip, data, BSIZE, i * BSIZE) == BSIZE, "write error");
+            check_map(img, ip, i + 1);
+        }
+        Testfs.check(Libfs.blkmap(img, ip) == m, "the map is built again after bmap");
+
+        // truncated below the indirect block, then grown again
+        Testfs.check(Libfs.itruncate(img, ip, 5 * BSIZE) == 0, "itruncate");
+        Testfs.check(ip.addr(NDIRECT) == 0, "indirect block left");
+        check_map(img, ip, 5);
+        Testfs.check(Libfs.iwrite(img, ip, data, 20 * BSIZE, 5 * BSIZE) == 20 * BSIZE, "write error");
+        check_map(img, ip, 25);
+
+        // a reload drops the map; it is built again from the image
+        int[] before = Libfs.blkmap(img, ip).clone();
+        Libfs.reload(img);
+        Testfs.check(ip.blkmap == null, "the map survived a reload");
+        Testfs.check(Arrays.equals(Libfs.blkmap(img, ip), before), "the map changed across a reload");
+        byte[] buf = new byte[25 * BSIZE];
+        Testfs.check(Libfs.iread(img, ip, buf, buf.length, 0) == buf.length, "read error");
+        Testfs.check(Arrays.equals(Arrays.copyOf(buf, 5 * BSIZE), Arrays.copyOf(data, 5 * BSIZE))
+                && Arrays.equals(Arrays.copyOfRange(buf, 5 * BSIZE, 25 * BSIZE), Arrays.copyOf(data, 20 * BSIZE)),
+                "data changed");
+
+        // an index past the largest file is reported
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Libfs.cmd_stderr.set(new PrintStream(err, true));
+        try {
+            Testfs.check(Libfs.bmap(img, ip, MAXFILE) == 0, "bmap %d", MAXFILE);
+        } finally {
+            Libfs.cmd_stderr.remove();
+        }
+        Testfs.check(err.toString().contains("bmap: " + MAXFILE + ": invalid index number"), "bmap %d: %s", MAXFILE, err);
+        Testfs.run(img, "fsck");
+    }
+
+    // checks that the map of ip says what the image says, and that the
+    // file has n blocks
+    static void check_map(Blockdev img, Libfs.inode_t ip, int n) {
+        int[] m = Libfs.blkmap(img, ip);
+        for (int i = 0; i < MAXFILE; i++) {
+            int b = i < NDIRECT ? ip.addr(i)
+                    : ip.addr(NDIRECT) == 0 ? 0 : img.getInt((long)ip.addr(NDIRECT) * BSIZE + (i - NDIRECT) * SIZEOFINT);
+            Testfs.check(m[i] == b, "block %d: %d in the map, %d in the image", i, m[i], b);
+            Testfs.check((b != 0) == (i < n), "block %d: %d", i, b);
+        }
+    }
+}
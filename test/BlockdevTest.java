@@ -0,0 +1,146 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlockdevTest implements Filesystem {
+    /* Blockdev backends (Mmapdev, Chandev, Memdev)
+     *
+     * Runs the same checks on each backend, whatever the dev property
+     * says: reads of the fields and of ranges crossing blocks, writes that
+     * reach the file with force when the device is shared and never when
+     * it is private, and read-only devices refusing writes. Chandev runs
+     * with a cache of a few blocks, so the reads go through evictions,
+     * and the writes of a shared one through write-backs.
+     */
+
+    static final int SIZE = 600;        // # of blocks of the image
+    static final int NBUF = 8;          // # of blocks Chandev caches
+
+    public static void main(String[] args) throws Exception {
+        for (String dev : new String[] { "mmap", "pread", "mem" }) {
+            File f = Testfs.mkfs(SIZE, 100);
+            FileChannel ch = Testfs.channel(f);
+            int dstart = Superblock.read(ByteBuffer.wrap(contents(ch)).order(ByteOrder.LITTLE_ENDIAN)).datastart;
+            byte[] pattern = new byte[(SIZE - dstart) * BSIZE];
+            new Random(dev.hashCode()).nextBytes(pattern);
+            ch.write(ByteBuffer.wrap(pattern), (long)dstart * BSIZE);
+            byte[] file = contents(ch);
+
+            Blockdev img = Blockdev.open(dev, ch, FileChannel.MapMode.READ_WRITE, ch.size(), NBUF);
+            reads(dev, img, file);
+            img.close();
+            writes(dev, ch, FileChannel.MapMode.READ_WRITE, dstart);
+            writes(dev, ch, FileChannel.MapMode.PRIVATE, dstart);
+
+            img = Blockdev.open(dev, ch, FileChannel.MapMode.READ_ONLY, ch.size(), NBUF);
+            Testfs.check(img.isReadOnly(), "%s: read-only device writable", dev);
+            try {
+                img.putInt((long)dstart * BSIZE, 1);
+                throw new AssertionError(dev + ": write to a read-only device");
+            } catch (ReadOnlyBufferException e) {
+                // expected
+            }
+            reads(dev, img, contents(ch));
+            img.close();
+            ch.close();
+        }
+        write_back();
+    }
+
+    // writes many more blocks than Chandev caches through a shared one:
+    // the cache stays within nbuf data blocks, the blocks it evicts are
+    // written back, and force writes back the rest
+    static void write_back() throws IOException {
+        File f = Testfs.mkfs(SIZE, 100);
+        FileChannel ch = Testfs.channel(f);
+        int dstart = Superblock.read(ByteBuffer.wrap(contents(ch)).order(ByteOrder.LITTLE_ENDIAN)).datastart;
+        Chandev img = new Chandev(ch, FileChannel.MapMode.READ_WRITE, ch.size(), NBUF);
+        int n = 100;
+        for (int b = dstart; b < dstart + n; b++) {
+            img.putInt((long)b * BSIZE, b);
+            img.putInt((long)b * BSIZE + BSIZE - SIZEOFINT, ~b);
+            // the blocks before the data region are pinned
+            Testfs.check(img.ncached() <= NBUF + dstart, "pread: %d blocks cached after %d written", img.ncached(), b - dstart + 1);
+        }
+        Testfs.check(img.nwritten() >= n - NBUF, "pread: %d blocks written back", img.nwritten());
+        img.force(0, img.size());
+        Testfs.check(img.nwritten() == n, "pread: %d blocks written back after force", img.nwritten());
+        ByteBuffer file = ByteBuffer.wrap(contents(ch)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int b = dstart; b < dstart + n; b++)
+            Testfs.check(file.getInt(b * BSIZE) == b && file.getInt(b * BSIZE + BSIZE - SIZEOFINT) == ~b,
+                    "pread: block %d not written back", b);
+        img.close();
+        ch.close();
+    }
+
+    // checks what img reads against the file contents
+    static void reads(String dev, Blockdev img, byte[] file) {
+        ByteBuffer bb = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        Testfs.check(img.size() == file.length, "%s: size %d", dev, img.size());
+        Random rnd = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            int pos = rnd.nextInt(file.length / 8) * 8;
+            Testfs.check(img.get(pos) == bb.get(pos) && img.getShort(pos) == bb.getShort(pos)
+                    && img.getInt(pos) == bb.getInt(pos) && img.getLong(pos) == bb.getLong(pos),
+                    "%s: fields at %d", dev, pos);
+        }
+        for (int i = 0; i < 200; i++) {
+            int pos = rnd.nextInt(file.length - 3 * BSIZE), len = 1 + rnd.nextInt(3 * BSIZE);
+            byte[] buf = new byte[len];
+            img.get(pos, buf, 0, len);
+            Testfs.check(Arrays.equals(buf, Arrays.copyOfRange(file, pos, pos + len)), "%s: %d bytes at %d", dev, len, pos);
+        }
+        int pos = 100 * BSIZE + 8;
+        ByteBuffer s = img.slice(pos, img.span(pos, BSIZE));
+        Testfs.check(s.remaining() > 0 && s.getInt(0) == bb.getInt(pos), "%s: slice", dev);
+    }
+
+    // writes through a device opened in mode and checks what reaches the file
+    static void writes(String dev, FileChannel ch, FileChannel.MapMode mode, int dstart) throws IOException {
+        byte[] before = contents(ch);
+        Blockdev img = Blockdev.open(dev, ch, mode, ch.size(), NBUF);
+        long pos = (long)(dstart + 10) * BSIZE - 100;  // over a block boundary
+        byte[] buf = new byte[3 * BSIZE];
+        new Random(2).nextBytes(buf);
+        img.put(pos, buf, 0, buf.length);
+        img.putLong((long)(SIZE - 1) * BSIZE, 0x0123456789abcdefL);
+        byte[] back = new byte[buf.length];
+        img.get(pos, back, 0, back.length);
+        Testfs.check(Arrays.equals(back, buf) && img.getLong((long)(SIZE - 1) * BSIZE) == 0x0123456789abcdefL,
+                "%s: written data not read back", dev);
+        if (dev.equals("pread") && mode == FileChannel.MapMode.PRIVATE) {
+            // a private Chandev keeps what it was given until told it is
+            // in the file (Journal)
+            for (int b = dstart; b < dstart + NBUF; b++)
+                img.put((long)b * BSIZE, (byte)1);
+            Testfs.check(img.must_flush(), "%s: must_flush with %d blocks dirty", dev, NBUF);
+            img.written(0, img.size());
+            Testfs.check(!img.must_flush(), "%s: must_flush after written", dev);
+        }
+        img.force(0, img.size());
+        img.close();
+
+        byte[] after = contents(ch);
+        if (mode == FileChannel.MapMode.PRIVATE) {
+            Testfs.check(Arrays.equals(after, before), "%s: a private device wrote to the file", dev);
+            return;
+        }
+        Testfs.check(Arrays.equals(Arrays.copyOfRange(after, (int)pos, (int)pos + buf.length), buf),
+                "%s: the data did not reach the file", dev);
+        Testfs.check(ByteBuffer.wrap(after).order(ByteOrder.LITTLE_ENDIAN).getLong((SIZE - 1) * BSIZE) == 0x0123456789abcdefL,
+                "%s: the long did not reach the file", dev);
+    }
+
+    // the whole file
+    static byte[] contents(FileChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int)ch.size());
+        for (long pos = 0; buf.hasRemaining(); )
+            pos += ch.read(buf, pos);
+        return buf.array();
+    }
+}
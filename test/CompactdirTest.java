@@ -0,0 +1,97 @@
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class CompactdirTest implements Filesystem {
+    /* directory compaction (compactdir, Libfs.dcompact)
+     *
+     * Checks that compactdir leaves a directory with its live entries
+     * only, packed after "." and "..", with its unused blocks freed;
+     * that -s sorts them and -r goes down the tree; that every entry
+     * still names its file; and that the image is consistent, also as
+     * read back after a crash. Without a log compactdir must refuse.
+     */
+
+    public static void main(String[] args) throws Exception {
+        File f = Testfs.mkfs(4000, 1000);
+        Blockdev img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Testfs.run(img, "mkdir", "d");
+        Testfs.run(img, "mkdir", "d/s");
+        // the files created in a scrambled order, each holding its number
+        for (int i = 0; i < 300; i++) {
+            int j = i * 7919 % 300;
+            Testfs.check(Testfs.exec(img, ("" + j).getBytes(), "put", "d/f" + j) == 0, "put f%d", j);
+            if (i < 100)
+                Testfs.check(Testfs.exec(img, new byte[0], "put", "d/s/g" + i) == 0, "put g%d", i);
+        }
+        ArrayList<String> live = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            if (i % 3 != 0)
+                Testfs.run(img, "rm", "d/f" + i);
+            else
+                live.add("f" + i);
+        }
+        for (int i = 0; i < 100; i += 2)
+            Testfs.run(img, "rm", "d/s/g" + i);
+        live.add("s");
+        int nfree = Libfs.bitmap(img).nfree();
+        Libfs.inode_t d = Libfs.ilookup(img, Libfs.root_inode, "d");
+        int size = d.size();
+
+        Testfs.run(img, "compactdir", "d");
+        Testfs.check(d.size() == (2 + live.size()) * DIRENTSIZE, "size %d, expected %d", d.size(), (2 + live.size()) * DIRENTSIZE);
+        int freed = (size + BSIZE - 1) / BSIZE - (d.size() + BSIZE - 1) / BSIZE;
+        Testfs.check(Libfs.bitmap(img).nfree() == nfree + freed, "%d blocks freed, expected %d", Libfs.bitmap(img).nfree() - nfree, freed);
+        check_entries(img, d, live, false);
+        Testfs.run(img, "fsck");
+
+        Testfs.run(img, "compactdir", "-r", "-s", "d");
+        check_entries(img, d, live, true);
+        Libfs.inode_t s = Libfs.ilookup(img, Libfs.root_inode, "d/s");
+        ArrayList<String> slive = new ArrayList<>();
+        for (int i = 1; i < 100; i += 2)
+            slive.add("g" + i);
+        check_entries(img, s, slive, true);
+        Testfs.run(img, "fsck");
+
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        d = Libfs.ilookup(img, Libfs.root_inode, "d");
+        check_entries(img, d, live, true);
+        Testfs.run(img, "fsck");
+
+        // no log: refused, nothing changed
+        img = Testfs.open(Testfs.channel(f), FileChannel.MapMode.READ_WRITE);
+        Testfs.run(img, "rm", "d/f0");
+        d = Libfs.ilookup(img, Libfs.root_inode, "d");
+        size = d.size();
+        Testfs.check(Testfs.exec(img, null, "compactdir", "d") != 0 && Testfs.output.contains("no log"), "compactdir without a log: %s", Testfs.output);
+        Testfs.check(d.size() == size, "compactdir without a log changed d");
+    }
+
+    // checks that dp holds ".", ".." and the names in live (sorted if
+    // sorted), in its first slots, each naming the file it did
+    static void check_entries(Blockdev img, Libfs.inode_t dp, ArrayList<String> live, boolean sorted) {
+        byte[] buf = new byte[dp.size()];
+        Testfs.check(Libfs.iread(img, dp, buf, buf.length, 0) == buf.length, "read error");
+        ArrayList<String> names = new ArrayList<>();
+        for (int off = 2 * DIRENTSIZE; off < buf.length; off += DIRENTSIZE) {
+            Testfs.check(Dindex.decode_inum(buf, off) != 0, "hole at %d", off);
+            names.add(Dindex.decode_name(buf, off));
+        }
+        Testfs.check(Dindex.decode_name(buf, 0).equals(".") && Dindex.decode_name(buf, DIRENTSIZE).equals(".."), "\".\" and \"..\" moved");
+        ArrayList<String> want = new ArrayList<>(live);
+        want.sort(null);
+        ArrayList<String> got = new ArrayList<>(names);
+        got.sort(null);
+        Testfs.check(got.equals(want), "entries %s", names);
+        if (sorted)
+            Testfs.check(names.equals(want), "not sorted: %s", names);
+        for (String name : live) {
+            if (name.startsWith("f")) {
+                byte[] data = Testfs.read(img, "d/" + name);
+                Testfs.check(Arrays.equals(data, name.substring(1).getBytes()), "d/%s: data", name);
+            }
+        }
+    }
+}
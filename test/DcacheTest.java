@@ -0,0 +1,57 @@
+public class DcacheTest implements Filesystem {
+    /* path resolution cache (Dcache)
+     *
+     * Checks the invalidation rules on a cache of its own, then that
+     * ilookup never answers from a stale entry while files and
+     * directories are created, unlinked and moved.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(2000, 200);
+        Libfs.inode_t r = Libfs.root_inode;
+        Libfs.inode_t d = Libfs.icreat(img, r, "d", Libfs.T_DIR, null);
+        Libfs.inode_t f = Libfs.icreat(img, r, "d/f", Libfs.T_FILE, null);
+        Libfs.inode_t e = Libfs.icreat(img, r, "e", Libfs.T_DIR, null);
+
+        Dcache dc = new Dcache(img);
+        String kd = Dcache.key(r, new String[] { "d", "f" }, 1);
+        String kf = Dcache.key(r, new String[] { "d", "f" }, 2);
+        String kg = Dcache.key(r, new String[] { "d", "g" }, 2);
+        Testfs.check(kf.equals(r.inum + "/d/f"), "key %s", kf);
+        long g = dc.gen();
+        dc.put(kd, r, "d", d, g);
+        dc.put(kf, d, "f", f, g);
+        dc.put(kg, d, "g", null, g);
+        Testfs.check(dc.get(kf).ip == f && dc.get(kg).ip == null && dc.get(kg) != null, "put");
+
+        // a new entry drops the negative entries only
+        dc.added();
+        Testfs.check(dc.get(kg) == null && dc.get(kf) != null, "added");
+        // an entry resolved before an invalidation is not cached
+        dc.put(kg, d, "g", null, g);
+        Testfs.check(dc.get(kg) == null, "stale put cached");
+        // a file unlinked drops the paths ending in it
+        dc.removed(d, "f", f);
+        Testfs.check(dc.get(kf) == null && dc.get(kd) != null, "removed file");
+        // a directory unlinked drops every path
+        dc.put(kf, d, "f", f, dc.gen());
+        dc.removed(r, "e", e);
+        Testfs.check(dc.get(kf) == null && dc.get(kd) == null, "removed directory");
+
+        // ilookup through the cache of Libfs
+        for (int i = 0; i < 2; i++) {
+            Testfs.check(Libfs.ilookup(img, r, "d/f") == f, "d/f");
+            Testfs.check(Libfs.ilookup(img, r, "d/g") == null, "d/g");
+        }
+        Libfs.inode_t gp = Libfs.icreat(img, r, "d/g", Libfs.T_FILE, null);
+        Testfs.check(Libfs.ilookup(img, r, "d/g") == gp, "d/g after icreat");
+        Testfs.check(Libfs.iunlink(img, r, "d/f") == 0 && Libfs.ilookup(img, r, "d/f") == null, "d/f after iunlink");
+        Testfs.run(img, "mv", "d", "e/d");
+        Testfs.check(Libfs.ilookup(img, r, "d/g") == null, "d/g after mv");
+        Testfs.check(Libfs.ilookup(img, r, "e/d/g") == gp, "e/d/g after mv");
+        Testfs.check(Libfs.ilookup(img, r, "e/d/..") == e, "e/d/.. after mv");
+        Testfs.run(img, "rm", "e/d/g");
+        Testfs.run(img, "rmdir", "e/d");
+        Testfs.check(Libfs.ilookup(img, r, "e/d") == null && Libfs.ilookup(img, r, "e/d/g") == null, "e/d after rmdir");
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+public class DefragTest implements Filesystem {
+    /* defragmenter (Defrag)
+     *
+     * Two files written a block at a time in turn end up interleaved.
+     * Checks that defrag makes each of them one run (indirect block
+     * first) without changing their data, that the I/O budget stops it,
+     * that -c moves the files down into the space freed before them, and
+     * that the image is consistent, also as read back after a crash.
+     */
+
+    static final int NBLK = 40;     // # of blocks of each file
+
+    public static void main(String[] args) throws Exception {
+        File f = Testfs.mkfs(4000, 200);
+        Blockdev img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Random rnd = new Random(1);
+        byte[][] data = new byte[3][NBLK * BSIZE];
+        Libfs.inode_t[] ips = new Libfs.inode_t[3];
+        for (int k = 0; k < 3; k++) {
+            rnd.nextBytes(data[k]);
+            Testfs.check(Testfs.exec(img, new byte[0], "put", "f" + k) == 0, "put f%d", k);
+            ips[k] = Libfs.ilookup(img, Libfs.root_inode, "f" + k);
+        }
+        // one block of each file in turn
+        for (int i = 0; i < NBLK; i++) {
+            for (int k = 0; k < 3; k++) {
+                Libfs.begin_op(img);
+                try {
+                    Testfs.check(Libfs.iwrite(img, ips[k], Arrays.copyOfRange(data[k], i * BSIZE, (i + 1) * BSIZE),
+                            BSIZE, i * BSIZE) == BSIZE, "f%d: write error", k);
+                } finally {
+                    Libfs.end_op(img);
+                }
+            }
+        }
+        for (int k = 0; k < 3; k++)
+            Testfs.check(!contiguous(img, ips[k]), "f%d not fragmented", k);
+
+        // the budget stops defrag at the first file over it
+        Testfs.run(img, "defrag", "-b", "" + NBLK / 2);
+        Testfs.check(Testfs.output.contains("I/O budget") && !contiguous(img, ips[0]), "budget: %s", Testfs.output);
+
+        Testfs.run(img, "defrag");
+        Testfs.check(Testfs.output.contains("3 fragmented, 3 moved"), "defrag: %s", Testfs.output);
+        check_files(img, data);
+        Testfs.run(img, "fsck");
+
+        // after a crash the moves are there
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        check_files(img, data);
+        Testfs.run(img, "fsck");
+
+        // -c: with f0 gone, f1 and f2 move down in its place
+        int top = Libfs.blkmap(img, Libfs.ilookup(img, Libfs.root_inode, "f2"))[NBLK - 1];
+        Testfs.run(img, "rm", "f0");
+        Testfs.run(img, "defrag", "-c");
+        Testfs.check(Libfs.blkmap(img, Libfs.ilookup(img, Libfs.root_inode, "f2"))[NBLK - 1] < top, "-c did not move f2 down");
+        data[0] = null;
+        check_files(img, data);
+        Testfs.run(img, "fsck");
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        check_files(img, data);
+        Testfs.run(img, "fsck");
+    }
+
+    // checks that the files fk hold data[k] in one run each
+    static void check_files(Blockdev img, byte[][] data) {
+        for (int k = 0; k < data.length; k++) {
+            if (data[k] == null)
+                continue;
+            Testfs.check(Arrays.equals(Testfs.read(img, "f" + k), data[k]), "f%d: data changed", k);
+            Testfs.check(contiguous(img, Libfs.ilookup(img, Libfs.root_inode, "f" + k)), "f%d: fragmented", k);
+        }
+    }
+
+    // checks if the file ip fills one run: its indirect block, then its
+    // data blocks in order
+    static boolean contiguous(Blockdev img, Libfs.inode_t ip) {
+        int[] m = Libfs.blkmap(img, ip);
+        if (ip.addr(NDIRECT) != m[0] - 1)
+            return false;
+        for (int i = 1; i < NBLK; i++)
+            if (m[i] != m[0] + i)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.HashMap;
+
+public class DindexTest implements Filesystem {
+    /* directory index (Dindex)
+     *
+     * Checks an index built from a dirent array, its updates, and that
+     * the index Libfs keeps for a directory agrees with the directory in
+     * the image after many entries came and went.
+     */
+
+    public static void main(String[] args) throws Exception {
+        // ".", "..", a hole, "a", a hole, a long name
+        byte[] buf = new byte[6 * DIRENTSIZE];
+        put(buf, 0, 1, ".");
+        put(buf, 1, 1, "..");
+        put(buf, 3, 5, "a");
+        put(buf, 5, 6, "a_name_longer_than_dirsiz");
+        Dindex dx = new Dindex(buf, buf.length);
+        Testfs.check(dx.count() == 4, "count %d, expected 4", dx.count());
+        Testfs.check(dx.get("a").inum == 5 && dx.get("a").off == 3 * DIRENTSIZE, "a");
+        Testfs.check(dx.get("b") == null, "b found");
+        Testfs.check(dx.get("a_name_longer_than_dirsiz").inum == 6
+                && dx.get("a_name_longer_").inum == 6, "names compare as DIRSIZ characters");
+        Testfs.check(dx.slot(buf.length) == 2 * DIRENTSIZE, "first hole");
+        Testfs.check(dx.end(buf.length) == buf.length, "end");
+
+        dx.add("b", 7, 2 * DIRENTSIZE);
+        Testfs.check(dx.slot(buf.length) == 4 * DIRENTSIZE && dx.get("b").inum == 7, "add fills the hole");
+        dx.remove("a_name_longer_than_dirsiz");
+        Testfs.check(dx.end(buf.length) == 4 * DIRENTSIZE, "end after removing the last entry");
+        dx.swap(3 * DIRENTSIZE, "a", 4 * DIRENTSIZE, null);
+        Testfs.check(dx.get("a").off == 4 * DIRENTSIZE && dx.slot(buf.length) == 3 * DIRENTSIZE, "swap with a hole");
+        dx.swap(2 * DIRENTSIZE, "b", 4 * DIRENTSIZE, "a");
+        Testfs.check(dx.get("a").off == 2 * DIRENTSIZE && dx.get("b").off == 4 * DIRENTSIZE, "swap of two entries");
+        dx.truncate(3 * DIRENTSIZE);
+        Testfs.check(dx.slot(3 * DIRENTSIZE) == 3 * DIRENTSIZE, "no hole left after truncate");
+
+        // a directory of the image, after creates and unlinks
+        Blockdev img = Testfs.open(4000, 1000);
+        Libfs.inode_t d = Libfs.icreat(img, Libfs.root_inode, "d", Libfs.T_DIR, null);
+        for (int i = 0; i < 600; i++)
+            Testfs.check(Libfs.icreat(img, d, "f" + i, Libfs.T_FILE, null) != null, "icreat f%d", i);
+        for (int i = 0; i < 600; i += 3)
+            Testfs.check(Libfs.iunlink(img, d, "f" + i) == 0, "iunlink f%d", i);
+        int size = d.size();
+        for (int i = 0; i < 600; i += 3)
+            Testfs.check(Libfs.icreat(img, d, "g" + i, Libfs.T_FILE, null) != null, "icreat g%d", i);
+        Testfs.check(d.size() == size, "holes not reused: size %d, was %d", d.size(), size);
+
+        HashMap<String, Integer> ents = scan(img, d);
+        Testfs.check(ents.size() == 602, "%d entries in the image, expected 602", ents.size());
+        for (String name : ents.keySet())
+            Testfs.check(Libfs.dlookup(img, d, name, null) == Libfs.iget(img, ents.get(name)), "dlookup %s", name);
+        Testfs.check(Libfs.dlookup(img, d, "f0", null) == null, "f0 found after iunlink");
+        Testfs.check(Libfs.dindex(img, d).count() == 602, "index count %d", Libfs.dindex(img, d).count());
+    }
+
+    static void put(byte[] buf, int slot, int inum, String name) {
+        System.arraycopy(Dindex.encode(inum, name), 0, buf, slot * DIRENTSIZE, DIRENTSIZE);
+    }
+
+    // the entries of the directory dp as read from the image
+    static HashMap<String, Integer> scan(Blockdev img, Libfs.inode_t dp) {
+        byte[] buf = new byte[dp.size()];
+        Testfs.check(Libfs.iread(img, dp, buf, buf.length, 0) == buf.length, "read error");
+        HashMap<String, Integer> ents = new HashMap<>();
+        for (int off = 0; off < buf.length; off += DIRENTSIZE)
+            if (Dindex.decode_inum(buf, off) != 0)
+                ents.put(Dindex.decode_name(buf, off), Dindex.decode_inum(buf, off));
+        return ents;
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+public class DiskstatsTest implements Filesystem {
+    /* diskinfo statistics (Diskstats)
+     *
+     * Fills an image with more inodes than one task scans (SPLIT) and
+     * checks that the counts collected in parallel, and the lines
+     * diskinfo prints, are those of a plain walk of the inode table and
+     * of the bitmap one bit at a time, as files, directories and devices
+     * are made and removed.
+     */
+
+    public static void main(String[] args) throws Exception {
+        int ninodes = 3 * Diskstats.SPLIT;
+        Blockdev img = Testfs.open(20000, ninodes);
+        check(img);
+
+        Random rnd = new Random(1);
+        byte[] data = new byte[3 * BSIZE];
+        int top = 0;    // largest inode number in use
+        for (int i = 0; i < 40; i++) {
+            String d = "d" + i;
+            Testfs.run(img, "mkdir", d);
+            for (int j = 0; j < 110; j++) {
+                String path = d + "/" + j;
+                switch (rnd.nextInt(4)) {
+                    case 0:
+                        Testfs.run(img, "mkdir", path);
+                        break;
+                    case 1:
+                        Testfs.check(Libfs.icreat(img, Libfs.root_inode, path, Libfs.T_DEV, null) != null, "mknod %s", path);
+                        break;
+                    default:
+                        Testfs.check(Testfs.exec(img, data, "put", path) == 0, "put %s", path);
+                }
+                top = Math.max(top, Libfs.ilookup(img, Libfs.root_inode, path).inum);
+            }
+        }
+        Testfs.check(top >= Diskstats.SPLIT, "the inodes in use fit in one task: up to %d", top);
+        check(img);
+        for (int i = 0; i < 40; i += 3)
+            for (int j = 0; j < 110; j++) {
+                String path = "d" + i + "/" + j;
+                Testfs.run(img, Libfs.ilookup(img, Libfs.root_inode, path).type() == Libfs.T_DIR ? "rmdir" : "rm", path);
+            }
+        check(img);
+        Testfs.run(img, "fsck");
+    }
+
+    // checks the statistics of img against a plain count
+    static void check(Blockdev img) {
+        Superblock sb = Libfs.SBLK(img);
+        int[] ntype = new int[4];
+        for (int i = 0; i < sb.ninodeblks * IPB; i++)
+            ntype[img.getShort((long)sb.inodestart * BSIZE + (long)i * DINODESIZE)]++;
+        long nused = 0;
+        for (long b = 0; b < (long)sb.nbmapblks * BPB; b++)
+            if ((img.get((long)sb.bmapstart * BSIZE + b / 8) & 1 << b % 8) != 0)
+                nused++;
+
+        Diskstats st = Diskstats.collect(img);
+        Testfs.check(st.ndirs == ntype[Libfs.T_DIR] && st.nfiles == ntype[Libfs.T_FILE] && st.ndevs == ntype[Libfs.T_DEV],
+                "dirs %d, files %d, devs %d; expected %d, %d, %d", st.ndirs, st.nfiles, st.ndevs,
+                ntype[Libfs.T_DIR], ntype[Libfs.T_FILE], ntype[Libfs.T_DEV]);
+        Testfs.check(st.nused == nused, "used blocks %d, expected %d", st.nused, nused);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        st.print(new PrintStream(text, true));
+        // but for the cache counters of Chandev, which go on counting
+        String cache = "(?m)^buffer cache: .*\n";
+        Testfs.check(Testfs.run(img, "diskinfo").replaceAll(cache, "").equals(text.toString().replaceAll(cache, "")),
+                "diskinfo: %s", Testfs.output);
+        int n = ntype[Libfs.T_DIR] + ntype[Libfs.T_FILE] + ntype[Libfs.T_DEV];
+        String[] lines = {
+            "# of used blocks: " + nused + "\n",
+            "# of used inodes: " + n + " (dirs: " + ntype[Libfs.T_DIR] + ", files: " + ntype[Libfs.T_FILE] + ", devs: " + ntype[Libfs.T_DEV] + ")\n",
+            "total blocks: " + sb.size + "(",
+            "data blocks: #" + sb.datastart + "-#" + (sb.size - 1) + " (" + sb.nblocks + " blocks)\n",
+        };
+        for (String line : lines)
+            Testfs.check(Testfs.output.contains(line), "no \"%s\" in: %s", line, Testfs.output);
+    }
+}
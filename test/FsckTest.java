@@ -0,0 +1,87 @@
+import java.io.File;
+
+public class FsckTest implements Filesystem {
+    /* consistency checker (Fsck)
+     *
+     * Damages a populated image one way at a time, behind the back of
+     * Libfs, and checks that fsck reports the damage, that fsck -r
+     * repairs it (or, for a block claimed twice, only reports it) and
+     * that fsck finds nothing after. Runs once on a shared image and once
+     * with a log, where the repaired image is also the one read back
+     * from the file after a crash.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(4000, 400);
+        populate(img);
+        damage(img);
+
+        File f = Testfs.mkfs(4000, 400);
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        populate(img);
+        damage(img);
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Testfs.run(img, "fsck");
+    }
+
+    static void populate(Blockdev img) {
+        Testfs.run(img, "mkdir", "d");
+        Testfs.run(img, "mkdir", "d/e");
+        Testfs.exec(img, new byte[20000], "put", "x");
+        Testfs.exec(img, new byte[3000], "put", "d/y");
+        Testfs.run(img, "fsck");
+    }
+
+    static void damage(Blockdev img) {
+        Libfs.inode_t r = Libfs.root_inode;
+        Libfs.inode_t d = Libfs.ilookup(img, r, "d");
+        Libfs.inode_t e = Libfs.ilookup(img, r, "d/e");
+        Libfs.inode_t x = Libfs.ilookup(img, r, "x");
+        Libfs.inode_t y = Libfs.ilookup(img, r, "d/y");
+        Superblock sb = Libfs.SBLK(img);
+
+        repaired(img, "inode " + x.inum + ": nlink 5, expected 1",
+                () -> img.putShort(x.off + 6, (short)5));
+        int b = x.addr(0);
+        long word = (long)sb.bmapstart * BSIZE + b / 8;
+        repaired(img, "block " + b + ": used but marked free",
+                () -> img.put(word, (byte)(img.get(word) & ~(1 << b % 8))));
+        Libfs.inode_t o = Libfs.iget(img, 150);
+        repaired(img, "inode 150: not referenced", () -> {
+            img.putShort(o.off, (short)Libfs.T_FILE);
+            img.putShort(o.off + 6, (short)1);
+        });
+        int[] off = new int[1];
+        Libfs.dlookup(img, e, "..", off);
+        long dotdot = (long)Libfs.iblock(img, e, 0) * BSIZE + off[0];
+        repaired(img, "directory " + e.inum + ": \"..\" is 1, expected " + d.inum,
+                () -> img.putShort(dotdot, (short)ROOTINO));
+        long slot = (long)Libfs.iblock(img, r, 0) * BSIZE + r.size();
+        repaired(img, "free or invalid inode 160", () -> {
+            img.put(slot, Dindex.encode(160, "ghost"), 0, DIRENTSIZE);
+            img.putInt(r.off + 8, r.size() + DIRENTSIZE);
+        });
+
+        // a block claimed twice is reported, not repaired
+        int yb = y.addr(0);
+        img.putInt(y.addrpos(0), b);
+        Libfs.reload(img);
+        Testfs.check(Testfs.exec(img, null, "fsck", "-r") != 0
+                && Testfs.output.contains("block " + b + ": claimed by more than one inode"), "duplicate claim: %s", Testfs.output);
+        img.putInt(y.addrpos(0), yb);
+        Libfs.reload(img);
+        Testfs.exec(img, null, "fsck", "-r"); // the bitmap bit of yb
+        Testfs.run(img, "fsck");
+    }
+
+    // damages the image and checks that fsck reports it as msg and that
+    // fsck -r repairs it
+    static void repaired(Blockdev img, String msg, Runnable damage) {
+        damage.run();
+        Libfs.reload(img);
+        Testfs.check(Testfs.exec(img, null, "fsck") != 0 && Testfs.output.contains(msg),
+                "fsck did not report \"%s\": %s", msg, Testfs.output);
+        Testfs.run(img, "fsck", "-r");
+        Testfs.run(img, "fsck");
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class GetTest implements Filesystem {
+    /* get (Libfs.isend), which writes the runs of a file as slices of
+     * the image
+     *
+     * Checks that get writes exactly the data of files of every size up
+     * to MAXFILESIZE, laid out in one run or in runs of one block, to a
+     * stream and to a file channel, and through the opfs program to a
+     * redirected stdout; and that a missing file is an error.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(4000, 200);
+        Random rnd = new Random(1);
+        int[] sizes = { 0, 1, BSIZE - 1, BSIZE, 5 * BSIZE + 7, NDIRECT * BSIZE, (NDIRECT + 1) * BSIZE + 1, Libfs.MAXFILESIZE };
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+
+            // contiguous: put
+            String path = "c" + size;
+            Testfs.check(Testfs.exec(img, data, "put", path) == 0, "put %s: %s", path, Testfs.output);
+            check_get(img, path, data);
+
+            // fragmented: a block at a time, each followed by a block of
+            // another file
+            path = "f" + size;
+            Libfs.inode_t ip = Libfs.icreat(img, Libfs.root_inode, path, Libfs.T_FILE, null);
+            Libfs.inode_t sp = Libfs.icreat(img, Libfs.root_inode, "spacer", Libfs.T_FILE, null);
+            for (int off = 0; off < size; off += BSIZE) {
+                int n = Math.min(BSIZE, size - off);
+                Testfs.check(Libfs.iwrite(img, ip, Arrays.copyOfRange(data, off, off + n), n, off) == n, "write error");
+                Testfs.check(Libfs.iwrite(img, sp, data, 1, sp.size()) == 1, "write error");
+            }
+            if (size > BSIZE) {
+                int[] m = Libfs.blkmap(img, ip);
+                Testfs.check(m[1] != m[0] + 1, "%s: not fragmented", path);
+            }
+            check_get(img, path, data);
+            Testfs.run(img, "rm", "spacer");
+        }
+        Testfs.check(Testfs.exec(img, null, "get", "nosuch") != 0, "get nosuch");
+        Testfs.run(img, "fsck");
+
+        // the opfs program, stdout redirected to a file
+        File f = Testfs.mkfs(4000, 200);
+        byte[] data = new byte[Libfs.MAXFILESIZE];
+        rnd.nextBytes(data);
+        Testfs.check(Testfs.opfs(f, data, new String[0], "put", "x") == 0, "opfs put x: %s", Testfs.errors);
+        File out = File.createTempFile("opfs", ".out");
+        try {
+            Process p = Testfs.opfs_cmd(f, new String[0], "get", "x").redirectOutput(out).start();
+            Testfs.check(p.waitFor() == 0, "opfs get x > out");
+            Testfs.check(Arrays.equals(Files.readAllBytes(out.toPath()), data), "opfs get x > out: data");
+        } finally {
+            out.delete();
+        }
+    }
+
+    // checks that get path writes data, to a stream and to a file
+    // channel after what is in it
+    static void check_get(Blockdev img, String path, byte[] data) throws Exception {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(new ByteArrayOutputStream(), true);
+        int status = Opfs.exec_redirected(img, "get", new String[] { path }, null, Channels.newChannel(text), err, err);
+        Testfs.check(status == 0 && Arrays.equals(text.toByteArray(), data), "get %s: %d bytes, expected %d", path, text.size(), data.length);
+
+        File f = File.createTempFile("opfs", ".out");
+        try (FileChannel ch = Testfs.channel(f)) {
+            ch.write(ByteBuffer.wrap("abc".getBytes()));
+            status = Opfs.exec_redirected(img, "get", new String[] { path }, null, ch, err, err);
+            byte[] buf = Files.readAllBytes(f.toPath());
+            Testfs.check(status == 0 && buf.length == data.length + 3 && Arrays.equals(Arrays.copyOfRange(buf, 3, buf.length), data),
+                    "get %s > file: %d bytes, expected %d", path, buf.length - 3, data.length);
+        } finally {
+            f.delete();
+        }
+    }
+}
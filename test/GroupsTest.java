@@ -0,0 +1,80 @@
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class GroupsTest implements Filesystem {
+    /* block groups (Groups)
+     *
+     * Checks that new directories under the root spread over the groups,
+     * that the inodes of what is made in a directory and the first block
+     * of each file go to the group of the directory, the other blocks
+     * after it; that a full group spills over into the next; and that an
+     * image of one group allocates lowest first, as xv6 does.
+     */
+
+    public static void main(String[] args) throws Exception {
+        // 5 full groups
+        int ngroups = 5, ninodes = 400;
+        int size = ngroups * Groups.BPG;
+        size += 2 + Testfs.NLOG + ninodes / IPB + 1 + size / BPB + 1;
+        Blockdev img = Testfs.open(size, ninodes);
+        Superblock sb = Libfs.SBLK(img);
+        Groups gr = Libfs.groups(img);
+        Testfs.check(gr.ngroups == ngroups && gr.bstart(ngroups) == size, "%d groups", gr.ngroups);
+        Testfs.check(gr.ipg * gr.ngroups >= sb.ninodes && gr.bstart(0) == sb.datastart, "group geometry");
+
+        // top-level directories: a group each
+        HashSet<Integer> seen = new HashSet<>();
+        byte[] data = new byte[20 * BSIZE];
+        for (int i = 0; i < gr.ngroups; i++) {
+            Libfs.inode_t d = Libfs.icreat(img, Libfs.root_inode, "d" + i, Libfs.T_DIR, null);
+            int g = gr.igroup(d.inum);
+            Testfs.check(seen.add(g), "d%d: in group %d again", i, g);
+            Testfs.check(bgroup(gr, d.addr(0)) == g, "d%d: inode in group %d, block in group %d", i, g, bgroup(gr, d.addr(0)));
+            // what is made in it goes to its group
+            Testfs.check(Testfs.exec(img, data, "put", "d" + i + "/f") == 0, "put d%d/f", i);
+            Libfs.inode_t f = Libfs.ilookup(img, Libfs.root_inode, "d" + i + "/f");
+            Testfs.check(gr.igroup(f.inum) == g && bgroup(gr, f.addr(0)) == g, "d%d/f: not in group %d", i, g);
+            for (int k = 1; k < 20; k++)
+                Testfs.check(Libfs.iblock(img, f, k) == Libfs.iblock(img, f, k - 1) + 1, "d%d/f: block %d", i, k);
+            Libfs.inode_t e = Libfs.icreat(img, Libfs.root_inode, "d" + i + "/e", Libfs.T_DIR, null);
+            Testfs.check(gr.igroup(e.inum) == g && bgroup(gr, e.addr(0)) == g, "d%d/e: not in group %d", i, g);
+        }
+
+        // a full group: inodes and blocks go on in the next one
+        Libfs.inode_t d = Libfs.ilookup(img, Libfs.root_inode, "d0");
+        int g = gr.igroup(d.inum);
+        int nfiles = gr.ipg;
+        for (int i = 0; i < nfiles; i++)
+            Testfs.check(Libfs.icreat(img, Libfs.root_inode, "d0/n" + i, Libfs.T_FILE, null) != null, "d0/n%d", i);
+        Testfs.check(gr.igroup(Libfs.ilookup(img, Libfs.root_inode, "d0/n" + (nfiles - 1)).inum) != g, "more inodes than a group in group %d", g);
+        Bitmap bm = Libfs.bitmap(img);
+        int n = bm.nfree(gr.bstart(g), gr.bstart(g + 1));
+        byte[] big = new byte[Libfs.MAXFILESIZE];
+        Arrays.fill(big, (byte)1);
+        for (int i = 0; i * MAXFILE < n + MAXFILE; i++)
+            Testfs.check(Testfs.exec(img, big, "put", "d0/n" + i) == 0, "put d0/n%d", i);
+        // what is left of the group is shorter than a file
+        Testfs.check(bm.nfree(gr.bstart(g), gr.bstart(g + 1)) <= MAXFILE, "group %d not full", g);
+        Libfs.inode_t last = Libfs.ilookup(img, Libfs.root_inode, "d0/n" + (n / MAXFILE));
+        Testfs.check(gr.igroup(last.inum) == g && bgroup(gr, last.addr(0)) != g, "d0/n%d: in group %d", n / MAXFILE, g);
+        for (int i = 0; i * MAXFILE < n + MAXFILE; i++)
+            Testfs.check(Arrays.equals(Testfs.read(img, "d0/n" + i), big), "d0/n%d: data", i);
+        Testfs.run(img, "fsck");
+
+        // one group: lowest first
+        img = Testfs.open(2000, 200);
+        Testfs.check(Libfs.groups(img).ngroups == 1, "groups in a small image");
+        sb = Libfs.SBLK(img);
+        for (int i = 0; i < 5; i++) {
+            Libfs.inode_t f = Libfs.icreat(img, Libfs.root_inode, "f" + i, Libfs.T_FILE, null);
+            Testfs.check(Libfs.iwrite(img, f, data, BSIZE, 0) == BSIZE, "write error");
+            Testfs.check(f.inum == i + 2 && f.addr(0) == sb.datastart + 1 + i, "f%d: inode %d, block %d", i, f.inum, f.addr(0));
+        }
+        Testfs.run(img, "fsck");
+    }
+
+    // block group of the block b
+    static int bgroup(Groups gr, int b) {
+        return Math.min((b - gr.bstart(0)) / Groups.BPG, gr.ngroups - 1);
+    }
+}
@@ -0,0 +1,63 @@
+public class ItableTest implements Filesystem {
+    /* inode table index (Itable) and inode handles
+     *
+     * Checks that there is one handle per inode, that handles read and
+     * write the dinode in the image, that allocation takes the lowest
+     * free inode and that the free set follows icreat and iunlink.
+     */
+
+    public static void main(String[] args) throws Exception {
+        int ninodes = 200;
+        Blockdev img = Testfs.open(2000, ninodes);
+        Itable it = Libfs.itable(img);
+        Testfs.check(it.nfree() == ninodes - 2, "nfree %d, expected %d", it.nfree(), ninodes - 2);
+
+        // one handle per inode, mapped back to its number without a search
+        Libfs.inode_t ip = Libfs.iget(img, 7);
+        Testfs.check(ip == Libfs.iget(img, 7) && ip == it.get(7), "two handles for inode 7");
+        Testfs.check(Libfs.geti(img, ip) == 7 && ip.off == it.offset(7), "geti");
+
+        // handles are views of the dinode in the image
+        ip.set_size(12345);
+        Testfs.check(img.getInt(it.offset(7) + 8) == 12345, "set_size did not reach the image");
+        img.putShort(it.offset(7) + 6, (short)3);
+        Testfs.check(ip.nlink() == 3, "nlink %d, expected 3 from the image", ip.nlink());
+        ip.set_size(0);
+        ip.set_nlink(0);
+
+        // lowest free first, freed inodes are taken again
+        Testfs.check(it.alloc() == 2 && it.alloc() == 3 && it.alloc() == 4, "alloc: 2, 3, 4");
+        it.free(3);
+        Testfs.check(it.alloc() == 3, "alloc after free(3)");
+        Testfs.check(it.alloc(100) == 100, "alloc from 100");
+        it.free(2);
+        it.free(3);
+        it.free(4);
+        it.free(100);
+        it.free(100);
+        Testfs.check(it.nfree() == ninodes - 2, "nfree after double free: %d", it.nfree());
+        for (int i = 2; i < ninodes; i++)
+            Testfs.check(it.alloc() == i, "alloc %d", i);
+        Testfs.check(it.alloc() == 0 && it.nfree() == 0, "alloc on a full table");
+        for (int i = 2; i < ninodes; i++)
+            it.free(i);
+
+        // icreat and iunlink keep the free set and the dinodes in step
+        Libfs.inode_t d = Libfs.icreat(img, Libfs.root_inode, "d", Libfs.T_DIR, null);
+        Libfs.inode_t f = Libfs.icreat(img, Libfs.root_inode, "d/f", Libfs.T_FILE, null);
+        Testfs.check(d != null && f != null && d.type() == Libfs.T_DIR && f.type() == Libfs.T_FILE, "icreat");
+        Testfs.check(it.nfree() == ninodes - 4, "nfree after 2 icreat: %d", it.nfree());
+        int finum = f.inum;
+        Testfs.check(Libfs.iunlink(img, Libfs.root_inode, "d/f") == 0, "iunlink");
+        Testfs.check(f.type() == 0 && it.nfree() == ninodes - 3, "iunlink did not free the inode");
+        Testfs.check(Libfs.icreat(img, Libfs.root_inode, "g", Libfs.T_FILE, null).inum == finum,
+                "the freed inode is not taken again");
+
+        // a table built from the image agrees
+        int nfree = it.nfree();
+        Libfs.itable = null;
+        Itable again = Libfs.itable(img);
+        Testfs.check(again.nfree() == nfree, "rebuilt nfree %d, expected %d", again.nfree(), nfree);
+        Testfs.check(again.get(d.inum).type() == Libfs.T_DIR, "rebuilt handle");
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+public class JournalTest implements Filesystem {
+    /* redo log (Journal)
+     *
+     * A crash is an image dropped without close: with the image mapped
+     * privately nothing but the commits reached the file. Checks that
+     *   - a crash keeps what was committed and loses the rest
+     *   - recover replays a committed transaction left in the log, once
+     *   - recover refuses a header that is too long or names a block in
+     *     front of the data, and leaves the image alone
+     *   - a freed block is given back to the Bitmap by the commit only
+     *   - a transaction that would go over the log is rolled back, and
+     *     what was looked up in it is looked up again after
+     * and that fsck finds the image consistent after each of them.
+     */
+
+    public static void main(String[] args) throws Exception {
+        File f = Testfs.mkfs(4000, 400);
+        byte[] data = new byte[30000];
+        new Random(1).nextBytes(data);
+
+        // committed or not
+        Blockdev img = Testfs.open_logged(f, Journal.SYNC_MANUAL);
+        Testfs.run(img, "mkdir", "a");
+        Testfs.exec(img, data, "put", "a/x");
+        Testfs.run(img, "sync");
+        // small enough not to fill the cache of Chandev, which would
+        // make the changes due (must_flush)
+        Testfs.run(img, "mkdir", "b");
+        Testfs.exec(img, Arrays.copyOf(data, 2000), "put", "a/y");
+        img = Testfs.open_logged(f, Journal.SYNC_MANUAL);
+        Testfs.check(Arrays.equals(Testfs.read(img, "a/x"), data), "a/x lost in the crash");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "b") == null
+                && Libfs.ilookup(img, Libfs.root_inode, "a/y") == null, "changes after the sync survived the crash");
+        Testfs.run(img, "fsck");
+
+        // replay: the log holds a link "z" to a/x, committed but not
+        // installed; recover installs it
+        Superblock sb = Libfs.SBLK(img);
+        Libfs.inode_t x = Libfs.ilookup(img, Libfs.root_inode, "a/x");
+        Libfs.inode_t r = Libfs.root_inode;
+        int dblk = Libfs.iblock(img, r, 0), iblk = (int)(x.off / BSIZE);
+        ByteBuffer dir = block(img, dblk), ino = block(img, iblk);
+        dir.put(r.size(), Dindex.encode(x.inum, "z"));
+        ino.putInt((int)(r.off % BSIZE) + 8, r.size() + DIRENTSIZE);
+        ino.putShort((int)(x.off % BSIZE) + 6, (short)(x.nlink() + 1));
+        FileChannel ch = Testfs.channel(f);
+        write(ch, dir, sb.logstart + 1);
+        write(ch, ino, sb.logstart + 2);
+        write(ch, header(2, dblk, iblk), sb.logstart);
+        Testfs.check(Journal.pending(ch), "no transaction pending");
+        Journal.recover(ch);
+        Testfs.check(!Journal.pending(ch), "header not cleared by recover");
+        Journal.recover(ch);
+        img = Testfs.open_logged(f, Journal.SYNC_MANUAL);
+        x = Libfs.ilookup(img, Libfs.root_inode, "a/x");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "z") == x && x.nlink() == 2, "z not replayed");
+        Testfs.run(img, "fsck");
+
+        // corrupt headers are refused
+        byte[] before = contents(ch);
+        corrupt(ch, sb, header(Journal.capacity(sb) + 1), "too many blocks");
+        corrupt(ch, sb, header(1, 0), "the boot block");
+        corrupt(ch, sb, header(1, sb.logstart + 1), "a log block");
+        corrupt(ch, sb, header(2, sb.datastart, sb.size), "a block past the image");
+        write(ch, ByteBuffer.allocate(BSIZE), sb.logstart);
+        Testfs.check(Arrays.equals(contents(ch), before), "a refused header changed the image");
+
+        // deferred frees
+        img = Testfs.open_logged(f, Journal.SYNC_MANUAL);
+        Bitmap bm = Libfs.bitmap(img);
+        int nfree = bm.nfree();
+        int b0 = Libfs.blkmap(img, Libfs.ilookup(img, Libfs.root_inode, "a/x"))[0];
+        Testfs.run(img, "rm", "z");
+        Testfs.run(img, "rm", "a/x");
+        Testfs.check(Libfs.bitmap(img).nfree() == nfree, "blocks free before the commit");
+        Testfs.exec(img, data, "put", "a/w");
+        Testfs.check(Libfs.blkmap(img, Libfs.ilookup(img, Libfs.root_inode, "a/w"))[0] != b0,
+                "a block freed by the transaction was handed out again");
+        Testfs.run(img, "sync");
+        Testfs.check(Libfs.bitmap(img).nfree() == nfree, "nfree %d after the commit, expected %d",
+                Libfs.bitmap(img).nfree(), nfree);
+        Testfs.run(img, "fsck");
+
+        // a transaction over the log is rolled back: 8 inodes per block,
+        // so 8 * capacity files write more inode blocks than the log holds
+        img = Testfs.open_logged(f, Journal.SYNC_MANUAL);
+        nfree = Libfs.bitmap(img).nfree();
+        int ifree = Libfs.itable(img).nfree();
+        boolean failed = false, missing = false;
+        Libfs.cmd_stderr.set(new PrintStream(OutputStream.nullOutputStream())); // the FATAL expected
+        Libfs.begin_op(img);
+        try {
+            Testfs.check(Libfs.iunlink(img, Libfs.root_inode, "a/w") == 0, "rm a/w");
+            for (int i = 0; i < IPB * Journal.capacity(sb); i++)
+                Libfs.icreat(img, Libfs.root_inode, "a/f" + i, Libfs.T_FILE, null);
+        } catch (Libfs.fatal_exception e) {
+            failed = true;
+            // looked up in the failed operation: cached as missing
+            missing = Libfs.ilookup(img, Libfs.root_inode, "a/w") == null;
+            Libfs.fail_op(img);
+        } finally {
+            Libfs.end_op(img);
+            Libfs.cmd_stderr.remove();
+        }
+        Testfs.check(failed && Libfs.rollbacks(img) == 1, "the transaction did not fail");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "a/f0") == null, "a/f0 left after the rollback");
+        Testfs.check(missing && Libfs.ilookup(img, Libfs.root_inode, "a/w") != null, "a/w not found after the rollback");
+        Testfs.check(Arrays.equals(Testfs.read(img, "a/w"), data), "a/w changed by the rollback");
+        Testfs.check(Libfs.bitmap(img).nfree() == nfree && Libfs.itable(img).nfree() == ifree,
+                "indices not reloaded after the rollback");
+        Testfs.run(img, "fsck");
+        Testfs.run(img, "mkdir", "c");
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "c") == null, "mkdir c committed in manual mode");
+        Testfs.run(img, "mkdir", "c");
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "c") != null, "mkdir c not committed");
+        Testfs.run(img, "fsck");
+    }
+
+    // a copy of the block b of the image
+    static ByteBuffer block(Blockdev img, int b) {
+        byte[] buf = new byte[BSIZE];
+        img.get((long)b * BSIZE, buf, 0, BSIZE);
+        return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // a log header: n, then the block numbers
+    static ByteBuffer header(int n, int... blocks) {
+        ByteBuffer h = ByteBuffer.allocate(BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(0, n);
+        for (int i = 0; i < blocks.length; i++)
+            h.putInt(SIZEOFINT * (i + 1), blocks[i]);
+        return h;
+    }
+
+    static void write(FileChannel ch, ByteBuffer buf, int b) throws IOException {
+        buf.clear();
+        for (long pos = (long)b * BSIZE; buf.hasRemaining(); )
+            pos += ch.write(buf, pos);
+        ch.force(false);
+    }
+
+    // writes head and checks that recover refuses it
+    static void corrupt(FileChannel ch, Superblock sb, ByteBuffer head, String what) throws IOException {
+        write(ch, head, sb.logstart);
+        try {
+            Journal.recover(ch);
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("recover replayed a header naming " + what);
+    }
+
+    // the whole image file
+    static byte[] contents(FileChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int)ch.size());
+        for (long pos = 0; buf.hasRemaining(); )
+            pos += ch.read(buf, pos);
+        return buf.array();
+    }
+}
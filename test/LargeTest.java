@@ -0,0 +1,163 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LargeTest implements Filesystem {
+    /* images larger than 2 GiB (the windows of Memdev and Mmapdev, long
+     * offsets everywhere)
+     *
+     * On sparse files of 2 GiB and a bit, checks that the fields and the
+     * byte ranges on both sides of the 1 GiB and 2 GiB boundaries read
+     * back what was written, through the device and through the file
+     * after force, and that a range crossing a boundary is split there;
+     * then that a file whose blocks all lie past 2 GiB is written, logged,
+     * replayed after a crash, read and freed.
+     *
+     * Memdev needs the whole image on the heap: with a smaller heap than
+     * that, dev=mem checks the windows of Memdev through Mmapdev, which
+     * maps the file in the same windows.
+     */
+
+    static final long W = Memdev.WINDOW;
+    static final long SIZE = 2 * W + (64 << 20);   // bytes: 3 windows
+
+    public static void main(String[] args) throws Exception {
+        fs();
+        dev();
+    }
+
+    // a file laid out past 2 GiB
+    static void fs() throws Exception {
+        File f = Testfs.mkfs((int)(SIZE / BSIZE), 200);
+        int first = (int)(2 * W / BSIZE);  // 1st block past 2 GiB
+        try (FileChannel ch = Testfs.channel(f)) {
+            // the data blocks before 2 GiB are used
+            Superblock sb = Superblock.read(ch.map(FileChannel.MapMode.READ_ONLY, 0, 2 * BSIZE).order(ByteOrder.LITTLE_ENDIAN));
+            ByteBuffer bm = ByteBuffer.allocate(sb.nbmapblks * BSIZE);
+            ch.read(bm, (long)sb.bmapstart * BSIZE);
+            for (int b = sb.datastart + 1; b < first; b++)
+                bm.put(b / 8, (byte)(bm.get(b / 8) | 1 << b % 8));
+            ch.write(bm.clear(), (long)sb.bmapstart * BSIZE);
+        }
+
+        byte[] data = new byte[Libfs.MAXFILESIZE];
+        new Random(1).nextBytes(data);
+        Blockdev img = open_logged(f);
+        int nfree = Libfs.bitmap(img).nfree();
+        Testfs.exec(img, data, "put", "x");
+        Testfs.run(img, "mkdir", "d");
+        Testfs.exec(img, "y".getBytes(), "put", "d/y");
+        Libfs.inode_t x = Libfs.ilookup(img, Libfs.root_inode, "x");
+        Testfs.check(x.addr(NDIRECT) >= first, "x: indirect block %d before 2 GiB", x.addr(NDIRECT));
+        for (int i = 0; i < MAXFILE; i++)
+            Testfs.check(Libfs.iblock(img, x, i) >= first, "x: block %d at %d, before 2 GiB", i, Libfs.iblock(img, x, i));
+
+        // after a crash: what the log put in place past 2 GiB
+        img = open_logged(f);
+        Testfs.check(Arrays.equals(Testfs.read(img, "x"), data), "x: data");
+        Testfs.check(Arrays.equals(Testfs.read(img, "d/y"), "y".getBytes()), "d/y: data");
+        Testfs.check(Testfs.run(img, "diskinfo").contains("total blocks: " + SIZE / BSIZE + "(" + SIZE + "bytes)"), "diskinfo: %s", Testfs.output);
+        Testfs.run(img, "rm", "x");
+        Testfs.run(img, "rm", "d/y");
+        Testfs.run(img, "rmdir", "d");
+        Testfs.check(Libfs.bitmap(img).nfree() == nfree, "nfree %d after rm, expected %d", Libfs.bitmap(img).nfree(), nfree);
+        Libfs.journal.close();
+        img.close();
+    }
+
+    // fields and ranges at the window boundaries
+    static void dev() throws Exception {
+        File f = File.createTempFile("opfs", ".img");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(SIZE);
+        }
+        long[] at = { BSIZE, W - BSIZE, W, 2 * W - 4 * BSIZE, 2 * W + 4 * BSIZE, SIZE - BSIZE };
+        byte[] range = new byte[4 * BSIZE];
+        new Random(2).nextBytes(range);
+        long rpos = 2 * W - 2 * BSIZE - 100;  // crosses 2 GiB
+        try (FileChannel ch = Testfs.channel(f)) {
+            Blockdev img = device(ch, FileChannel.MapMode.READ_WRITE);
+            Testfs.check(img.size() == SIZE, "size %d", img.size());
+            for (long pos : at) {
+                img.putLong(pos, pos);
+                img.putInt(pos + 8, (int)(pos >>> 9));
+                img.putShort(pos + 12, (short)(pos >>> 20));
+                img.put(pos + BSIZE - 1, (byte)(pos >>> 30));
+            }
+            img.put(rpos, range, 0, range.length);
+            Testfs.check(img.span(W - 8, 16) == 8 && img.span(2 * W - 100, 200) == 100, "span across a boundary");
+            Testfs.check(img.span(2 * W, BSIZE) == BSIZE, "span at a boundary");
+            for (long pos : at)
+                check_fields(img, pos);
+            byte[] buf = new byte[range.length];
+            img.get(rpos, buf, 0, buf.length);
+            Testfs.check(Arrays.equals(buf, range), "range across 2 GiB");
+            Testfs.check(img.slice(2 * W + 4 * BSIZE, 16).getLong(0) == 2 * W + 4 * BSIZE
+                    && img.slice(SIZE - BSIZE, BSIZE).getLong(0) == SIZE - BSIZE, "slice");
+
+            // in the file once forced
+            for (long pos : at)
+                img.force(pos, BSIZE);
+            img.force(rpos, range.length);
+            for (long pos : at) {
+                ByteBuffer b = ByteBuffer.allocate(BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+                ch.read(b, pos);
+                Testfs.check(b.getLong(0) == pos && b.getInt(8) == (int)(pos >>> 9) && b.getShort(12) == (short)(pos >>> 20)
+                        && b.get(BSIZE - 1) == (byte)(pos >>> 30), "%d: not in the file", pos);
+            }
+            ByteBuffer b = ByteBuffer.wrap(buf);
+            Arrays.fill(buf, (byte)0);
+            ch.read(b, rpos);
+            Testfs.check(Arrays.equals(buf, range), "range across 2 GiB: not in the file");
+            img.close();
+        }
+
+        // read back from the file
+        try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+            Blockdev img = device(ch, FileChannel.MapMode.READ_ONLY);
+            for (long pos : at)
+                check_fields(img, pos);
+            byte[] buf = new byte[range.length];
+            img.get(rpos, buf, 0, buf.length);
+            Testfs.check(Arrays.equals(buf, range), "range across 2 GiB, read back");
+            img.close();
+        }
+        f.delete();
+    }
+
+    static void check_fields(Blockdev img, long pos) {
+        Testfs.check(img.getLong(pos) == pos && img.getInt(pos + 8) == (int)(pos >>> 9) && img.getShort(pos + 12) == (short)(pos >>> 20)
+                && img.get(pos + BSIZE - 1) == (byte)(pos >>> 30), "%d: fields", pos);
+    }
+
+    // the device the dev property names, but Mmapdev for mem when the
+    // heap cannot hold the image
+    static Blockdev device(FileChannel ch, FileChannel.MapMode mode) throws Exception {
+        String dev = System.getProperty("dev", "mmap");
+        if (dev.equals("mem") && Runtime.getRuntime().maxMemory() < ch.size() + (256 << 20))
+            dev = "mmap";
+        return Blockdev.open(dev, ch, mode, ch.size(), Testfs.NBUF);
+    }
+
+    // Testfs.open on that device
+    static Blockdev open(FileChannel ch, FileChannel.MapMode mode) throws Exception {
+        Blockdev img = device(ch, mode);
+        Libfs.journal = null;
+        Libfs.root_inode = Libfs.iget(img, Libfs.root_inode_number);
+        return img;
+    }
+
+    // Testfs.open_logged on that device
+    static Blockdev open_logged(File f) throws Exception {
+        FileChannel ch = Testfs.channel(f);
+        Journal.recover(ch);
+        Blockdev img = open(ch, FileChannel.MapMode.PRIVATE);
+        Libfs.journal = new Journal(img, ch, Journal.SYNC_COMMAND, 0);
+        return img;
+    }
+}
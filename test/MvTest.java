@@ -0,0 +1,154 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MvTest implements Filesystem {
+    /* mv, and mv against rmdir in other threads (Opfs.do_mv, Libfs.lock_pair)
+     *
+     * Checks what mv does with each kind of destination. Then forces the
+     * interleaving in which a rename within a/d would deadlock with rmdir
+     * a/d if it looked a path up with a/d locked: rmdir holds a and waits
+     * for a/d. Then runs, in threads of their own, renames within a/d,
+     * moves in and out of it, and rmdir of it (which fails: it is never
+     * empty) while directories next to it come and go, which keeps the
+     * path cache missing; none of them deadlocks, and the tree is
+     * consistent after.
+     */
+
+    static final int N = 2000;          // # of rounds of each thread
+    static final long TIMEOUT = 120000; // ms
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(2000, 200);
+        Testfs.run(img, "mkdir", "a");
+        Testfs.exec(img, "x".getBytes(), "put", "a/x");
+        Testfs.exec(img, "y".getBytes(), "put", "a/y");
+        Testfs.run(img, "mkdir", "a/d");
+        Testfs.run(img, "mkdir", "a/e");
+
+        // a file over a file, onto itself, and into a directory
+        Testfs.run(img, "mv", "a/x", "a/y");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "a/x") == null && Arrays.equals(Testfs.read(img, "a/y"), "x".getBytes()), "mv a/x a/y");
+        Testfs.run(img, "mv", "a/y", "a/y");
+        Testfs.check(Arrays.equals(Testfs.read(img, "a/y"), "x".getBytes()), "mv a/y a/y");
+        Testfs.run(img, "mv", "a/y", "a/d");
+        Testfs.check(Arrays.equals(Testfs.read(img, "a/d/y"), "x".getBytes()), "mv a/y a/d");
+        // a directory into another, over an empty one, into itself
+        Testfs.run(img, "mv", "a/e", "a/d");
+        Libfs.inode_t e = Libfs.ilookup(img, Libfs.root_inode, "a/d/e");
+        Testfs.check(e != null && Libfs.ilookup(img, Libfs.root_inode, "a/d/e/..") == Libfs.ilookup(img, Libfs.root_inode, "a/d"), "mv a/e a/d");
+        Testfs.run(img, "mkdir", "a/e");
+        Testfs.run(img, "mv", "a/d/e", "a/e");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "a/e/e") == e, "mv a/d/e a/e");
+        Testfs.run(img, "mkdir", "a/f");
+        Testfs.run(img, "mkdir", "a/e/f");
+        Libfs.inode_t f = Libfs.ilookup(img, Libfs.root_inode, "a/f");
+        Testfs.run(img, "mv", "a/f", "a/e");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "a/e/f") == f, "mv a/f a/e over an empty a/e/f");
+        Testfs.check(Testfs.exec(img, null, "mv", "a/e", "a/e/e") != 0 && Testfs.output.contains("into itself"), "mv a/e a/e/e: %s", Testfs.output);
+        Testfs.check(Testfs.exec(img, null, "mv", "a/e/e", "a") != 0 && Testfs.output.contains("not empty"), "mv a/e/e a: %s", Testfs.output);
+        Testfs.run(img, "mkdir", "a/e/y");
+        Testfs.check(Testfs.exec(img, null, "mv", "a/d/y", "a/e") != 0 && Testfs.output.contains("not a directory"), "mv a/d/y a/e: %s", Testfs.output);
+        Testfs.run(img, "rmdir", "a/e/y");
+        Testfs.check(Testfs.exec(img, null, "mv", "a/nosuch", "a/d") != 0, "mv a/nosuch a/d");
+        Testfs.run(img, "fsck");
+
+        forced(img);
+
+        // renames in a/d, moves in and out of it, rmdir a/d, and the
+        // directories a/t and a/u made and removed
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+        Thread[] ts = {
+            worker(failed, () -> {
+                Testfs.run(img, "mv", "a/d/y", "a/d/z");
+                Testfs.run(img, "mv", "a/d/z", "a/d/y");
+            }),
+            worker(failed, () -> {
+                Testfs.run(img, "mv", "a/e", "a/d");
+                Testfs.run(img, "mv", "a/d/e", "a");
+            }),
+            worker(failed, () -> {
+                Testfs.check(Testfs.exec(img, null, "rmdir", "a/d") != 0, "rmdir a/d removed a non-empty directory");
+            }),
+            worker(failed, () -> {
+                Testfs.run(img, "mkdir", "a/t");
+                Testfs.run(img, "rmdir", "a/t");
+            }),
+            worker(failed, () -> {
+                Testfs.run(img, "mkdir", "a/d/u");
+                Testfs.run(img, "rmdir", "a/d/u");
+            }),
+        };
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (Thread t : ts)
+            t.join(Math.max(1, deadline - System.currentTimeMillis()));
+        for (Thread t : ts)
+            Testfs.check(!t.isAlive(), "deadlock: %s still running after %d ms", t.getName(), TIMEOUT);
+        if (failed.get() != null)
+            throw new AssertionError(failed.get());
+        Testfs.check(Arrays.equals(Testfs.read(img, "a/d/y"), "x".getBytes()), "a/d/y");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "a/e/e") != null, "a/e/e");
+        Testfs.run(img, "fsck");
+    }
+
+    // takes the locks rmdir a/d takes, a then a/d, around mv a/d/y a/d/z:
+    // mv resolves its paths (from the cache) and waits for a/d, which this
+    // thread holds; the cache is emptied, a locked and a/d released, so if
+    // mv looked a path up now it would wait for a while holding a/d
+    static void forced(Blockdev img) throws Exception {
+        Libfs.inode_t a = Libfs.ilookup(img, Libfs.root_inode, "a");
+        Libfs.inode_t d = Libfs.ilookup(img, Libfs.root_inode, "a/d");
+        Libfs.ilookup(img, Libfs.root_inode, "a/d/y");
+        Libfs.ilookup(img, Libfs.root_inode, "a/d/z");
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+        d.lock.writeLock().lock();
+        Thread m;
+        boolean locked;
+        try {
+            m = new Thread(() -> {
+                try {
+                    Testfs.run(img, "mv", "a/d/y", "a/d/z");
+                } catch (Throwable x) {
+                    failed.set(x);
+                }
+            });
+            m.setDaemon(true);
+            m.start();
+            for (int i = 0; i < 5000 && !d.lock.hasQueuedThreads(); i++)
+                Thread.sleep(1);
+            Libfs.dcache(img).clear();
+            a.lock.writeLock().lock();
+        } finally {
+            d.lock.writeLock().unlock();
+        }
+        try {
+            for (int i = 0; i < 1000 && m.isAlive() && !a.lock.hasQueuedThreads(); i++)
+                Thread.sleep(1);
+            locked = d.lock.writeLock().tryLock(5, TimeUnit.SECONDS);
+            if (locked)
+                d.lock.writeLock().unlock();
+        } finally {
+            a.lock.writeLock().unlock();
+        }
+        m.join();
+        Testfs.check(locked, "deadlock: mv holds a/d waiting for a, rmdir holds a waiting for a/d");
+        if (failed.get() != null)
+            throw new AssertionError(failed.get());
+        Testfs.run(img, "mv", "a/d/z", "a/d/y");
+    }
+
+    // a thread running round N times, which records the first failure
+    static Thread worker(AtomicReference<Throwable> failed, Runnable round) {
+        Thread t = new Thread(() -> {
+            try {
+                for (int i = 0; i < N && failed.get() == null; i++)
+                    round.run();
+            } catch (Throwable x) {
+                failed.compareAndSet(null, x);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
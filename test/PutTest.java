@@ -0,0 +1,125 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PutTest implements Filesystem {
+    /* put (Libfs.irecv), which reads stdin straight into runs of blocks
+     *
+     * Checks that put stores exactly the data of a stream of unknown size
+     * (read in chunks, short reads included) and of a file of known size,
+     * which gets one run of blocks; that the tail of the last block is
+     * cleared; that put over a file replaces it and gives its blocks back;
+     * and that more than MAXFILESIZE bytes is an error.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(4000, 200);
+        Bitmap bm = Libfs.bitmap(img);
+        int nfree = bm.nfree();
+        Random rnd = new Random(1);
+        int max = Libfs.MAXFILESIZE;
+        ArrayList<String> names = new ArrayList<>(Arrays.asList("big", "big2"));
+
+        // blocks full of ones, freed: put must not leave them in a tail
+        byte[] ones = new byte[max];
+        Arrays.fill(ones, (byte)-1);
+        Testfs.check(Testfs.exec(img, ones, "put", "ones") == 0, "put ones");
+        Testfs.run(img, "rm", "ones");
+
+        for (int size : new int[] { 0, 1, BSIZE - 1, BSIZE, 5 * BSIZE + 7, Libfs.RECVSIZE + 1, max }) {
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+            names.addAll(Arrays.asList("s" + size, "t" + size, "f" + size));
+            // a stream of unknown size, whole and 100 bytes per read
+            put(img, "s" + size, Channels.newChannel(new ByteArrayInputStream(data)));
+            check_file(img, "s" + size, data);
+            put(img, "t" + size, trickle(data, 100));
+            check_file(img, "t" + size, data);
+            // a file: one run of blocks
+            File f = File.createTempFile("opfs", ".in");
+            Files.write(f.toPath(), data);
+            try (FileChannel ch = Testfs.channel(f)) {
+                put(img, "f" + size, ch);
+            } finally {
+                f.delete();
+            }
+            check_file(img, "f" + size, data);
+            int[] m = Libfs.blkmap(img, Libfs.ilookup(img, Libfs.root_inode, "f" + size));
+            for (int i = 1; i < (size + BSIZE - 1) / BSIZE; i++)
+                Testfs.check(m[i] == m[i - 1] + 1, "f%d: block %d not after block %d", size, i, i - 1);
+        }
+
+        // put over a file: replaced, its blocks given back
+        int before = bm.nfree();
+        byte[] small = "small".getBytes();
+        Testfs.check(Testfs.exec(img, small, "put", "s" + max) == 0, "put over s%d", max);
+        check_file(img, "s" + max, small);
+        // MAXFILE blocks and the indirect block back, one block taken
+        Testfs.check(bm.nfree() == before + MAXFILE, "nfree %d after put over a file, expected %d", bm.nfree(), before + MAXFILE);
+
+        // too large, from a stream and from a file
+        byte[] big = new byte[max + 1];
+        Testfs.check(Testfs.exec(img, big, "put", "big") != 0, "put of %d bytes from a stream", big.length);
+        File f = File.createTempFile("opfs", ".in");
+        Files.write(f.toPath(), big);
+        try (FileChannel ch = Testfs.channel(f)) {
+            PrintStream err = new PrintStream(new ByteArrayOutputStream(), true);
+            Testfs.check(Opfs.exec_redirected(img, "put", new String[] { "big2" }, ch, null, err, err) != 0,
+                    "put of %d bytes from a file", big.length);
+        } finally {
+            f.delete();
+        }
+
+        // all removed: every block back
+        for (String name : names)
+            if (Libfs.ilookup(img, Libfs.root_inode, name) != null)
+                Testfs.run(img, "rm", name);
+        Testfs.check(bm.nfree() == nfree, "nfree %d after removing every file, expected %d", bm.nfree(), nfree);
+        Testfs.run(img, "fsck");
+    }
+
+    static void put(Blockdev img, String path, ReadableByteChannel in) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(text, true);
+        Testfs.check(Opfs.exec_redirected(img, "put", new String[] { path }, in, null, ps, ps) == 0, "put %s: %s", path, text);
+    }
+
+    // checks that the file at path holds data, and zeros past it in its
+    // last block
+    static void check_file(Blockdev img, String path, byte[] data) {
+        Testfs.check(Arrays.equals(Testfs.read(img, path), data), "%s: data", path);
+        Libfs.inode_t ip = Libfs.ilookup(img, Libfs.root_inode, path);
+        if (data.length % BSIZE != 0) {
+            long b = Libfs.iblock(img, ip, data.length / BSIZE);
+            for (int i = data.length % BSIZE; i < BSIZE; i++)
+                Testfs.check(img.get(b * BSIZE + i) == 0, "%s: byte %d of the last block not cleared", path, i);
+        }
+    }
+
+    // a stream of data that reads at most n bytes at a time
+    static ReadableByteChannel trickle(byte[] data, int n) {
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(data));
+        return new ReadableByteChannel() {
+            public int read(ByteBuffer dst) throws IOException {
+                ByteBuffer part = dst.slice();
+                part.limit(Math.min(part.limit(), n));
+                int r = in.read(part);
+                if (r > 0)
+                    dst.position(dst.position() + r);
+                return r;
+            }
+            public boolean isOpen() { return in.isOpen(); }
+            public void close() throws IOException { in.close(); }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class QueryTest implements Filesystem {
+    /* query commands (diskinfo, info, ls, get) on a read-only mapping
+     *
+     * Checks that the queries work on an image mapped READ_ONLY from a
+     * file open for reading only, and leave the file as it was; that the
+     * opfs program runs them under a shared lock on the image, next to
+     * another holder of one, while a command that changes the image
+     * waits for it; and that a query first replays a transaction a crash
+     * left in the log.
+     */
+
+    public static void main(String[] args) throws Exception {
+        File f = Testfs.mkfs(4000, 200);
+        byte[] data = new byte[20000];
+        new Random(1).nextBytes(data);
+        Testfs.check(Testfs.opfs(f, null, new String[0], "mkdir", "d") == 0, "mkdir d: %s", Testfs.errors);
+        Testfs.check(Testfs.opfs(f, data, new String[0], "put", "d/x") == 0, "put d/x: %s", Testfs.errors);
+        byte[] before = Files.readAllBytes(f.toPath());
+
+        // in this process, mapped read-only
+        try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+            Blockdev img = Testfs.open(ch, FileChannel.MapMode.READ_ONLY);
+            Testfs.check(img.isReadOnly(), "not read-only");
+            Testfs.check(Testfs.run(img, "ls", "d").contains("\nx "), "ls d: %s", Testfs.output);
+            Testfs.check(Testfs.run(img, "info", "d/x").contains(String.valueOf(data.length)), "info d/x: %s", Testfs.output);
+            Testfs.run(img, "diskinfo");
+            Testfs.check(Arrays.equals(Testfs.read(img, "d/x"), data), "d/x: data");
+            Testfs.check(Testfs.exec(img, null, "get", "d/nosuch") != 0, "get d/nosuch");
+            img.close();
+        }
+        Testfs.check(Arrays.equals(Files.readAllBytes(f.toPath()), before), "the queries changed the image");
+
+        // the program, next to a shared lock held here
+        try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+            FileLock lock = ch.lock(0, Long.MAX_VALUE, true);
+            Testfs.check(Testfs.opfs(f, null, new String[0], "ls", "d") == 0 && Testfs.output.contains("\nx "), "ls d: %s", Testfs.errors);
+            Testfs.check(Testfs.opfs(f, null, new String[0], "get", "d/x") == 0 && Testfs.output.length() > 0, "get d/x: %s", Testfs.errors);
+            Testfs.check(Testfs.opfs(f, null, new String[0], "diskinfo") == 0, "diskinfo: %s", Testfs.errors);
+            Process p = Testfs.opfs_cmd(f, new String[0], "mkdir", "e").start();
+            Thread.sleep(1000);
+            Testfs.check(p.isAlive(), "mkdir e did not wait for the shared lock");
+            lock.release();
+            Testfs.check(p.waitFor() == 0, "mkdir e");
+        }
+        Testfs.check(Testfs.opfs(f, null, new String[0], "ls", "/") == 0 && Testfs.output.contains("\ne "), "ls /: %s", Testfs.output);
+
+        // a transaction left in the log: the first block of d/x
+        // rewritten; get replays it
+        int b;
+        Superblock sb;
+        try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+            Blockdev img = Testfs.open(ch, FileChannel.MapMode.READ_ONLY);
+            sb = Libfs.SBLK(img);
+            b = Libfs.iblock(img, Libfs.ilookup(img, Libfs.root_inode, "d/x"), 0);
+            img.close();
+        }
+        Arrays.fill(data, 0, BSIZE, (byte)7);
+        try (FileChannel ch = Testfs.channel(f)) {
+            ByteBuffer head = ByteBuffer.allocate(BSIZE).order(ByteOrder.LITTLE_ENDIAN).putInt(0, 1).putInt(SIZEOFINT, b);
+            ch.write(ByteBuffer.wrap(data, 0, BSIZE), (long)(sb.logstart + 1) * BSIZE);
+            ch.write(head, (long)sb.logstart * BSIZE);
+            ch.force(false);
+            Testfs.check(Journal.pending(ch), "no transaction pending");
+        }
+        File out = File.createTempFile("opfs", ".out");
+        try {
+            Process p = Testfs.opfs_cmd(f, new String[0], "get", "d/x").redirectOutput(out).start();
+            Testfs.check(p.waitFor() == 0 && Arrays.equals(Files.readAllBytes(out.toPath()), data), "get d/x after a crash");
+        } finally {
+            out.delete();
+        }
+        try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+            Testfs.check(!Journal.pending(ch), "the transaction is still pending");
+        }
+        Testfs.check(Testfs.opfs(f, null, new String[0], "fsck") == 0, "fsck: %s", Testfs.output);
+    }
+}
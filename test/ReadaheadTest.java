@@ -0,0 +1,167 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ReadaheadTest implements Filesystem {
+    /* run coalescing and readahead in iread
+     *
+     * Through a device that records the prefetch hints, checks that reads
+     * of every offset and length return the data of files laid out in
+     * one run and in runs of one block; that sequential reads prefetch a
+     * window past them each time they reach the end of the last one, the
+     * window doubling from RAMIN to RAMAX blocks, one hint per run; that
+     * a read elsewhere starts over and prefetches its own blocks only;
+     * and that readers racing on a file all read its data.
+     */
+
+    // a device passing everything to dev, and recording the prefetch
+    // hints as {1st block, # of blocks}
+    static class probe implements Blockdev {
+        final Blockdev dev;
+        final ArrayList<int[]> hints = new ArrayList<>();
+
+        probe(Blockdev dev) {
+            this.dev = dev;
+        }
+
+        @Override public long size()                 { return dev.size(); }
+        @Override public boolean isReadOnly()        { return dev.isReadOnly(); }
+        @Override public ByteBuffer buffer(long pos)  { return dev.buffer(pos); }
+        @Override public ByteBuffer wbuffer(long pos) { return dev.wbuffer(pos); }
+        @Override public int index(long pos)         { return dev.index(pos); }
+        @Override public int span(long pos, int len) { return dev.span(pos, len); }
+        @Override public void force(long pos, long len) { dev.force(pos, len); }
+        @Override public boolean must_flush()        { return dev.must_flush(); }
+        @Override public void written(long pos, long len) { dev.written(pos, len); }
+        @Override public void close()                { dev.close(); }
+
+        @Override
+        public synchronized void prefetch(long pos, long len) {
+            hints.add(new int[] { (int)(pos / BSIZE), (int)(len / BSIZE) });
+            dev.prefetch(pos, len);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        probe img = new probe(Testfs.open(4000, 200));
+        Libfs.root_inode = Libfs.iget(img, Libfs.root_inode_number);
+        int size = Libfs.MAXFILESIZE;
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        Testfs.check(Testfs.exec(img, data, "put", "c") == 0, "put c");
+        Libfs.inode_t c = Libfs.ilookup(img, Libfs.root_inode, "c");
+        Libfs.inode_t f = Libfs.icreat(img, Libfs.root_inode, "f", Libfs.T_FILE, null);
+        Libfs.inode_t s = Libfs.icreat(img, Libfs.root_inode, "s", Libfs.T_FILE, null);
+        for (int off = 0; off < size; off += BSIZE) {
+            Testfs.check(Libfs.iwrite(img, f, Arrays.copyOfRange(data, off, off + BSIZE), BSIZE, off) == BSIZE, "write error");
+            Testfs.check(Libfs.iwrite(img, s, data, 1, s.size()) == 1, "write error");
+        }
+        Testfs.check(Libfs.iblock(img, f, 1) != Libfs.iblock(img, f, 0) + 1, "f is not fragmented");
+
+        // any offset and length
+        Random rnd = new Random(2);
+        for (Libfs.inode_t ip : new Libfs.inode_t[] { c, f }) {
+            for (int i = 0; i < 2000; i++) {
+                int off = rnd.nextInt(size + 1);
+                int n = rnd.nextInt(i % 2 == 0 ? 3 * BSIZE : size) + 1;
+                check_read(img, ip, data, off, n);
+            }
+            check_read(img, ip, data, 0, size);
+            check_read(img, ip, data, size, 10);
+            Testfs.check(Libfs.iread(img, ip, new byte[10], 10, size + 1) == -1, "read past the end");
+        }
+
+        // sequential reads of a block: the windows
+        for (Libfs.inode_t ip : new Libfs.inode_t[] { c, f }) {
+            ip.ra.set(0);
+            img.hints.clear();
+            ArrayList<int[]> expect = new ArrayList<>();
+            int raend = 0, rasize = 0;
+            for (int i = 0; i < MAXFILE; i++) {
+                if (i >= raend) {
+                    rasize = Math.max(Libfs.RAMIN, Math.min(2 * rasize, Libfs.RAMAX));
+                    int end = Math.min(i + 1 + rasize, MAXFILE);
+                    runs(img, ip, i, end, expect);
+                    raend = end;
+                }
+                check_read(img, ip, data, i * BSIZE, BSIZE);
+            }
+            check_hints(img, expect, ip == c ? "c" : "f");
+        }
+
+        // a read elsewhere: its own blocks, and the window starts over
+        forget(c);
+        img.hints.clear();
+        check_read(img, c, data, 10 * BSIZE + 3, 3 * BSIZE);
+        check_read(img, c, data, 50 * BSIZE, 10);
+        ArrayList<int[]> expect = new ArrayList<>();
+        runs(img, c, 10, 14, expect);
+        check_hints(img, expect, "c: random reads");
+        img.hints.clear();
+        check_read(img, c, data, 50 * BSIZE + 10, 100);
+        expect.clear();
+        runs(img, c, 50, 51 + Libfs.RAMIN, expect);
+        check_hints(img, expect, "c: sequential after a random read");
+
+        // readers racing on f, each reading it through from its own start
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+        Thread[] ts = new Thread[4];
+        for (int t = 0; t < ts.length; t++) {
+            int start = t * 7 * BSIZE, len = 100 + t * 211;
+            ts[t] = new Thread(() -> {
+                try {
+                    for (int round = 0; round < 20; round++)
+                        for (int off = start; off < size; off += len)
+                            check_read(img, f, data, off, len);
+                } catch (Throwable x) {
+                    failed.compareAndSet(null, x);
+                }
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        if (failed.get() != null)
+            throw new AssertionError(failed.get());
+        Testfs.run(img, "rm", "s");
+        Testfs.run(img, "fsck");
+    }
+
+    // drops the readahead state of ip: no read is sequential
+    static void forget(Libfs.inode_t ip) {
+        ip.ra.set(-1L << 32);
+    }
+
+    // checks a read of n bytes at off of the file ip, which holds data
+    static void check_read(Blockdev img, Libfs.inode_t ip, byte[] data, int off, int n) {
+        byte[] buf = new byte[n];
+        int m = Libfs.iread(img, ip, buf, n, off);
+        int want = Math.max(0, Math.min(n, data.length - off));
+        Testfs.check(m == want, "read %d at %d: %d bytes, expected %d", n, off, m, want);
+        Testfs.check(Arrays.equals(Arrays.copyOf(buf, m), Arrays.copyOfRange(data, off, off + m)), "read %d at %d: data", n, off);
+    }
+
+    // appends to hints one hint per physically contiguous run of the
+    // blocks [from, to) of the file ip
+    static void runs(Blockdev img, Libfs.inode_t ip, int from, int to, ArrayList<int[]> hints) {
+        for (int i = from; i < to; ) {
+            int b = Libfs.iblock(img, ip, i), j = i + 1;
+            while (j < to && Libfs.iblock(img, ip, j) == b + (j - i))
+                j++;
+            hints.add(new int[] { b, j - i });
+            i = j;
+        }
+    }
+
+    static void check_hints(probe img, ArrayList<int[]> expect, String what) {
+        StringBuilder got = new StringBuilder();
+        for (int[] h : img.hints)
+            got.append(' ').append(h[0]).append('+').append(h[1]);
+        StringBuilder want = new StringBuilder();
+        for (int[] h : expect)
+            want.append(' ').append(h[0]).append('+').append(h[1]);
+        Testfs.check(got.toString().equals(want.toString()), "%s: prefetched%s, expected%s", what, got, want);
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class RunTest implements Filesystem {
+    /* allocation in contiguous runs (Bitmap.alloc_run, Libfs.ireserve)
+     *
+     * Checks that a file written at once, grown by itruncate or made by
+     * cp lies in one run with its indirect block; that when the free
+     * space is in holes shorter than the file the file takes them whole,
+     * in few runs, and reads back; that a run is looked for past the hint
+     * first, then from the start; and that blocks reserved but never
+     * written are given back by itruncate.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Blockdev img = Testfs.open(4000, 200);
+        Superblock sb = Libfs.SBLK(img);
+        Bitmap bm = Libfs.bitmap(img);
+        int nfree = bm.nfree();
+        byte[] data = new byte[Libfs.MAXFILESIZE];
+        new Random(1).nextBytes(data);
+
+        // written at once, grown, copied: one run each
+        Libfs.inode_t w = Libfs.icreat(img, Libfs.root_inode, "w", Libfs.T_FILE, null);
+        Testfs.check(Libfs.iwrite(img, w, data, data.length, 0) == data.length, "write error");
+        check_run(img, w, "w");
+        Libfs.inode_t t = Libfs.icreat(img, Libfs.root_inode, "t", Libfs.T_FILE, null);
+        Testfs.check(Libfs.iwrite(img, t, data, 3 * BSIZE, 0) == 3 * BSIZE, "write error");
+        Testfs.check(Libfs.itruncate(img, t, Libfs.MAXFILESIZE) == 0, "itruncate");
+        check_run(img, t, "t");
+        byte[] grown = new byte[Libfs.MAXFILESIZE];
+        System.arraycopy(data, 0, grown, 0, 3 * BSIZE);
+        Testfs.check(Arrays.equals(Testfs.read(img, "t"), grown), "t: not zeros past the data");
+        Testfs.run(img, "cp", "w", "c");
+        check_run(img, Libfs.ilookup(img, Libfs.root_inode, "c"), "c");
+        Testfs.check(Arrays.equals(Testfs.read(img, "c"), data), "c: data");
+
+        // reserved, never written, then truncated: given back
+        Testfs.run(img, "rm", "t");
+        int before = bm.nfree();
+        Libfs.inode_t r = Libfs.icreat(img, Libfs.root_inode, "r", Libfs.T_FILE, null);
+        Testfs.check(Libfs.ireserve(img, r, 0, 30) == 30 && bm.nfree() == before - 31, "ireserve of 30 blocks");
+        Testfs.check(r.size() == 0 && Libfs.itruncate(img, r, 0) == 0, "itruncate");
+        Testfs.check(bm.nfree() == before && r.addr(0) == 0 && r.addr(NDIRECT) == 0, "reserved blocks kept: nfree %d, expected %d", bm.nfree(), before);
+        Testfs.run(img, "rm", "r");
+
+        // the free space in holes of 5 blocks: the file takes them whole
+        ArrayList<Integer> taken = new ArrayList<>();
+        for (int b; (b = bm.alloc(0)) != 0; )
+            taken.add(b);
+        taken.sort(null);
+        int nholes = 40;
+        for (int i = 0; i < 10 * nholes; i++)
+            if (i % 10 < 5)
+                bm.free(taken.get(i), 1);
+        Libfs.inode_t h = Libfs.icreat(img, Libfs.root_inode, "h", Libfs.T_FILE, null);
+        Testfs.check(Libfs.iwrite(img, h, data, data.length, 0) == data.length, "write error in holes");
+        int[] m = Libfs.blkmap(img, h);
+        int nruns = 1;
+        for (int i = 1; i < MAXFILE; i++)
+            if (m[i] != m[i - 1] + 1)
+                nruns++;
+        Testfs.check(nruns <= MAXFILE / 5 + 2, "%d runs in holes of 5 blocks", nruns);
+        Testfs.check(Arrays.equals(Testfs.read(img, "h"), data), "h: data");
+        Testfs.run(img, "rm", "h");
+        for (int i = 0; i < taken.size(); i++)
+            if (i >= 10 * nholes || i % 10 >= 5)
+                bm.free(taken.get(i), 1);
+
+        // past the hint first, then from the start
+        Bitmap.extent e = bm.alloc_run(10, sb.size - 5);
+        Testfs.check(e != null && e.len == 10 && e.start < sb.size - 5, "alloc_run from near the end: wraps");
+        bm.free(e.start, e.len);
+        e = bm.alloc_run(10, sb.size / 2);
+        Testfs.check(e != null && e.len == 10 && e.start >= sb.size / 2, "alloc_run from the hint: %d", e == null ? 0 : e.start);
+        bm.free(e.start, e.len);
+
+        Testfs.run(img, "rm", "w");
+        Testfs.run(img, "rm", "c");
+        Testfs.check(bm.nfree() == nfree, "nfree %d, expected %d", bm.nfree(), nfree);
+        Testfs.run(img, "fsck");
+    }
+
+    // checks that the blocks of the file ip, its indirect block
+    // included, are one run
+    static void check_run(Blockdev img, Libfs.inode_t ip, String name) {
+        int[] m = Libfs.blkmap(img, ip);
+        int n = (ip.size() + BSIZE - 1) / BSIZE;
+        int[] blocks = Arrays.copyOf(m, n + (n > NDIRECT ? 1 : 0));
+        if (n > NDIRECT)
+            blocks[n] = ip.addr(NDIRECT);
+        Arrays.sort(blocks);
+        for (int i = 1; i < blocks.length; i++)
+            Testfs.check(blocks[i] == blocks[i - 1] + 1, "%s: block %d after %d", name, blocks[i], blocks[i - 1]);
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ServeTest implements Filesystem {
+    /* server mode (opfs img_file serve socket, Opfsd, Opfsc)
+     *
+     * Starts the opfs program as a server and runs commands on it: many
+     * on one connection, with input and output of several frames, input
+     * a command does not read, failing commands and commands not allowed
+     * in a connection; then connections from threads at once, and the
+     * opfsc client program. Kills the server and checks that the image
+     * holds what the commands did.
+     */
+
+    static final int NTHREADS = 4;
+    static final int N = 50;            // # of rounds of each thread
+
+    static ByteArrayOutputStream out, err;
+
+    public static void main(String[] args) throws Exception {
+        File f = Testfs.mkfs(4000, 200);
+        Path dir = Files.createTempDirectory("opfs");
+        Path sock = dir.resolve("sock");
+        Process server = Testfs.opfs_cmd(f, new String[0], "serve", sock.toString())
+            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try {
+            byte[] data = new byte[Libfs.MAXFILESIZE];
+            new Random(1).nextBytes(data);
+            try (SocketChannel ch = connect(sock, server)) {
+                Testfs.check(call(ch, null, "mkdir", "d") == 0, "mkdir d: %s", err);
+                Testfs.check(call(ch, data, "put", "d/f") == 0, "put d/f: %s", err);
+                Testfs.check(call(ch, null, "get", "d/f") == 0 && Arrays.equals(out.toByteArray(), data), "get d/f: %d bytes", out.size());
+                Testfs.check(call(ch, data, "mkdir", "d/e") == 0, "mkdir d/e < data: %s", err);
+                Testfs.check(call(ch, null, "ls", "d") == 0 && out.toString().contains("\nf ") && out.toString().contains("\ne "), "ls d: %s", out);
+                Testfs.check(call(ch, null, "rm", "d/nosuch") != 0 && err.size() > 0, "rm d/nosuch");
+                Testfs.check(call(ch, null, "batch") != 0 && err.toString().contains("batch: not allowed in a connection"), "batch: %s", err);
+                Testfs.check(call(ch, null, "serve", "x") != 0 && err.toString().contains("serve: not allowed in a connection"), "serve: %s", err);
+                Testfs.check(call(ch, null, "nosuch") != 0, "nosuch");
+                Testfs.check(call(ch, null, "get", "d/f") == 0 && Arrays.equals(out.toByteArray(), data), "get d/f after the errors");
+            }
+
+            // a connection per thread, each on a directory of its own
+            AtomicReference<Throwable> failed = new AtomicReference<>();
+            Thread[] ts = new Thread[NTHREADS];
+            for (int t = 0; t < NTHREADS; t++) {
+                String d = "t" + t;
+                ts[t] = new Thread(() -> {
+                    try (SocketChannel ch = connect(sock, server)) {
+                        ByteArrayOutputStream o = new ByteArrayOutputStream(), e = new ByteArrayOutputStream();
+                        Testfs.check(Opfsc.call(ch, "mkdir", new String[] { d }, null, Channels.newChannel(o), Channels.newChannel(e)) == 0, "mkdir %s: %s", d, e);
+                        for (int i = 0; i < N; i++) {
+                            byte[] b = (d + "/" + i).getBytes();
+                            String path = d + "/" + i % 10;
+                            Testfs.check(Opfsc.call(ch, "put", new String[] { path }, Channels.newChannel(new ByteArrayInputStream(b)),
+                                    Channels.newChannel(o), Channels.newChannel(e)) == 0, "put %s: %s", path, e);
+                            o.reset();
+                            Testfs.check(Opfsc.call(ch, "get", new String[] { path }, null, Channels.newChannel(o), Channels.newChannel(e)) == 0
+                                    && Arrays.equals(o.toByteArray(), b), "get %s: %s", path, o);
+                        }
+                    } catch (Throwable x) {
+                        failed.compareAndSet(null, x);
+                    }
+                });
+                ts[t].start();
+            }
+            for (Thread t : ts)
+                t.join();
+            if (failed.get() != null)
+                throw new AssertionError(failed.get());
+
+            // the client program: stdin for put, stdout for get, exit status
+            File in = dir.resolve("in").toFile(), got = dir.resolve("got").toFile();
+            Files.write(in.toPath(), data);
+            Testfs.check(opfsc(sock, "put", "c").redirectInput(in).start().waitFor() == 0, "opfsc put");
+            Testfs.check(opfsc(sock, "get", "c").redirectOutput(got).start().waitFor() == 0, "opfsc get c");
+            Testfs.check(Arrays.equals(Files.readAllBytes(got.toPath()), data), "opfsc get c: data");
+            Testfs.check(opfsc(sock, "rmdir", "d").redirectError(ProcessBuilder.Redirect.DISCARD).start().waitFor() == 1, "opfsc rmdir d");
+            in.delete();
+            got.delete();
+        } finally {
+            server.destroyForcibly().waitFor();
+        }
+
+        // every command was committed before its status was sent
+        Blockdev img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Testfs.check(Arrays.equals(Testfs.read(img, "c"), Testfs.read(img, "d/f")), "c and d/f differ");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "d/e") != null, "d/e lost");
+        for (int t = 0; t < NTHREADS; t++)
+            for (int i = N - 10; i < N; i++)
+                Testfs.check(Arrays.equals(Testfs.read(img, "t" + t + "/" + i % 10), ("t" + t + "/" + i).getBytes()), "t%d/%d", t, i % 10);
+        Testfs.run(img, "fsck");
+        Files.deleteIfExists(sock);
+        Files.delete(dir);
+    }
+
+    // connects to the server at sock, once it is up
+    static SocketChannel connect(Path sock, Process server) throws Exception {
+        for (int i = 0; ; i++) {
+            SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                ch.connect(UnixDomainSocketAddress.of(sock));
+                return ch;
+            } catch (IOException e) {
+                ch.close();
+                if (i == 1000 || !server.isAlive())
+                    throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // runs a command on ch, with stdin in (may be null); its output is
+    // kept in out and err; returns its exit status
+    static int call(SocketChannel ch, byte[] in, String cmd, String... args) throws IOException {
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+        return Opfsc.call(ch, cmd, args, in != null ? Channels.newChannel(new ByteArrayInputStream(in)) : null,
+                Channels.newChannel(out), Channels.newChannel(err));
+    }
+
+    // the opfsc program running a command on the server at sock
+    static ProcessBuilder opfsc(Path sock, String... args) {
+        ProcessBuilder pb = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "Opfsc", sock.toString());
+        pb.command().addAll(Arrays.asList(args));
+        return pb;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class SortedDirTest implements Filesystem {
+    /* sorted directories (DFMT_SORTED)
+     *
+     * Checks that dirfmt sorted lays a directory out in order; that names
+     * appended in order keep it sorted and one out of order turns it
+     * plain; that through random creates and unlinks a directory marked
+     * sorted always is, and the binary search (dsearch) finds every name
+     * in it and no other; that this holds in the image read back after a
+     * crash, which fsck finds consistent; and that dirfmt sorted refuses
+     * without a log.
+     */
+
+    public static void main(String[] args) throws Exception {
+        File f = Testfs.mkfs(4000, 400);
+        Blockdev img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Testfs.run(img, "mkdir", "d");
+        ArrayList<String> live = new ArrayList<>();
+        for (String name : new String[] { "m", "c", "x", "a" }) {
+            put(img, name);
+            live.add(name);
+        }
+        Libfs.inode_t d = Libfs.ilookup(img, Libfs.root_inode, "d");
+        Testfs.run(img, "dirfmt", "sorted", "d");
+        Testfs.check(d.major() == Libfs.DFMT_SORTED && Libfs.dsorted(img, d), "dirfmt sorted d");
+        check_names(img, d, live);
+
+        // appended in order: still sorted; then out of order: plain
+        for (String name : new String[] { "y", "z" }) {
+            put(img, name);
+            live.add(name);
+        }
+        Testfs.check(d.major() == Libfs.DFMT_SORTED && Libfs.dsorted(img, d), "in order appends made d plain");
+        check_names(img, d, live);
+        put(img, "b");
+        live.add("b");
+        Testfs.check(d.major() == Libfs.DFMT_PLAIN, "an out of order add left d sorted");
+        check_names(img, d, live);
+
+        // random creates and unlinks, sorting d again whenever it turns plain
+        Random rnd = new Random(1);
+        int nsorts = 0;
+        for (int i = 0; i < 300; i++) {
+            if (d.major() != Libfs.DFMT_SORTED) {
+                Testfs.run(img, "dirfmt", "sorted", "d");
+                nsorts++;
+            }
+            String name = "n" + rnd.nextInt(60);
+            if (live.contains(name)) {
+                Testfs.run(img, "rm", "d/" + name);
+                live.remove(name);
+            } else {
+                put(img, name);
+                live.add(name);
+            }
+            if (d.major() == Libfs.DFMT_SORTED)
+                Testfs.check(Libfs.dsorted(img, d), "d marked sorted but not after %s", name);
+            check_names(img, d, live);
+        }
+        Testfs.check(nsorts > 1 && nsorts < 300, "%d sorts: the random operations did not exercise both cases", nsorts);
+        if (d.major() != Libfs.DFMT_SORTED)
+            Testfs.run(img, "dirfmt", "sorted", "d");
+        Testfs.run(img, "fsck");
+
+        // after a crash d is cold: dlookup goes through dsearch
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        d = Libfs.ilookup(img, Libfs.root_inode, "d");
+        Testfs.check(d.major() == Libfs.DFMT_SORTED && Libfs.dsorted(img, d), "d not sorted after the crash");
+        for (String name : live)
+            Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "d/" + name) != null, "d/%s lost in the crash", name);
+        check_names(img, d, live);
+        Testfs.run(img, "fsck");
+
+        // no log: refused, nothing changed
+        img = Testfs.open(Testfs.channel(f), FileChannel.MapMode.READ_WRITE);
+        Testfs.run(img, "mkdir", "e");
+        Libfs.inode_t e = Libfs.ilookup(img, Libfs.root_inode, "e");
+        Testfs.check(Testfs.exec(img, null, "dirfmt", "sorted", "e") != 0 && Testfs.output.contains("no log"),
+                "dirfmt sorted without a log: %s", Testfs.output);
+        Testfs.check(e.major() == Libfs.DFMT_PLAIN, "dirfmt sorted without a log changed e");
+    }
+
+    static void put(Blockdev img, String name) {
+        Testfs.check(Testfs.exec(img, new byte[0], "put", "d/" + name) == 0, "put d/%s", name);
+    }
+
+    // checks that dlookup finds the names in live in dp, and, if dp is
+    // sorted, that dsearch finds them too and a few names not there not
+    static void check_names(Blockdev img, Libfs.inode_t dp, ArrayList<String> live) {
+        for (String name : live)
+            Testfs.check(Libfs.dlookup(img, dp, name, null) != null, "dlookup %s", name);
+        if (dp.major() != Libfs.DFMT_SORTED)
+            return;
+        dp.lock.readLock().lock();
+        try {
+            for (String name : live)
+                Testfs.check(Libfs.dsearch(img, dp, name, null) != null, "dsearch %s", name);
+            for (String name : new String[] { ".", "..", "0", "n", "n99", "zz" })
+                Testfs.check((Libfs.dsearch(img, dp, name, null) != null) == (live.contains(name) || name.startsWith(".")),
+                        "dsearch %s", name);
+        } finally {
+            dp.lock.readLock().unlock();
+        }
+    }
+}
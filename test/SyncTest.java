@@ -0,0 +1,101 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+public class SyncTest implements Filesystem {
+    /* durability modes (OPFS_SYNC) and the sync command
+     *
+     * A crash is an image dropped without close, as in JournalTest.
+     * Checks how OPFS_SYNC values parse; that a command is kept across a
+     * crash once it has ended in the command mode, once the interval has
+     * passed in the interval mode and once sync has run in the manual
+     * mode; that sync without a log forces the changes to the file; and
+     * that the opfs program refuses a bad OPFS_SYNC and commits on exit
+     * in every mode.
+     */
+
+    public static void main(String[] args) throws Exception {
+        check_mode("command", Journal.SYNC_COMMAND, 0);
+        check_mode(null, Journal.SYNC_COMMAND, 0);
+        check_mode("manual", Journal.SYNC_MANUAL, 0);
+        check_mode("none", Journal.SYNC_NONE, 0);
+        check_mode("250", Journal.SYNC_INTERVAL, 250);
+        for (String s : new String[] { "", "0", "-5", "1.5", "Manual", "sync" })
+            Testfs.check(Journal.parse_mode(s) == null, "OPFS_SYNC=%s accepted", s);
+
+        File f = Testfs.mkfs(4000, 200);
+
+        // command: kept once the command has ended
+        Blockdev img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        Testfs.run(img, "mkdir", "c");
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        check_dirs(img, "c");
+
+        // manual: kept once synced
+        img = Testfs.open_logged(f, Journal.SYNC_MANUAL);
+        Testfs.run(img, "mkdir", "m1");
+        Testfs.run(img, "sync");
+        Testfs.run(img, "mkdir", "m2");
+        img = Testfs.open_logged(f, Journal.SYNC_MANUAL);
+        check_dirs(img, "c", "m1");
+
+        // interval: kept once the interval has passed, not before
+        img = open_interval(f, 3600 * 1000);
+        Testfs.run(img, "mkdir", "i1");
+        img = open_interval(f, 50);
+        Journal j = Libfs.journal;
+        Testfs.run(img, "mkdir", "i2");
+        Thread.sleep(1000);
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        check_dirs(img, "c", "m1", "i2");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "i1") == null, "i1 survived the crash before the interval");
+        j.close(); // stops its timer; nothing is left to commit
+
+        // none: sync forces the changes to the file
+        img = Testfs.open(Testfs.channel(f), FileChannel.MapMode.READ_WRITE);
+        Libfs.journal = new Journal(img, Testfs.channel(f), Journal.SYNC_NONE, 0);
+        Testfs.run(img, "mkdir", "n");
+        Testfs.run(img, "sync");
+        try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+            img = Testfs.open(ch, FileChannel.MapMode.READ_ONLY);
+            check_dirs(img, "c", "m1", "i2", "n");
+            img.close();
+        }
+
+        // the program: a bad mode is refused; every mode commits on exit
+        for (String s : new String[] { "bogus", "0" }) {
+            Testfs.check(Testfs.opfs(f, null, new String[] { "OPFS_SYNC=" + s }, "mkdir", "x") == 1
+                    && Testfs.errors.contains("OPFS_SYNC: " + s + ": "), "OPFS_SYNC=%s: %s", s, Testfs.errors);
+        }
+        for (String s : new String[] { "command", "manual", "none", "100" })
+            Testfs.check(Testfs.opfs(f, null, new String[] { "OPFS_SYNC=" + s }, "mkdir", "p" + s) == 0, "OPFS_SYNC=%s: %s", s, Testfs.errors);
+        img = Testfs.open_logged(f, Journal.SYNC_COMMAND);
+        check_dirs(img, "c", "m1", "i2", "n", "pcommand", "pmanual", "pnone", "p100");
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "x") == null, "x made with a bad OPFS_SYNC");
+        Testfs.run(img, "fsck");
+    }
+
+    static void check_mode(String s, int mode, long interval) {
+        long[] m = Journal.parse_mode(s);
+        Testfs.check(m != null && m[0] == mode && m[1] == interval, "OPFS_SYNC=%s", s);
+    }
+
+    // maps the image in f privately with a log committed every ms
+    // milliseconds
+    static Blockdev open_interval(File f, long ms) throws Exception {
+        FileChannel ch = Testfs.channel(f);
+        Journal.recover(ch);
+        Blockdev img = Testfs.open(ch, FileChannel.MapMode.PRIVATE);
+        Libfs.journal = new Journal(img, ch, Journal.SYNC_INTERVAL, ms);
+        return img;
+    }
+
+    // checks that the root directory holds exactly the directories names
+    static void check_dirs(Blockdev img, String... names) {
+        Libfs.inode_t r = Libfs.root_inode;
+        Testfs.check(r.size() == (names.length + 2) * DIRENTSIZE, "%d entries in the root, expected %d",
+                r.size() / DIRENTSIZE, names.length + 2);
+        for (String name : names)
+            Testfs.check(Libfs.ilookup(img, r, name) != null, "%s lost", name);
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class Testfs implements Filesystem {
+    /* test harness
+     *
+     * Every test is a program of its own (XxxTest) that stops with an
+     * AssertionError at the first failed check:
+     *
+     *   javac -d out src/*.java test/*.java
+     *   java -cp out -Ddev=pread BitmapTest
+     *
+     * test/run.sh builds the tree and runs every test on every Blockdev
+     * (the dev property: mmap, pread or mem, as OPFS_DEV).
+     *
+     * mkfs writes an empty image (the root directory only) laid out as
+     * xv6 mkfs lays it out to a temporary file; open maps it as Opfs
+     * main does and points Libfs at it. The in-core indices of Libfs are
+     * keyed by the Blockdev, so opening an image drops those of the last.
+     * opfs runs the program itself, through its main, in a JVM of its own.
+     */
+
+    static final int NLOG = 30;     // # of log blocks of an image made by mkfs
+    static final int NBUF = 64;     // # of blocks Chandev caches
+
+    static String output = "";      // what the last command run printed
+    static String errors = "";      // what the last opfs program run printed to stderr
+
+    // writes an empty image of size blocks and ninodes inodes to a new
+    // temporary file
+    static File mkfs(int size, int ninodes) throws IOException {
+        int ninodeblks = ninodes / IPB + 1;
+        int nbmapblks = size / BPB + 1;
+        int logstart = 2;
+        int inodestart = logstart + NLOG;
+        int bmapstart = inodestart + ninodeblks;
+        int datastart = bmapstart + nbmapblks;
+        // the blocks up to the root directory block; the rest are zeros
+        // (a sparse file)
+        ByteBuffer img = ByteBuffer.allocate((datastart + 1) * BSIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        // superblock
+        int p = BSIZE;
+        for (int v : new int[] { size, size - datastart, ninodes, NLOG, logstart, inodestart, bmapstart }) {
+            img.putInt(p, v);
+            p += SIZEOFINT;
+        }
+        // the blocks up to the root directory block are used
+        for (int b = 0; b <= datastart; b++) {
+            int q = bmapstart * BSIZE + b / 8;
+            img.put(q, (byte)(img.get(q) | 1 << b % 8));
+        }
+        // root directory: "." and ".." in its first data block
+        int ip = inodestart * BSIZE + ROOTINO * DINODESIZE;
+        img.putShort(ip, (short)Libfs.T_DIR);
+        img.putShort(ip + 6, (short)1);
+        img.putInt(ip + 8, 2 * DIRENTSIZE);
+        img.putInt(ip + 12, datastart);
+        img.put(datastart * BSIZE, Dindex.encode(ROOTINO, "."));
+        img.put(datastart * BSIZE + DIRENTSIZE, Dindex.encode(ROOTINO, ".."));
+
+        File f = File.createTempFile("opfs", ".img");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(img.array());
+            raf.setLength((long)size * BSIZE);
+        }
+        return f;
+    }
+
+    static FileChannel channel(File f) throws IOException {
+        return new RandomAccessFile(f, "rw").getChannel();
+    }
+
+    // maps the image open on ch in mode on the device the dev property
+    // names, with no log
+    static Blockdev open(FileChannel ch, FileChannel.MapMode mode) throws IOException {
+        Blockdev img = Blockdev.open(System.getProperty("dev", "mmap"), ch, mode, ch.size(), NBUF);
+        Libfs.journal = null;
+        Libfs.root_inode = Libfs.iget(img, Libfs.root_inode_number);
+        return img;
+    }
+
+    // maps a new empty image shared (as OPFS_SYNC=none does)
+    static Blockdev open(int size, int ninodes) throws IOException {
+        return open(channel(mkfs(size, ninodes)), FileChannel.MapMode.READ_WRITE);
+    }
+
+    // maps the image in f privately with a log in mode (Journal.SYNC_*),
+    // as Opfs main does, after replaying the committed transaction if any
+    static Blockdev open_logged(File f, int mode) throws IOException {
+        FileChannel ch = channel(f);
+        Journal.recover(ch);
+        Blockdev img = open(ch, FileChannel.MapMode.PRIVATE);
+        Libfs.journal = new Journal(img, ch, mode, 0);
+        return img;
+    }
+
+    // runs an Opfs command with stdin read from in (may be null) and
+    // its output kept in output; returns its exit status
+    static int exec(Blockdev img, byte[] in, String cmd, String... args) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(text, true);
+        int status = Opfs.exec_redirected(img, cmd, args,
+                in != null ? Channels.newChannel(new ByteArrayInputStream(in)) : null,
+                Channels.newChannel(text), ps, ps);
+        output = text.toString();
+        return status;
+    }
+
+    // runs an Opfs command that must succeed; returns what it printed
+    static String run(Blockdev img, String cmd, String... args) {
+        int status = exec(img, null, cmd, args);
+        check(status == 0, "%s %s: %s", cmd, String.join(" ", args), output);
+        return output;
+    }
+
+    // starts the opfs program (Opfs main) on the image in f in a JVM of
+    // its own, with the Blockdev the dev property names (OPFS_DEV) and
+    // the environment variables env ("NAME=value")
+    static ProcessBuilder opfs_cmd(File f, String[] env, String... args) {
+        ProcessBuilder pb = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "Opfs", f.getPath());
+        pb.command().addAll(Arrays.asList(args));
+        pb.environment().put("OPFS_DEV", System.getProperty("dev", "mmap"));
+        for (String e : env)
+            pb.environment().put(e.substring(0, e.indexOf('=')), e.substring(e.indexOf('=') + 1));
+        return pb;
+    }
+
+    // runs the opfs program with stdin read from in (may be null); what
+    // it writes to stdout is kept in output, to stderr in errors;
+    // returns its exit status
+    static int opfs(File f, byte[] in, String[] env, String... args) throws IOException, InterruptedException {
+        File fin = File.createTempFile("opfs", ".in");
+        File fout = File.createTempFile("opfs", ".out");
+        File ferr = File.createTempFile("opfs", ".err");
+        try {
+            Files.write(fin.toPath(), in != null ? in : new byte[0]);
+            Process p = opfs_cmd(f, env, args).redirectInput(fin).redirectOutput(fout).redirectError(ferr).start();
+            int status = p.waitFor();
+            output = new String(Files.readAllBytes(fout.toPath()));
+            errors = new String(Files.readAllBytes(ferr.toPath()));
+            return status;
+        } finally {
+            fin.delete();
+            fout.delete();
+            ferr.delete();
+        }
+    }
+
+    // contents of the file at path
+    static byte[] read(Blockdev img, String path) {
+        Libfs.inode_t ip = Libfs.ilookup(img, Libfs.root_inode, path);
+        check(ip != null, "%s: no such file", path);
+        byte[] buf = new byte[ip.size()];
+        check(Libfs.iread(img, ip, buf, buf.length, 0) == buf.length, "%s: read error", path);
+        return buf;
+    }
+
+    static void check(boolean cond, String fmt, Object... args) {
+        if (!cond)
+            throw new AssertionError(String.format(fmt, args));
+    }
+}
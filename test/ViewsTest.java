@@ -0,0 +1,59 @@
+public class ViewsTest implements Filesystem {
+    /* flyweight views over the image (SBLK, inode_t, de_inum, de_name)
+     *
+     * Checks that the superblock and its derived geometry say what mkfs
+     * wrote and are decoded once per image; that inode handles read and
+     * write the dinode fields in place; and that the dirent views read
+     * the entries of a directory block, names of DIRSIZ characters
+     * (which have no terminating zero) included.
+     */
+
+    public static void main(String[] args) throws Exception {
+        int size = 3000, ninodes = 200;
+        Blockdev img = Testfs.open(size, ninodes);
+
+        // superblock: as mkfs laid the image out
+        Superblock sb = Libfs.SBLK(img);
+        Testfs.check(Libfs.SBLK(img) == sb, "the superblock is decoded again");
+        int ninodeblks = ninodes / IPB + 1, nbmapblks = size / BPB + 1;
+        int datastart = 2 + Testfs.NLOG + ninodeblks + nbmapblks;
+        Testfs.check(sb.size == size && sb.ninodes == ninodes && sb.nlog == Testfs.NLOG && sb.logstart == 2, "superblock fields");
+        Testfs.check(sb.inodestart == 2 + Testfs.NLOG && sb.bmapstart == sb.inodestart + ninodeblks, "superblock fields");
+        Testfs.check(sb.ninodeblks == ninodeblks && sb.nbmapblks == nbmapblks && sb.datastart == datastart && sb.nblocks == size - datastart,
+                "geometry: %d inode blocks, %d bitmap blocks, data from %d", sb.ninodeblks, sb.nbmapblks, sb.datastart);
+        Testfs.check(!Libfs.valid_data_block(img, datastart - 1) && Libfs.valid_data_block(img, datastart)
+                && Libfs.valid_data_block(img, size - 1) && !Libfs.valid_data_block(img, size), "valid_data_block");
+
+        // inode handles: every field read and written in place
+        Libfs.inode_t ip = Libfs.icreat(img, Libfs.root_inode, "f", Libfs.T_FILE, null);
+        byte[] data = new byte[(NDIRECT + 3) * BSIZE];
+        Testfs.check(Libfs.iwrite(img, ip, data, data.length, 0) == data.length, "write error");
+        Testfs.check(ip.type() == img.getShort(ip.off) && ip.type() == Libfs.T_FILE, "type");
+        Testfs.check(ip.nlink() == img.getShort(ip.off + 6) && ip.nlink() == 1, "nlink");
+        Testfs.check(ip.size() == img.getInt(ip.off + 8) && ip.size() == data.length, "size");
+        for (int i = 0; i <= NDIRECT; i++)
+            Testfs.check(ip.addr(i) == img.getInt(ip.off + 12 + i * SIZEOFINT) && Libfs.valid_data_block(img, ip.addr(i)), "addrs[%d]", i);
+        ip.set_major(7);
+        Testfs.check(img.getShort(ip.off + 2) == 7 && ip.major() == 7, "set_major did not reach the image");
+        img.putShort(ip.off + 4, (short)9);
+        Testfs.check(ip.minor() == 9, "minor %d, expected 9 from the image", ip.minor());
+        img.putShort(ip.off + 2, (short)0);
+        img.putShort(ip.off + 4, (short)0);
+
+        // dirents of the root directory: ".", "..", then the names added
+        String longname = "abcdefghijklmn";
+        Testfs.check(longname.length() == DIRSIZ, "long name");
+        Libfs.inode_t lp = Libfs.icreat(img, Libfs.root_inode, longname, Libfs.T_FILE, null);
+        Libfs.inode_t sp = Libfs.icreat(img, Libfs.root_inode, "s", Libfs.T_DIR, null);
+        long pos = (long)Libfs.root_inode.addr(0) * BSIZE;
+        String[] names = { ".", "..", "f", longname, "s" };
+        int[] inums = { ROOTINO, ROOTINO, ip.inum, lp.inum, sp.inum };
+        for (int i = 0; i < names.length; i++, pos += DIRENTSIZE) {
+            Testfs.check(Libfs.de_inum(img, pos) == inums[i], "entry %d: inum %d, expected %d", i, Libfs.de_inum(img, pos), inums[i]);
+            Testfs.check(Libfs.de_name(img, pos).equals(names[i]), "entry %d: name \"%s\", expected \"%s\"", i, Libfs.de_name(img, pos), names[i]);
+        }
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, longname) == lp, "lookup of a %d character name", DIRSIZ);
+        Testfs.check(Libfs.ilookup(img, Libfs.root_inode, "s/..") == Libfs.root_inode, "s/..");
+        Testfs.run(img, "fsck");
+    }
+}
@@ -0,0 +1,14 @@
+#!/bin/sh
+# builds the tree and the tests, and runs every test on every Blockdev
+set -e
+cd "$(dirname "$0")/.."
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -Xlint:all -d "$out" src/*.java test/*.java
+for dev in mmap pread mem; do
+    for t in test/*Test.java; do
+        t=$(basename "$t" .java)
+        java -ea -Ddev=$dev -cp "$out" $t
+        echo "$t ($dev): ok"
+    done
+done